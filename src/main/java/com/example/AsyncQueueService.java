@@ -0,0 +1,28 @@
+package com.example;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The non-blocking counterpart of QueueService: every call returns right away with a future,
+ * completed when the operation is done or exceptionally if it failed.
+ */
+public interface AsyncQueueService {
+  /** push a message onto a queue. */
+  public CompletableFuture<Void> pushAsync(String queueUrl, String messageBody);
+
+  /** retrieves a single message from a queue; completed with null if there is none. */
+  public CompletableFuture<Message> pullAsync(String queueUrl);
+
+  /** deletes a message from the queue that was received by pullAsync(). */
+  public CompletableFuture<Void> deleteAsync(String queueUrl, String receiptId);
+
+  /** pushes several messages onto a queue, in order. */
+  public CompletableFuture<Void> pushBatchAsync(String queueUrl, List<String> messageBodies);
+
+  /** retrieves up to maxMessages messages from a queue; completed with an empty list if there is none. */
+  public CompletableFuture<List<Message>> pullAsync(String queueUrl, int maxMessages);
+
+  /** deletes several messages from the queue that were received by pullAsync(). */
+  public CompletableFuture<Void> deleteBatchAsync(String queueUrl, List<String> receiptIds);
+}
@@ -0,0 +1,170 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Keeps the bodies of in-memory queue messages outside the Java heap, in slabs of direct memory,
+ * so a large backlog does not grow the old generation the garbage collector has to go through.
+ *
+ * A body is stored as UTF-8 in a block of the smallest size class which fits it, from 64 bytes to
+ * the slab size in powers of two. Each slab is cut into blocks of one class; freed blocks are kept
+ * per class for the next body of that class. A body is referred to by a long holding its slab,
+ * offset and length. Bodies larger than a slab, SLAB_SIZE bytes in UTF-8, are not stored and stay
+ * on the heap.
+ *
+ * Slabs are allocated as needed until the capacity is reached. A slab whose blocks are all free
+ * again goes to a free list shared by the size classes, so bodies of another size can use it; its
+ * direct memory is never released. A store which finds no room throws a
+ * {@link BodyStoreFullException}, which the queue limits handle like a full queue.
+ */
+class BodyStore {
+  private static final int MIN_BLOCK_BITS = 6;
+  private static final int SLAB_BITS = 20;
+  static final int SLAB_SIZE = 1 << SLAB_BITS;
+  private static final int CLASSES = SLAB_BITS - MIN_BLOCK_BITS + 1;
+
+  // A reference holds the slab above 42 bits, then the offset and length in 21 bits each.
+  private static final int FIELD_BITS = 21;
+  private static final long FIELD_MASK = (1L << FIELD_BITS) - 1;
+
+  private final long capacity;
+
+  // Only grows, under the lock; read without it.
+  private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+  // Guarded by this.
+  private final SizeClass[] classes = new SizeClass[CLASSES];
+  // How many blocks of each slab hold a body; guarded by this.
+  private int[] used = new int[0];
+  // The slabs no size class cuts blocks from; guarded by this.
+  private int[] freeSlabs = new int[0];
+  private int freeSlabCount;
+
+  BodyStore(long capacity) {
+    this.capacity = capacity;
+    for (int i = 0; i < CLASSES; i++) {
+      classes[i] = new SizeClass(1 << (MIN_BLOCK_BITS + i));
+    }
+  }
+
+  /**
+   * Copies the body out of the heap.
+   *
+   * @return the reference to the stored body; -1 if it is too large for a slab, to be kept on the
+   *     heap
+   * @throws BodyStoreFullException if the store is full
+   */
+  long store(String msgBody) {
+    byte[] bytes = msgBody.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > SLAB_SIZE) {
+      return -1;
+    }
+
+    long block = allocate(classOf(bytes.length));
+    int slab = (int) (block >>> FIELD_BITS);
+    int offset = (int) (block & FIELD_MASK);
+    slabs[slab].put(offset, bytes);
+    return ((long) slab << (2 * FIELD_BITS)) | ((long) offset << FIELD_BITS) | bytes.length;
+  }
+
+  /** @return the body the reference refers to */
+  String read(long ref) {
+    int slab = (int) (ref >>> (2 * FIELD_BITS));
+    int offset = (int) ((ref >>> FIELD_BITS) & FIELD_MASK);
+    byte[] bytes = new byte[(int) (ref & FIELD_MASK)];
+    slabs[slab].get(offset, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** Frees the block of the body the reference refers to, and its slab if it is empty then. */
+  synchronized void free(long ref) {
+    SizeClass sizeClass = classes[classOf((int) (ref & FIELD_MASK))];
+    int slab = (int) (ref >>> (2 * FIELD_BITS));
+    if (--used[slab] > 0) {
+      sizeClass.release(ref >>> FIELD_BITS);
+      return;
+    }
+
+    sizeClass.forget(slab);
+    if (sizeClass.slab == slab) {
+      sizeClass.slab = -1;
+    }
+    freeSlabs[freeSlabCount++] = slab;
+  }
+
+  /** @return how many bytes of direct memory the slabs take */
+  long allocated() {
+    return (long) slabs.length * SLAB_SIZE;
+  }
+
+  // A block of the class, as its slab and offset.
+  private synchronized long allocate(int classIndex) {
+    SizeClass sizeClass = classes[classIndex];
+    long block;
+    if (sizeClass.freeCount > 0) {
+      block = sizeClass.free[--sizeClass.freeCount];
+    } else {
+      if (sizeClass.slab < 0 || sizeClass.next + sizeClass.blockSize > SLAB_SIZE) {
+        sizeClass.slab = newSlab();
+        sizeClass.next = 0;
+      }
+      block = ((long) sizeClass.slab << FIELD_BITS) | sizeClass.next;
+      sizeClass.next += sizeClass.blockSize;
+    }
+    used[(int) (block >>> FIELD_BITS)]++;
+    return block;
+  }
+
+  // An empty slab: a free one if there is any, else a new one.
+  private int newSlab() {
+    if (freeSlabCount > 0) {
+      return freeSlabs[--freeSlabCount];
+    }
+    if ((long) (slabs.length + 1) * SLAB_SIZE > capacity) {
+      throw new BodyStoreFullException(capacity);
+    }
+    ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+    grown[slabs.length] = ByteBuffer.allocateDirect(SLAB_SIZE);
+    used = Arrays.copyOf(used, grown.length);
+    freeSlabs = Arrays.copyOf(freeSlabs, grown.length);
+    slabs = grown;
+    return grown.length - 1;
+  }
+
+  private static int classOf(int length) {
+    int bits = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1);
+    return Math.max(bits, MIN_BLOCK_BITS) - MIN_BLOCK_BITS;
+  }
+
+  private static class SizeClass {
+    final int blockSize;
+    // The slab blocks are cut from, and the offset of its next block; -1 before the first slab.
+    int slab = -1;
+    int next;
+    long[] free = new long[16];
+    int freeCount;
+
+    SizeClass(int blockSize) {
+      this.blockSize = blockSize;
+    }
+
+    void release(long block) {
+      if (freeCount == free.length) {
+        free = Arrays.copyOf(free, freeCount * 2);
+      }
+      free[freeCount++] = block;
+    }
+
+    // Drops the free blocks of the slab, which goes back to the store.
+    void forget(int slab) {
+      int kept = 0;
+      for (int i = 0; i < freeCount; i++) {
+        if ((int) (free[i] >>> FIELD_BITS) != slab) {
+          free[kept++] = free[i];
+        }
+      }
+      freeCount = kept;
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package com.example;
+
+/**
+ * Thrown by a {@link BodyStore} which has no room left for a message body. The store is shared by
+ * the queues of a service, so a push may find it full though its own queue is within its limits;
+ * the {@link QueueLimiter} of the queue then makes room, or waits for it, as the overflow policy
+ * says.
+ */
+public class BodyStoreFullException extends QueueFullException {
+  private static final long serialVersionUID = 1L;
+
+  BodyStoreFullException(long capacity) {
+    super("Failed to store message body: the off-heap store of " + capacity + " bytes is full", null);
+  }
+}
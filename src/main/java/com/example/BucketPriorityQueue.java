@@ -0,0 +1,192 @@
+package com.example;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A priority queue of messages with priorities in a small, fixed range: one FIFO list per priority
+ * level from 0 to levels - 1, and a bitmap of the levels which hold messages. Adding a new message
+ * and taking the first one cost O(1) and never compare two messages.
+ *
+ * Messages with a priority outside the range go to a heap instead. Those with a negative priority
+ * come before every level, the others after.
+ *
+ * Within a level, messages come out in the order of their sequence numbers. New messages are added
+ * in that order, so they go to the back of the FIFO list. Messages added again after a delivery go
+ * to a small heap of redeliveries beside it, ordered by sequence number, and the level takes the
+ * first of either; so a redelivered message is not overtaken by newer ones, and several come back
+ * in the order they were first pushed.
+ *
+ * Not thread-safe.
+ */
+class BucketPriorityQueue extends AbstractQueue<QueueEntry> {
+    static final int MAX_LEVELS = Long.SIZE;
+
+    private final Level[] levels;
+
+    // Bit i is set when levels[i] is not empty.
+    private long nonEmpty;
+
+    private final PriorityQueue<QueueEntry> outOfRange = new PriorityQueue<>();
+
+    private int size;
+
+    BucketPriorityQueue(int levelCount) {
+        if (levelCount < 1 || levelCount > MAX_LEVELS) {
+            throw new IllegalArgumentException("Priority levels must be between 1 and " + MAX_LEVELS);
+        }
+        this.levels = new Level[levelCount];
+        for (int i = 0; i < levelCount; i++) {
+            levels[i] = new Level();
+        }
+    }
+
+    @Override
+    public boolean offer(QueueEntry msg) {
+        int priority = msg.getPriority();
+        if (priority < 0 || priority >= levels.length) {
+            outOfRange.add(msg);
+        } else {
+            if (msg.getAttempts() > 0) {
+                levels[priority].redelivered.add(msg);
+            } else {
+                levels[priority].fresh.addLast(msg);
+            }
+            nonEmpty |= 1L << priority;
+        }
+        size++;
+        return true;
+    }
+
+    @Override
+    public QueueEntry poll() {
+        if (outOfRangeFirst()) {
+            size--;
+            return outOfRange.poll();
+        }
+
+        int level = Long.numberOfTrailingZeros(nonEmpty);
+        QueueEntry msg = levels[level].poll();
+        if (levels[level].isEmpty()) {
+            nonEmpty &= ~(1L << level);
+        }
+        size--;
+        return msg;
+    }
+
+    @Override
+    public QueueEntry peek() {
+        if (outOfRangeFirst()) {
+            return outOfRange.peek();
+        }
+        return levels[Long.numberOfTrailingZeros(nonEmpty)].peek();
+    }
+
+    /**
+     * @return the message which would come out last; null if the queue is empty. Costs O(1),
+     *     unless messages outside the range or redeliveries have to be looked through.
+     */
+    QueueEntry peekLast() {
+        QueueEntry last = null;
+        for (QueueEntry msg : outOfRange) {
+            if (last == null || msg.compareTo(last) > 0) {
+                last = msg;
+            }
+        }
+        if (nonEmpty != 0 && (last == null || last.getPriority() < 0)) {
+            return levels[Long.SIZE - 1 - Long.numberOfLeadingZeros(nonEmpty)].peekLast();
+        }
+        return last;
+    }
+
+    /** Removes the message, looking through the FIFO list of its level from the back. */
+    @Override
+    public boolean remove(Object o) {
+        QueueEntry msg = (QueueEntry) o;
+        int priority = msg.getPriority();
+        boolean removed;
+        if (priority < 0 || priority >= levels.length) {
+            removed = outOfRange.remove(msg);
+        } else {
+            removed = levels[priority].remove(msg);
+            if (levels[priority].isEmpty()) {
+                nonEmpty &= ~(1L << priority);
+            }
+        }
+        if (removed) {
+            size--;
+        }
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /** @return an iterator over a snapshot of the messages, not in priority order */
+    @Override
+    public Iterator<QueueEntry> iterator() {
+        List<QueueEntry> messages = new ArrayList<>(size);
+        for (Level level : levels) {
+            messages.addAll(level.fresh);
+            messages.addAll(level.redelivered);
+        }
+        messages.addAll(outOfRange);
+        return messages.iterator();
+    }
+
+    // Whether the first message is in the heap rather than in a level. Also true when the queue is
+    // empty, as polling the empty heap gives null.
+    private boolean outOfRangeFirst() {
+        if (nonEmpty == 0) {
+            return true;
+        }
+        QueueEntry first = outOfRange.peek();
+        return first != null && first.getPriority() < 0;
+    }
+
+    // The messages of one priority level.
+    private static final class Level {
+        // Messages never delivered, in the order of their sequence numbers.
+        final ArrayDeque<QueueEntry> fresh = new ArrayDeque<>();
+
+        // Messages added again after a delivery.
+        final PriorityQueue<QueueEntry> redelivered = new PriorityQueue<>();
+
+        boolean isEmpty() {
+            return fresh.isEmpty() && redelivered.isEmpty();
+        }
+
+        QueueEntry peek() {
+            return redeliveredFirst() ? redelivered.peek() : fresh.peekFirst();
+        }
+
+        QueueEntry poll() {
+            return redeliveredFirst() ? redelivered.poll() : fresh.pollFirst();
+        }
+
+        QueueEntry peekLast() {
+            QueueEntry last = fresh.peekLast();
+            for (QueueEntry msg : redelivered) {
+                if (last == null || msg.compareTo(last) > 0) {
+                    last = msg;
+                }
+            }
+            return last;
+        }
+
+        boolean remove(QueueEntry msg) {
+            return fresh.removeLastOccurrence(msg) || redelivered.remove(msg);
+        }
+
+        private boolean redeliveredFirst() {
+            QueueEntry first = redelivered.peek();
+            return first != null && (fresh.isEmpty() || first.compareTo(fresh.peekFirst()) < 0);
+        }
+    }
+}
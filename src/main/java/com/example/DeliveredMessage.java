@@ -0,0 +1,44 @@
+package com.example;
+
+/**
+ * A message delivered by an in-memory queue. Its receipt id is the prefix of the queue followed by
+ * the receipt handle in hex, built only when it is first asked for.
+ */
+class DeliveredMessage extends Message {
+  private final String receiptPrefix;
+  private final long receiptHandle;
+
+  // Built from the prefix and handle on first use.
+  private String receiptId;
+
+  DeliveredMessage(String msgBody, String receiptPrefix, long receiptHandle) {
+    super(msgBody);
+    this.receiptPrefix = receiptPrefix;
+    this.receiptHandle = receiptHandle;
+  }
+
+  @Override
+  public String getReceiptId() {
+    String id = receiptId;
+    if (id == null) {
+      id = receiptPrefix + Long.toHexString(receiptHandle);
+      receiptId = id;
+    }
+    return id;
+  }
+
+  /**
+   * @return the handle in the receipt id, if it starts with the prefix; 0 if it does not hold a
+   *     handle
+   */
+  static long parseHandle(String receiptPrefix, String receiptId) {
+    if (receiptId == null || !receiptId.startsWith(receiptPrefix) || receiptId.length() == receiptPrefix.length()) {
+      return 0;
+    }
+    try {
+      return Long.parseUnsignedLong(receiptId, receiptPrefix.length(), receiptId.length(), 16);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+}
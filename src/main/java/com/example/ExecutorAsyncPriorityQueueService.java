@@ -0,0 +1,50 @@
+package com.example;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the calls of a blocking PriorityQueueService on an executor, for the services which have
+ * no native asynchronous implementation, such as the in-memory one.
+ */
+public class ExecutorAsyncPriorityQueueService implements AsyncPriorityQueueService {
+    private final PriorityQueueService queueService;
+
+    private final Executor executor;
+
+    public ExecutorAsyncPriorityQueueService(PriorityQueueService queueService, Executor executor) {
+        this.queueService = queueService;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<Void> pushAsync(String queueUrl, String msgBody, int priority) {
+        return CompletableFuture.runAsync(() -> queueService.push(queueUrl, msgBody, priority), executor);
+    }
+
+    @Override
+    public CompletableFuture<Message> pullAsync(String queueUrl) {
+        return CompletableFuture.supplyAsync(() -> queueService.pull(queueUrl), executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String queueUrl, String receiptId) {
+        return CompletableFuture.runAsync(() -> queueService.delete(queueUrl, receiptId), executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> pushBatchAsync(String queueUrl, List<String> msgBodies, int priority) {
+        return CompletableFuture.runAsync(() -> queueService.pushBatch(queueUrl, msgBodies, priority), executor);
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> pullAsync(String queueUrl, int maxMessages) {
+        return CompletableFuture.supplyAsync(() -> queueService.pull(queueUrl, maxMessages), executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteBatchAsync(String queueUrl, List<String> receiptIds) {
+        return CompletableFuture.runAsync(() -> queueService.deleteBatch(queueUrl, receiptIds), executor);
+    }
+}
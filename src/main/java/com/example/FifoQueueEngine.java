@@ -0,0 +1,270 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * The messages of a single in-memory FIFO queue.
+ *
+ * Visible messages wait in a ready list. Delivered messages are handed to the
+ * {@link VisibilityTimer} of the service, which puts them on an expired list once their visibility
+ * timeout has passed; pulls take from the expired list first. Every message is claimed by exactly
+ * one thread through a CAS on the list it is taken from, so a pull is O(1), lock-free, never
+ * looks at an invisible message, and never hands the same message to two consumers.
+ *
+ * Delivered messages are found by the receipt handle of their {@link ReceiptTable}. Clearing the
+ * handle is what deletes a message, and its entry is recycled for a later push; its timer entry is
+ * dropped once its deadline passes. Apart from the returned copy, a pull allocates nothing.
+ *
+ * Pushes are admitted by the {@link QueueLimiter} of the queue. Shedding drops the message a pull
+ * would deliver next, the oldest one.
+ */
+class FifoQueueEngine implements VisibilityTimer.Task, QueueLimiter.Shedder {
+  private final Queue<QueueEntry> ready = new ConcurrentLinkedQueue<>();
+
+  // Delivered messages whose visibility timeout expired, in the order they expired.
+  private final Queue<QueueEntry> expired = new ConcurrentLinkedQueue<>();
+
+  private final VisibilityTimer timer;
+
+  private final ReceiptTable entries;
+
+  private final QueueLimiter limiter;
+
+  // Consumers waiting for a message park on this condition. Producers only take the lock when
+  // someone is waiting, so pushes and pulls stay lock-free otherwise.
+  private final ReentrantLock waitLock = new ReentrantLock();
+  private final Condition changed = waitLock.newCondition();
+  private final AtomicInteger waiters = new AtomicInteger();
+
+  /**
+   * @param poolSize how many entries of deleted messages are kept for reuse
+   * @param bodies where the bodies are kept off the heap; null to keep them on the heap
+   * @param limiter counts the messages of the queue against its limits
+   */
+  FifoQueueEngine(VisibilityTimer timer, int poolSize, BodyStore bodies, QueueLimiter limiter) {
+    this.timer = timer;
+    this.entries = new ReceiptTable(poolSize, bodies);
+    this.limiter = limiter;
+  }
+
+  /** @throws QueueFullException if the queue has no room for the message */
+  void push(String msgBody) {
+    long size = QueueLimits.sizeOf(msgBody);
+    limiter.admit(1, size, this, 0);
+    QueueEntry msg;
+    try {
+      msg = limiter.store(() -> entries.obtain(msgBody), this, 0);
+    } catch (RuntimeException e) {
+      limiter.release(1, size);
+      throw e;
+    }
+    msg.bodySize = size;
+    ready.add(msg);
+    signalWaiters(false);
+  }
+
+  /**
+   * Appends the messages in order; they become visible to consumers all at once.
+   *
+   * @throws QueueFullException if the queue has no room for all of them
+   */
+  void pushAll(List<String> msgBodies) {
+    long size = 0;
+    for (String msgBody : msgBodies) {
+      size += QueueLimits.sizeOf(msgBody);
+    }
+    limiter.admit(msgBodies.size(), size, this, 0);
+
+    List<QueueEntry> msgs;
+    try {
+      msgs = limiter.store(() -> obtainAll(msgBodies), this, 0);
+    } catch (RuntimeException e) {
+      limiter.release(msgBodies.size(), size);
+      throw e;
+    }
+    ready.addAll(msgs);
+    signalWaiters(true);
+  }
+
+  // Entries for all the bodies, or none if the body store is full.
+  private List<QueueEntry> obtainAll(List<String> msgBodies) {
+    List<QueueEntry> msgs = new ArrayList<>(msgBodies.size());
+    try {
+      for (String msgBody : msgBodies) {
+        QueueEntry msg = entries.obtain(msgBody);
+        msg.bodySize = QueueLimits.sizeOf(msgBody);
+        msgs.add(msg);
+      }
+    } catch (RuntimeException e) {
+      for (QueueEntry msg : msgs) {
+        entries.release(msg);
+      }
+      throw e;
+    }
+    return msgs;
+  }
+
+  /**
+   * Delivers the message at the head of the queue. Messages whose visibility timeout has expired
+   * are at the head again, ahead of the ones which were never delivered.
+   *
+   * @param nowTime the current time, used to decide which in-flight messages have expired
+   * @param visibleFrom the time the delivered message becomes visible again
+   * @return a copy of the delivered message; null if no message is visible
+   */
+  Message pull(long nowTime, long visibleFrom) {
+    timer.advance(nowTime);
+
+    QueueEntry head = expired.poll();
+    QueueEntry msg = head != null ? head : ready.poll();
+    if (msg == null) {
+      return null;
+    }
+
+    // The claimed message is owned by this thread until its handle is published.
+    long handle = entries.nextHandle(msg);
+    msg.incrementAttempts();
+    msg.setVisibleFrom(visibleFrom);
+    msg.setHandle(handle);
+    timer.schedule(visibleFrom, this, handle);
+
+    return new DeliveredMessage(entries.body(msg), "", handle);
+  }
+
+  /**
+   * Delivers the message at the head of the queue, waiting up to waitNanos for one to become
+   * visible if there is none: until a message is pushed or an in-flight message expires.
+   *
+   * @param nowTime supplies the current time, used to decide which in-flight messages have expired
+   * @param visibleFrom supplies the time the delivered message becomes visible again
+   * @return a copy of the delivered message; null if no message became visible in time, or the
+   *     thread was interrupted
+   */
+  Message pull(LongSupplier nowTime, LongSupplier visibleFrom, long waitNanos) {
+    long deadline = System.nanoTime() + waitNanos;
+    while (true) {
+      // The timer runs the tasks of other queues too, so it is advanced without the wait lock.
+      Message msg = pull(nowTime.getAsLong(), visibleFrom.getAsLong());
+      long remaining = deadline - System.nanoTime();
+      if (msg != null || remaining <= 0) {
+        return msg;
+      }
+
+      waitLock.lock();
+      // Producers and the timer check for waiters after adding a message, so a message added
+      // from here on is either seen below or signalled.
+      waiters.incrementAndGet();
+      try {
+        if (ready.isEmpty() && expired.isEmpty()) {
+          changed.awaitNanos(remaining);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      } finally {
+        waiters.decrementAndGet();
+        waitLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Delivers up to maxMessages messages from the head of the queue.
+   *
+   * @return copies of the delivered messages; empty if no message is visible
+   */
+  List<Message> pull(long nowTime, long visibleFrom, int maxMessages) {
+    List<Message> messages = new ArrayList<>(Math.min(maxMessages, 16));
+    Message msg;
+    while (messages.size() < maxMessages && (msg = pull(nowTime, visibleFrom)) != null) {
+      messages.add(msg);
+    }
+    return messages;
+  }
+
+  void delete(long nowTime, String receiptId) {
+    long handle = DeliveredMessage.parseHandle("", receiptId);
+    QueueEntry msg = entries.lookup(handle);
+    if (msg != null && !msg.isVisibleAt(nowTime) && msg.clearHandle(handle)) {
+      long size = msg.bodySize;
+      entries.release(msg);
+      limiter.release(1, size);
+    }
+  }
+
+  /**
+   * Makes the message delivered with the receipt id visible again at visibleFrom instead, if it is
+   * still in flight. The timer entry of the old deadline is left to expire unused.
+   */
+  void changeVisibility(long nowTime, String receiptId, long visibleFrom) {
+    long handle = DeliveredMessage.parseHandle("", receiptId);
+    QueueEntry msg = entries.lookup(handle);
+    if (msg == null) {
+      return;
+    }
+    synchronized (msg) {
+      if (msg.getHandle() != handle || msg.isVisibleAt(nowTime)) {
+        return;
+      }
+      msg.setVisibleFrom(visibleFrom);
+    }
+    timer.schedule(visibleFrom, this, handle);
+  }
+
+  QueueStats stats() {
+    return limiter.stats();
+  }
+
+  // Drops the message at the head of the queue, whatever the priority: a FIFO queue has none.
+  @Override
+  public long shed(int priority) {
+    QueueEntry head = expired.poll();
+    QueueEntry msg = head != null ? head : ready.poll();
+    if (msg == null) {
+      return QueueLimiter.NONE_VISIBLE;
+    }
+    long size = msg.bodySize;
+    entries.release(msg);
+    return size;
+  }
+
+  private void signalWaiters(boolean all) {
+    if (waiters.get() == 0) {
+      return;
+    }
+    waitLock.lock();
+    try {
+      if (all) {
+        changed.signalAll();
+      } else {
+        changed.signal();
+      }
+    } finally {
+      waitLock.unlock();
+    }
+  }
+
+  // Puts a delivered message on the expired list, unless it was deleted or rescheduled since.
+  @Override
+  public boolean expire(long handle, long deadline) {
+    QueueEntry msg = entries.lookup(handle);
+    if (msg == null) {
+      return false;
+    }
+    synchronized (msg) {
+      if (msg.getVisibleFrom() != deadline || !msg.clearHandle(handle)) {
+        return false;
+      }
+    }
+    expired.add(msg);
+    signalWaiters(false);
+    return true;
+  }
+}
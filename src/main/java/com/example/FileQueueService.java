@@ -1,27 +1,30 @@
 package com.example;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-
-import static java.nio.file.StandardCopyOption.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.LongSupplier;
 
 public class FileQueueService implements QueueService {
   private final String queueDir;
 
-  // The character used to separate fields of the record in the message file.
-  // Message ID should never contain this character.
+  // The character which separated the fields of a record in the text message files of earlier
+  // versions, needed to convert them.
   private final String fieldDelimiter;
 
   // Visibility Timeout (in seconds).
@@ -29,211 +32,436 @@ public class FileQueueService implements QueueService {
   // before the service make the message visible for delivery again.
   private final int visibilityTimeout;
 
+  // Storage mode of the queue files: "single" keeps every queue in one messages file which is
+  // updated in place, "segmented" appends to segment files and a state log.
+  private final boolean segmented;
+
+  // Size (in bytes) after which a new segment file is started in segmented mode.
+  private final long segmentSize;
+
+  // The largest size (in bytes) of the messages file of a queue in single mode.
+  private final long maxFileSize;
+
+  // When pushed messages are flushed to the storage device: "none" leaves it to the operating
+  // system, "batch" flushes every batch before the pushes return, "interval" flushes at most
+  // fileSyncInterval milliseconds after a batch was written.
+  private enum FileSync { NONE, BATCH, INTERVAL }
+
+  private final FileSync fileSync;
+
+  private final long fileSyncInterval;
+
+  // How long (in microseconds) a push waits for concurrent pushes to the same queue, so they are
+  // written as one batch.
+  private final long groupCommitWindow;
+
+  // How often (in milliseconds) a pull waiting for a message checks the queue again, to find the
+  // messages whose visibility timeout expired, and those pushed by other processes where the
+  // queue folder cannot be watched.
+  private final long pollInterval;
+
+  // How many messages and bytes each queue may hold, and what a push to a full queue does.
+  private final QueueLimits limits;
+
+  // Compacts queues in the background.
+  private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "file-queue-compactor");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // Flushes queues in the background, in the "interval" sync mode.
+  private static final ScheduledExecutorService SYNCER = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "file-queue-syncer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // Visibility timeouts (in seconds) set for single queues by this service, by queue name.
+  private final Map<String, Integer> visibilityTimeouts = new ConcurrentHashMap<>();
+
+  // The queue files opened by this service, by queue name.
+  private final Map<String, FileQueueStore> stores = new ConcurrentHashMap<>();
+
+  // The batches of pushed messages, by queue name.
+  private final Map<String, GroupCommit> groupCommits = new ConcurrentHashMap<>();
+
+  // The queues with a flush scheduled, by queue name.
+  private final Set<String> syncsScheduled = ConcurrentHashMap.newKeySet();
+
   // An optional object to tell the queue service current time.
   // Set it when we want an alternative time to the system time, e.g. when test.
   private LongSupplier timeSupplier;
 
   public FileQueueService() {
+    this(loadConfig());
+  }
+
+  FileQueueService(Properties confInfo) {
+    queueDir = confInfo.getProperty("queueDirectory", "nzhou-qs");
+    fieldDelimiter = confInfo.getProperty("fieldDelimiter", ":");
+    visibilityTimeout = Integer.parseInt(confInfo.getProperty("visibilityTimeout", "30"));
+    segmented = "segmented".equals(confInfo.getProperty("fileStorage", "single"));
+    segmentSize = Long.parseLong(confInfo.getProperty("segmentSize", "16777216"));
+    maxFileSize = Long.parseLong(confInfo.getProperty("maxFileSize", String.valueOf(MappedSegment.MAX_SIZE)));
+    fileSync = FileSync.valueOf(confInfo.getProperty("fileSync", "none").toUpperCase());
+    fileSyncInterval = Long.parseLong(confInfo.getProperty("fileSyncInterval", "1000"));
+    groupCommitWindow = Long.parseLong(confInfo.getProperty("groupCommitWindow", "0"));
+    pollInterval = Long.parseLong(confInfo.getProperty("pollInterval", "100"));
+    limits = QueueLimits.fromConfig(confInfo);
+  }
+
+  static Properties loadConfig() {
     Properties confInfo = new Properties();
 
     try (InputStream inStream =
-        getClass().getClassLoader().getResourceAsStream("config.properties")) {
+        FileQueueService.class.getClassLoader().getResourceAsStream("config.properties")) {
       confInfo.load(inStream);
     } catch (IOException e) {
       e.printStackTrace();
     }
 
-    queueDir = confInfo.getProperty("queueDirectory", "nzhou-qs");
-    fieldDelimiter = confInfo.getProperty("fieldDelimiter", ":");
-    visibilityTimeout = Integer.parseInt(confInfo.getProperty("visibilityTimeout", "30"));
+    return confInfo;
   }
 
   public void setTimeSupplier(LongSupplier timeSupplier) {
     this.timeSupplier = timeSupplier;
   }
 
-  private void lock(File lock) throws InterruptedException {
-    while (!lock.mkdir()) {
-      Thread.sleep(50);
+  /** @throws QueueFullException if the queue is full and no room was made for the message */
+  @Override
+  public void push(String queueUrl, String messageBody) {
+    try {
+      pushAsync(queueUrl, messageBody).join();
+    } catch (CompletionException e) {
+      rethrowIfFull(e);
+      e.getCause().printStackTrace();
     }
   }
 
-  private void unlock(File lock) {
-    lock.delete();
+  /**
+   * Pushes a message together with the messages other threads push to the same queue at the same
+   * time.
+   *
+   * @param queueUrl
+   * @param messageBody
+   * @return completed once the message has been written, and flushed in the "batch" sync mode;
+   *     completed exceptionally with a {@link QueueFullException} if the queue is full and no room
+   *     was made for the message
+   */
+  public CompletableFuture<Void> pushAsync(String queueUrl, String messageBody) {
+    return groupCommit(fromUrl(queueUrl)).submit(messageBody);
   }
 
+  /** @throws QueueFullException if the queue is full and no room was made for the messages */
   @Override
-  public void push(String queueUrl, String messageBody) {
-    String queueName = fromUrl(queueUrl);
-    File messages = getMessagesFile(queueName);
-    File lock = getLockFile(queueName);
+  public void pushBatch(String queueUrl, List<String> messageBodies) {
     try {
-      lock(lock);
-    } catch (InterruptedException e) {
-      e.printStackTrace();
-      unlock(lock);
-      return;
+      groupCommit(fromUrl(queueUrl)).submit(messageBodies).join();
+    } catch (CompletionException e) {
+      rethrowIfFull(e);
+      e.getCause().printStackTrace();
     }
+  }
+
+  @Override
+  public Message pull(String queueUrl) {
+    String queueName = fromUrl(queueUrl);
+    return withStore(queueName, store -> store.pull(now(), visibleFrom(queueName)));
+  }
+
+  /**
+   * Waits for a push to the queue, from this JVM or, through a watch of the queue folder, from
+   * another process; see {@link QueueNotifier}. Messages whose visibility timeout expires are
+   * found by checking the queue again every pollInterval milliseconds.
+   */
+  @Override
+  public Message pull(String queueUrl, long waitTime, TimeUnit unit) {
+    String queueName = fromUrl(queueUrl);
+    QueueNotifier notifier = QueueNotifier.forQueue(Paths.get(queueDir, queueName));
+    long deadline = System.nanoTime() + unit.toNanos(waitTime);
+
+    while (true) {
+      long pushes = notifier.pushes();
+      Message msg = pull(queueUrl);
+      long remaining = deadline - System.nanoTime();
+      if (msg != null || remaining <= 0) {
+        return msg;
+      }
 
-    if (Files.notExists(messages.toPath())) {
       try {
-        // Create the empty file with default permissions.
-        Files.createFile(messages.toPath());
-      } catch (IOException e) {
-        // Some sort of failure, such as permissions.
-        System.err.format("createFile error: %s%n", e);
-        unlock(lock);
-        return;
+        notifier.await(pushes, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(pollInterval)));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
       }
     }
+  }
 
-    try (PrintWriter pw = new PrintWriter(new FileWriter(messages, true))) { // append
-      pw.println(createRecord(0, messageBody));
-    } catch (IOException e) {
-      e.printStackTrace();
-    } finally {
-      unlock(lock);
-    }
+  @Override
+  public void delete(String queueUrl, String receiptId) {
+    withStore(fromUrl(queueUrl), store -> {
+      store.delete(now(), receiptId);
+      return null;
+    });
   }
 
   @Override
-  public Message pull(String queueUrl) {
-    Message msg = null;
+  public List<Message> pull(String queueUrl, int maxMessages) {
     String queueName = fromUrl(queueUrl);
-    File messageFile = getMessagesFile(queueName);
-    File lock = getLockFile(queueName);
+    List<Message> messages = withStore(queueName,
+        store -> store.pull(now(), visibleFrom(queueName), maxMessages));
+    return messages == null ? Collections.emptyList() : messages;
+  }
 
-    try {
-      lock(lock);
-    } catch (InterruptedException e2) {
-      unlock(lock);
+  @Override
+  public List<Message> pull(String queueUrl, int maxMessages, int visibilityTimeout) {
+    List<Message> messages = withStore(fromUrl(queueUrl),
+        store -> store.pull(now(), now() + TimeUnit.SECONDS.toMillis(visibilityTimeout), maxMessages));
+    return messages == null ? Collections.emptyList() : messages;
+  }
+
+  @Override
+  public void deleteBatch(String queueUrl, List<String> receiptIds) {
+    withStore(fromUrl(queueUrl), store -> {
+      store.delete(now(), receiptIds);
       return null;
-    }
+    });
+  }
 
-    // create a temporary file
-    Path queuePath = Paths.get(queueDir);
-    Path tempFile;
-    try {
-      tempFile = Files.createTempFile(queuePath, null, ".msg");
-    } catch (IOException e1) {
-      unlock(lock);
+  @Override
+  public void changeVisibility(String queueUrl, String receiptId, int visibilityTimeout) {
+    withStore(fromUrl(queueUrl), store -> {
+      store.changeVisibility(now(), receiptId, now() + TimeUnit.SECONDS.toMillis(visibilityTimeout));
       return null;
+    });
+  }
+
+  /**
+   * Sets the visibility timeout of a queue for the pulls of this service; other services and
+   * processes keep using their own.
+   */
+  @Override
+  public void setVisibilityTimeout(String queueUrl, int visibilityTimeout) {
+    visibilityTimeouts.put(fromUrl(queueUrl), visibilityTimeout);
+  }
+
+  /**
+   * Deletes the messages in a queue specified by parameter queueUrl.
+   *
+   * @param queueUrl
+   */
+  protected void purgeQueue(String queueUrl) {
+    withStore(fromUrl(queueUrl), store -> {
+      store.purge();
+      return null;
+    });
+  }
+
+  /**
+   * @return how many messages this service delivered again because they were not deleted before
+   *     their visibility timeout expired
+   */
+  public long getExpirations() {
+    long expirations = 0;
+    for (FileQueueStore store : stores.values()) {
+      expirations += store.expirations();
     }
+    return expirations;
+  }
 
-    try (BufferedReader reader = new BufferedReader(new FileReader(messageFile));
-        PrintWriter pwTemp = new PrintWriter(new FileWriter(tempFile.toFile(), true))) {
-      String msgLine = null;
-
-      while ((msgLine = reader.readLine()) != null) {
-        if (msg == null) {
-          msg = getVisibleMessage(msgLine);
-
-          if (msg == null) {
-            pwTemp.println(msgLine);
-          } else {
-            pwTemp.println(getDeliveredRecord(msgLine, msg.getReceiptId()));
-          }
-        } else {
-          pwTemp.println(msgLine);
-        }
+  /**
+   * @return how many messages the queue holds, visible or in flight, and the size of their bodies,
+   *     as every process sees them; null if the queue files could not be read
+   */
+  public QueueStats getQueueStats(String queueUrl) {
+    return withStore(fromUrl(queueUrl), store -> new QueueStats(store.messages(), store.bytes()));
+  }
+
+  private GroupCommit groupCommit(String queueName) {
+    return groupCommits.computeIfAbsent(queueName, name -> new GroupCommit(
+        pushes -> writeBatch(name, pushes), TimeUnit.MICROSECONDS.toNanos(groupCommitWindow)));
+  }
+
+  /**
+   * Writes the messages of the pushes, in order, admitting each push on its own once the queue has
+   * room for it: only the pushes which find no room fail with a {@link QueueFullException}. With
+   * the BLOCK policy the pushes which fit are written at once, and the rest wait for room, in
+   * order. Deletes by other processes are not signalled, so waiting pushes check the queue again
+   * every pollInterval milliseconds.
+   */
+  private void writeBatch(String queueName, List<GroupCommit.PendingPush> pushes) throws IOException {
+    long deadline = System.nanoTime() + limits.overflowTimeoutNanos();
+    List<GroupCommit.PendingPush> waiting = pushes;
+    while (true) {
+      List<GroupCommit.PendingPush> admitted = new ArrayList<>();
+      List<GroupCommit.PendingPush> candidates = waiting;
+      waiting = withStore(queueName, store -> admit(queueName, store, candidates, admitted));
+      if (waiting == null) {
+        throw new IOException("Failed to write to queue " + queueName);
       }
-    } catch (IOException e) {
-      e.printStackTrace();
-    } finally {
-      try { // if msg has been set then update the queue file
-        if (msg != null) {
-          Files.move(tempFile, messageFile.toPath(), REPLACE_EXISTING);
-        } else {
-          Files.delete(tempFile);
+      if (!admitted.isEmpty()) {
+        pushed(queueName);
+        for (GroupCommit.PendingPush push : admitted) {
+          push.written();
         }
-      } catch (IOException x) {
+      }
+      if (waiting.isEmpty()) {
+        return;
       }
 
-      unlock(lock);
+      long remaining = deadline - System.nanoTime();
+      boolean timedOut = remaining <= 0;
+      if (!timedOut) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(pollInterval)));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          timedOut = true;
+        }
+      }
+      if (timedOut) {
+        for (GroupCommit.PendingPush push : waiting) {
+          push.failed(new QueueFullException(queueName));
+        }
+        return;
+      }
     }
-
-    return msg;
   }
 
-  @Override
-  public void delete(String queueUrl, String receiptId) {
-    String queueName = fromUrl(queueUrl);
-    File messageFile = getMessagesFile(queueName);
-    File lock = getLockFile(queueName);
-    Path tempFile;
+  /**
+   * Admits the pushes in order while the queue has room for them and writes the admitted ones. A
+   * push which finds no room, under the limits or in the files of the queue, fails, except with the
+   * BLOCK policy: then it and every later push is left waiting, so none overtakes it.
+   *
+   * @return the pushes left waiting
+   */
+  private List<GroupCommit.PendingPush> admit(String queueName, FileQueueStore store,
+      List<GroupCommit.PendingPush> pushes, List<GroupCommit.PendingPush> admitted) throws IOException {
+    List<GroupCommit.PendingPush> waiting = Collections.emptyList();
+    List<String> messageBodies = new ArrayList<>();
+    long size = 0;
+    for (int i = 0; i < pushes.size(); i++) {
+      GroupCommit.PendingPush push = pushes.get(i);
+      long pushSize = 0;
+      for (String messageBody : push.messageBodies) {
+        pushSize += QueueLimits.sizeOf(messageBody);
+      }
 
-    try {
-      lock(lock);
+      if (!limits.allows(push.messageBodies.size(), pushSize)) {
+        // It would not fit into an empty queue.
+        push.failed(new QueueFullException(queueName));
+      } else if (store.hasRoom(messageBodies.size() + push.messageBodies.size(), size + pushSize)
+          && makeRoom(store, messageBodies.size() + push.messageBodies.size(), size + pushSize)) {
+        admitted.add(push);
+        messageBodies.addAll(push.messageBodies);
+        size += pushSize;
+      } else if (limits.overflow() == QueueLimits.Overflow.BLOCK) {
+        waiting = pushes.subList(i, pushes.size());
+        break;
+      } else {
+        push.failed(new QueueFullException(queueName));
+      }
+    }
 
-      // create a temporary file
-      Path queuePath = Paths.get(queueDir);
-      tempFile = Files.createTempFile(queuePath, null, ".msg");
-    } catch (InterruptedException | IOException e) {
-      unlock(lock);
-      return;
+    if (!messageBodies.isEmpty()) {
+      store.push(messageBodies);
+      if (fileSync == FileSync.BATCH) {
+        store.force();
+      }
     }
+    return waiting;
+  }
 
-    boolean processed = false;
+  // Wakes the pulls waiting for the queue, and schedules a flush in the "interval" sync mode.
+  private void pushed(String queueName) {
+    QueueNotifier.forQueue(Paths.get(queueDir, queueName)).notifyPushed();
+
+    if (fileSync == FileSync.INTERVAL && syncsScheduled.add(queueName)) {
+      SYNCER.schedule(() -> {
+        // Batches written from now on need another flush.
+        syncsScheduled.remove(queueName);
+        withStore(queueName, store -> {
+          store.force();
+          return null;
+        });
+      }, fileSyncInterval, TimeUnit.MILLISECONDS);
+    }
+  }
 
-    try (BufferedReader reader = new BufferedReader(new FileReader(messageFile));
-        PrintWriter writer = new PrintWriter(new FileWriter(tempFile.toFile(), true))) {
-      String msgLine = null;
-      while ((msgLine = reader.readLine()) != null) {
-        if (isToDelete(msgLine, receiptId)) {
-          processed = true;
-        } else {
-          writer.println(msgLine);
-        }
+  /**
+   * Makes the queue ready to take count messages of size bytes: with the SHED policy, by deleting
+   * the messages a pull would deliver next. The file queues have no priorities, so the oldest
+   * visible messages go first.
+   *
+   * @return true if the queue has room for the messages
+   */
+  private boolean makeRoom(FileQueueStore store, int count, long size) throws IOException {
+    if (!limits.isBounded()) {
+      return true;
+    }
+    while (!limits.allows(store.messages() + count, store.bytes() + size)) {
+      if (limits.overflow() != QueueLimits.Overflow.SHED) {
+        return false;
       }
-    } catch (IOException e) {
-      e.printStackTrace();
-    } finally {
-      try { // if processed then update the queue file
-        if (processed) {
-          Files.move(tempFile, messageFile.toPath(), REPLACE_EXISTING);
-        } else {
-          Files.delete(tempFile);
-        }
-      } catch (IOException e) {
-        e.printStackTrace();
+      if (!store.dropOldest(now())) {
+        return false;
       }
+    }
+    return true;
+  }
 
-      unlock(lock);
+  // A push which failed as the queue is full reports it to the caller, unlike other failures.
+  private static void rethrowIfFull(CompletionException e) {
+    if (e.getCause() instanceof QueueFullException) {
+      throw (QueueFullException) e.getCause();
     }
   }
 
+  // An operation on the files of a queue.
+  private interface StoreOperation<T> {
+    T apply(FileQueueStore store) throws IOException;
+  }
+
   /**
-   * Deletes the messages in a queue specified by parameter queueUrl.
+   * Run an operation on the files of a queue while holding the queue lock, and schedule compaction
+   * if the operation asked for it.
    *
-   * @param queueUrl
+   * @return the result of the operation; null if it failed
    */
-  protected void purgeQueue(String queueUrl) {
-    String queueName = fromUrl(queueUrl);
-    File messageFile = getMessagesFile(queueName);
-    File lock = getLockFile(queueName);
-
+  private <T> T withStore(String queueName, StoreOperation<T> operation) {
+    QueueLock lock = getLock(queueName);
     try {
-      lock(lock);
-    } catch (InterruptedException e) {
+      lock.lock();
+    } catch (InterruptedException | IOException e) {
       e.printStackTrace();
-      unlock(lock);
-      return;
+      return null;
     }
 
-    if (Files.exists(messageFile.toPath())) {
-      try {
-        Files.delete(messageFile.toPath());
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-    }
     try {
-      // Create the empty file with default permissions.
-      Files.createFile(messageFile.toPath());
+      FileQueueStore store = stores.get(queueName);
+      if (store == null) {
+        Path queueFolder = Paths.get(queueDir, queueName);
+        store = segmented
+            ? new SegmentedLog(queueFolder, segmentSize)
+            : new MessageFile(queueFolder.resolve("messages"), fieldDelimiter, maxFileSize);
+        stores.put(queueName, store);
+      }
+
+      T result = operation.apply(store);
+      if (store.takeCompactionRequest()) {
+        COMPACTOR.execute(() -> withStore(queueName, s -> {
+          s.compact();
+          return null;
+        }));
+      }
+      return result;
     } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    } finally {
+      lock.unlock();
     }
-
-    unlock(lock);
   }
 
   /**
@@ -258,19 +486,13 @@ public class FileQueueService implements QueueService {
     }
   }
 
-  /** Get File for the queue */
-  private File getMessagesFile(String queueName) {
-    Path path = Paths.get(queueDir, queueName, "messages");
-    return path.toFile();
-  }
-
   /**
-   * Get the lock file for the queue, and also make sure the directory for the queue exists.
+   * Get the lock for the queue, and also make sure the directory for the queue exists.
    *
    * @param queueName
    * @return
    */
-  private File getLockFile(String queueName) {
+  private QueueLock getLock(String queueName) {
     Path queueFolder = Paths.get(queueDir, queueName);
 
     if (Files.notExists(queueFolder)) {
@@ -282,86 +504,12 @@ public class FileQueueService implements QueueService {
       }
     }
 
-    Path path = Paths.get(queueDir, queueName, ".lock");
-    return path.toFile();
-  }
-
-  //
-  // Message record helper functions.
-  // Record format:
-  //		<prior attempts>delimiter<visible from time>delimiter<receipt id>delimiter<message body>
-  //            0													1													2										3
-  //
-
-  private String createRecord(long visibleFrom, String message) {
-    return "0" + fieldDelimiter + visibleFrom + fieldDelimiter + fieldDelimiter + message;
-  }
-
-  /**
-   * If the record represent a visible message then construct a message from the record.
-   *
-   * @return A message; null if the record does not represent a visible message.
-   */
-  private Message getVisibleMessage(String record) {
-    if (record == null || record == "") {
-      return null;
-    }
-
-    String[] fields = record.split(fieldDelimiter, 4);
-
-    if (Long.parseLong(fields[1]) < now()) {
-      Message msg = new Message(fields[3], UUID.randomUUID().toString());
-
-      return msg;
-    } else {
-      return null;
-    }
-  }
-
-  /**
-   * Update the message record after delivery. This will increase attempts by 1, set visibleFrom to
-   * visibility timeout from now, update receipt id specified parameter receiptId.
-   *
-   * @param
-   * @return
-   */
-  private String getDeliveredRecord(String record, String receiptId) {
-    String[] fields = record.split(fieldDelimiter, 4);
-    if (fields.length < 4) {
-      return record;
-    }
-
-    int attempts = Integer.parseInt(fields[0]) + 1;
-    long visibleFrom = now() + TimeUnit.SECONDS.toMillis(visibilityTimeout);
-
-    return attempts
-        + fieldDelimiter
-        + visibleFrom
-        + fieldDelimiter
-        + receiptId
-        + fieldDelimiter
-        + fields[3];
+    return QueueLock.forQueue(queueFolder);
   }
 
-  /**
-   * Determine whether the record should be deleted.
-   *
-   * @param record
-   * @param receiptId
-   * @return true if the record's receiptId matches the receiptId specified by parameter receiptId
-   *     and the record is invisible; false otherwise.
-   */
-  private boolean isToDelete(String record, String receiptId) {
-    String[] fields = record.split(fieldDelimiter, 4);
-    if (fields.length < 4) {
-      return true;
-    }
-
-    if (Long.parseLong(fields[1]) >= now() && fields[2].equals(receiptId)) {
-      return true;
-    }
-
-    return false;
+  // When a message pulled from the queue now becomes visible again.
+  private long visibleFrom(String queueName) {
+    return now() + TimeUnit.SECONDS.toMillis(visibilityTimeouts.getOrDefault(queueName, visibilityTimeout));
   }
 
   long now() {
@@ -0,0 +1,99 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The files of one queue of the FileQueueService. All methods must be called while holding the
+ * queue lock.
+ */
+interface FileQueueStore extends Closeable {
+  /** Appends the messages, in order, with one write. */
+  void push(List<String> messageBodies) throws IOException;
+
+  /**
+   * Delivers the message at the head of the queue.
+   *
+   * @param nowTime the current time, used to decide which messages are visible
+   * @param visibleFrom the time the delivered message becomes visible again
+   * @return the delivered message; null if no message is visible
+   */
+  Message pull(long nowTime, long visibleFrom) throws IOException;
+
+  /**
+   * Delivers up to maxMessages messages from the head of the queue, under a single acquisition of
+   * the queue lock.
+   *
+   * @return the delivered messages; empty if no message is visible
+   */
+  default List<Message> pull(long nowTime, long visibleFrom, int maxMessages) throws IOException {
+    List<Message> messages = new ArrayList<>(Math.min(maxMessages, 16));
+    Message msg;
+    while (messages.size() < maxMessages && (msg = pull(nowTime, visibleFrom)) != null) {
+      messages.add(msg);
+    }
+    return messages;
+  }
+
+  /**
+   * Deletes the message a pull would deliver next without delivering it, so it counts as neither a
+   * delivery nor an expiration.
+   *
+   * @param nowTime the current time, used to decide which messages are visible
+   * @return false if no message is visible
+   */
+  boolean dropOldest(long nowTime) throws IOException;
+
+  /**
+   * Returns true if the files of the queue can take count more messages of size bytes in all.
+   * Files of bounded size ask for compaction when they cannot.
+   */
+  default boolean hasRoom(int count, long size) throws IOException {
+    return true;
+  }
+
+  /** Deletes the message delivered with the receipt id, if it is still invisible. */
+  void delete(long nowTime, String receiptId) throws IOException;
+
+  /** Deletes the messages delivered with the receipt ids which are still invisible. */
+  default void delete(long nowTime, List<String> receiptIds) throws IOException {
+    for (String receiptId : receiptIds) {
+      delete(nowTime, receiptId);
+    }
+  }
+
+  /**
+   * Makes the message delivered with the receipt id visible again at visibleFrom, if it is still
+   * invisible.
+   */
+  void changeVisibility(long nowTime, String receiptId, long visibleFrom) throws IOException;
+
+  /**
+   * Returns how many messages this store delivered again because their visibility timeout
+   * expired. May be called without holding the queue lock.
+   */
+  long expirations();
+
+  /** Returns how many messages the queue holds, visible or in flight. */
+  long messages() throws IOException;
+
+  /** Returns the size of the bodies of those messages, in UTF-8. */
+  long bytes() throws IOException;
+
+  /** Deletes every message of the queue. */
+  void purge() throws IOException;
+
+  /** Flushes everything written so far to the storage device. */
+  void force() throws IOException;
+
+  /**
+   * Returns true if an operation since the last call left something for compaction to do. The
+   * request is cleared, so the caller schedules compaction only once.
+   */
+  boolean takeCompactionRequest();
+
+  /** Reclaims the space of deleted messages. */
+  void compact() throws IOException;
+}
@@ -0,0 +1,145 @@
+package com.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Collects the messages pushed concurrently to one queue of the FileQueueService, so that they are
+ * written together: one acquisition of the queue lock, one append and at most one flush per batch.
+ *
+ * The first producer which finds no write in progress becomes the writer. It waits for the batching
+ * window, if there is one, then writes every message submitted so far, its own included, and
+ * completes their futures. Messages submitted meanwhile make up the next batch, which the producer
+ * hands to a background writer rather than write it too, so no producer keeps writing the batches
+ * of others. The other producers do not wait for the queue lock, only for their futures.
+ */
+class GroupCommit {
+  /**
+   * Writes the messages of one batch of pushes, in order. The writer may report the outcome of
+   * each push itself; the pushes it leaves unreported count as written once it returns, and as
+   * failed if it throws.
+   */
+  interface BatchWriter {
+    void write(List<PendingPush> batch) throws IOException;
+  }
+
+  // Writes the batches producers leave behind; a thread is only busy while a queue has some.
+  private static final ExecutorService WRITERS = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, "group-commit-writer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final BatchWriter writer;
+  private final long windowNanos;
+
+  private final ConcurrentLinkedQueue<PendingPush> pending = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean writing = new AtomicBoolean();
+
+  /**
+   * @param writer writes the batches
+   * @param windowNanos how long the writer waits for more messages before writing a batch
+   */
+  GroupCommit(BatchWriter writer, long windowNanos) {
+    this.writer = writer;
+    this.windowNanos = windowNanos;
+  }
+
+  /**
+   * Adds a message to the next batch, and writes that batch itself unless another thread is
+   * already writing.
+   *
+   * @return completed once the message has been written, exceptionally if writing failed
+   */
+  CompletableFuture<Void> submit(String messageBody) {
+    return submit(Collections.singletonList(messageBody));
+  }
+
+  /**
+   * Adds several messages to the next batch, in order, and writes that batch itself unless
+   * another thread is already writing.
+   *
+   * @return completed once the messages have been written, exceptionally if writing failed
+   */
+  CompletableFuture<Void> submit(List<String> messageBodies) {
+    PendingPush push = new PendingPush(messageBodies);
+    pending.add(push);
+
+    // The push was queued before the flag was taken, so the batch written holds it.
+    if (writing.compareAndSet(false, true)) {
+      writeBatch();
+      if (!pending.isEmpty() && writing.compareAndSet(false, true)) {
+        WRITERS.execute(this::writeBatches);
+      }
+    }
+    return push.future;
+  }
+
+  // Writes batches until none is pending. Must be called with the writing flag taken.
+  private void writeBatches() {
+    do {
+      writeBatch();
+    } while (!pending.isEmpty() && writing.compareAndSet(false, true));
+  }
+
+  // Writes the pending pushes, then clears the writing flag. Whoever clears the flag checks for
+  // pending pushes again, so none is left behind.
+  private void writeBatch() {
+    try {
+      if (windowNanos > 0) {
+        LockSupport.parkNanos(windowNanos);
+      }
+      write();
+    } finally {
+      writing.set(false);
+    }
+  }
+
+  private void write() {
+    List<PendingPush> batch = new ArrayList<>();
+    PendingPush push;
+    while ((push = pending.poll()) != null) {
+      batch.add(push);
+    }
+
+    // Pushes already reported keep their outcome.
+    try {
+      writer.write(batch);
+      for (PendingPush p : batch) {
+        p.written();
+      }
+    } catch (IOException | RuntimeException e) {
+      for (PendingPush p : batch) {
+        p.failed(e);
+      }
+    }
+  }
+
+  /** The messages of one submit, and the future of its caller. */
+  static class PendingPush {
+    final List<String> messageBodies;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    PendingPush(List<String> messageBodies) {
+      this.messageBodies = messageBodies;
+    }
+
+    /** Reports the messages written. */
+    void written() {
+      future.complete(null);
+    }
+
+    /** Reports the messages not written. */
+    void failed(Throwable cause) {
+      future.completeExceptionally(cause);
+    }
+  }
+}
@@ -2,88 +2,179 @@ package com.example;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.*;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 public class InMemoryPriorityQueueService implements PriorityQueueService {
 
-    private final Map<String, PriorityBlockingQueue<PriorityMessage>> queues;
+    private final Map<String, ShardedPriorityQueueEngine> queues;
 
     private long visibilityTimeout;
 
+    // How many shards each queue is split into, and whether pulls may trade strict priority order
+    // for less contention between them.
+    private final int shards;
+    private final boolean relaxed;
+
+    // Priorities from 0 to priorityLevels - 1 are kept in buckets rather than a heap; 0 for none.
+    private final int priorityLevels;
+
+    // How many entries of deleted messages each shard keeps for reuse.
+    private final int entryPoolSize;
+
+    // Keeps the bodies of all queues off the heap; null to keep them on the heap.
+    private final BodyStore bodies;
+
+    // How many messages and bytes each queue may hold, and what a push to a full queue does.
+    private final QueueLimits limits;
+
+    // Visibility timeouts (in seconds) set for single queues, by queue URL.
+    private final Map<String, Integer> visibilityTimeouts = new ConcurrentHashMap<>();
+
+    // Hands delivered messages back to their queue once their visibility timeout expires.
+    private final VisibilityTimer timer = new VisibilityTimer();
+
     InMemoryPriorityQueueService() {
+        this(loadConfig());
+    }
+
+    InMemoryPriorityQueueService(Properties confInfo) {
         this.queues = new ConcurrentHashMap<>();
+        this.visibilityTimeout = Integer.parseInt(confInfo.getProperty("visibilityTimeout", "30"));
+        this.shards = Math.max(1, Integer.parseInt(confInfo.getProperty("priorityShards", "1")));
+        this.relaxed = Boolean.parseBoolean(confInfo.getProperty("relaxedPriority", "false"));
+        this.priorityLevels = Integer.parseInt(confInfo.getProperty("priorityLevels", "0"));
+        this.entryPoolSize = Integer.parseInt(confInfo.getProperty("entryPoolSize", "65536"));
+        long offHeapCapacity = Long.parseLong(confInfo.getProperty("offHeapCapacity", "0"));
+        this.bodies = offHeapCapacity > 0 ? new BodyStore(offHeapCapacity) : null;
+        this.limits = QueueLimits.fromConfig(confInfo);
+    }
+
+    private static Properties loadConfig() {
         String propFileName = "config.properties";
         Properties confInfo = new Properties();
 
-        try (InputStream inStream = getClass().getClassLoader().getResourceAsStream(propFileName)) {
+        try (InputStream inStream = InMemoryPriorityQueueService.class.getClassLoader().getResourceAsStream(propFileName)) {
             confInfo.load(inStream);
         } catch (IOException e) {
             e.printStackTrace();
         }
-
-        this.visibilityTimeout = Integer.parseInt(confInfo.getProperty("visibilityTimeout", "30"));
+        return confInfo;
     }
 
+    /**
+     * @throws QueueFullException if the queue is full and no room was made for the message; when
+     *     shedding, a message of no higher priority than every visible one is dropped instead
+     */
     @Override
     public void push(String queueUrl, String msgBody, int priority) {
-        PriorityBlockingQueue<PriorityMessage> queue = queues.get(queueUrl);
-        if (queue == null) {
-            queue = new PriorityBlockingQueue<PriorityMessage>();
-            queues.put(queueUrl, queue);
-        }
-        PriorityMessage msg = new PriorityMessage(msgBody, priority);
-        queue.add(msg);
+        ShardedPriorityQueueEngine queue = queues.computeIfAbsent(queueUrl, this::newQueue);
+        queue.push(msgBody, priority);
     }
 
     @Override
     public Message pull(String queueUrl) {
-        PriorityBlockingQueue<PriorityMessage> queue = queues.get(queueUrl);
+        ShardedPriorityQueueEngine queue = queues.get(queueUrl);
         if (queue == null) {
             return null;
         }
 
-        long nowTime = now();
-        List<PriorityMessage> invisibleMessages = new ArrayList<>(); // Temporary storage for invisible messages
-
-        while (!queue.isEmpty()) {
-            PriorityMessage msg = queue.poll();
-            if (msg.isVisibleAt(nowTime)) {
-                // If the message is visible, update visibility
-                msg.setReceiptId(UUID.randomUUID().toString());
-                msg.incrementAttempts();
-                msg.setVisibleFrom(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(visibilityTimeout));
-                queue.add(msg);
-                queue.addAll(invisibleMessages); // Reinsert invisible messages
-                return new Message(msg.getBody(), msg.getReceiptId());
-            } else {
-                // If the message is not visible, store it temporarily
-                invisibleMessages.add(msg);
-            }
-        }
+        return queue.pull(now(), visibleFrom(queueUrl));
+    }
 
-        // Reinsert all invisible messages if no visible message is found
-        queue.addAll(invisibleMessages);
-        return null;
+    @Override
+    public Message pull(String queueUrl, long waitTime, TimeUnit unit) {
+        ShardedPriorityQueueEngine queue = queues.computeIfAbsent(queueUrl, this::newQueue);
+        return queue.pull(this::now, () -> visibleFrom(queueUrl), unit.toNanos(waitTime));
     }
 
     @Override
     public void delete(String queueUrl, String receiptId) {
-        PriorityBlockingQueue<PriorityMessage> queue = queues.get(queueUrl);
+        ShardedPriorityQueueEngine queue = queues.get(queueUrl);
         if (queue != null) {
-            long nowTime = now();
+            queue.delete(now(), receiptId);
+        }
+    }
+
+    /** @throws QueueFullException if the queue is full and no room was made for the messages */
+    @Override
+    public void pushBatch(String queueUrl, List<String> msgBodies, int priority) {
+        ShardedPriorityQueueEngine queue = queues.computeIfAbsent(queueUrl, this::newQueue);
+        queue.pushAll(msgBodies, priority);
+    }
 
-            for (PriorityMessage msg : queue) {
-                if (!msg.isVisibleAt(nowTime) && msg.getReceiptId().equals(receiptId)) {
-                    queue.remove(msg);
-                    break;
-                }
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages) {
+        ShardedPriorityQueueEngine queue = queues.get(queueUrl);
+        if (queue == null) {
+            return Collections.emptyList();
+        }
+
+        return queue.pull(now(), visibleFrom(queueUrl), maxMessages);
+    }
+
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptIds) {
+        ShardedPriorityQueueEngine queue = queues.get(queueUrl);
+        if (queue != null) {
+            long nowTime = now();
+            for (String receiptId : receiptIds) {
+                queue.delete(nowTime, receiptId);
             }
         }
     }
 
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages, int visibilityTimeout) {
+        ShardedPriorityQueueEngine queue = queues.get(queueUrl);
+        if (queue == null) {
+            return Collections.emptyList();
+        }
+
+        long visibleFrom = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(visibilityTimeout);
+        return queue.pull(now(), visibleFrom, maxMessages);
+    }
+
+    @Override
+    public void changeVisibility(String queueUrl, String receiptId, int visibilityTimeout) {
+        ShardedPriorityQueueEngine queue = queues.get(queueUrl);
+        if (queue != null) {
+            long visibleFrom = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(visibilityTimeout);
+            queue.changeVisibility(now(), receiptId, visibleFrom);
+        }
+    }
+
+    @Override
+    public void setVisibilityTimeout(String queueUrl, int visibilityTimeout) {
+        visibilityTimeouts.put(queueUrl, visibilityTimeout);
+    }
+
+    /** @return how many delivered messages were not deleted before their visibility timeout expired */
+    public long getExpirations() {
+        return timer.expirations();
+    }
+
+    /** @return how many messages the queue holds, visible or in flight, and the size of their bodies */
+    public QueueStats getQueueStats(String queueUrl) {
+        ShardedPriorityQueueEngine queue = queues.get(queueUrl);
+        return queue == null ? new QueueStats(0, 0) : queue.stats();
+    }
+
+    private ShardedPriorityQueueEngine newQueue(String queueUrl) {
+        return new ShardedPriorityQueueEngine(timer, shards, relaxed, priorityLevels, entryPoolSize, bodies,
+                new QueueLimiter(queueUrl, limits));
+    }
+
+    // When a message pulled from the queue now becomes visible again.
+    private long visibleFrom(String queueUrl) {
+        Integer timeout = visibilityTimeouts.get(queueUrl);
+        return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout != null ? timeout : visibilityTimeout);
+    }
+
     long now() {
         return System.currentTimeMillis();
     }
@@ -2,77 +2,163 @@ package com.example;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.*;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 
 public class InMemoryQueueService implements QueueService {
-  private final Map<String, Queue<Message>> queues;
+  private final Map<String, FifoQueueEngine> queues;
 
   private long visibilityTimeout;
 
+  // How many entries of deleted messages each queue keeps for reuse.
+  private final int entryPoolSize;
+
+  // Keeps the bodies of all queues off the heap; null to keep them on the heap.
+  private final BodyStore bodies;
+
+  // How many messages and bytes each queue may hold, and what a push to a full queue does.
+  private final QueueLimits limits;
+
+  // Visibility timeouts (in seconds) set for single queues, by queue URL.
+  private final Map<String, Integer> visibilityTimeouts = new ConcurrentHashMap<>();
+
+  // Hands delivered messages back to their queue once their visibility timeout expires.
+  private final VisibilityTimer timer = new VisibilityTimer();
+
   InMemoryQueueService() {
+    this(loadConfig());
+  }
+
+  InMemoryQueueService(Properties confInfo) {
     this.queues = new ConcurrentHashMap<>();
+    this.visibilityTimeout = Integer.parseInt(confInfo.getProperty("visibilityTimeout", "30"));
+    this.entryPoolSize = Integer.parseInt(confInfo.getProperty("entryPoolSize", "65536"));
+    long offHeapCapacity = Long.parseLong(confInfo.getProperty("offHeapCapacity", "0"));
+    this.bodies = offHeapCapacity > 0 ? new BodyStore(offHeapCapacity) : null;
+    this.limits = QueueLimits.fromConfig(confInfo);
+  }
+
+  private static Properties loadConfig() {
     String propFileName = "config.properties";
     Properties confInfo = new Properties();
 
-    try (InputStream inStream = getClass().getClassLoader().getResourceAsStream(propFileName)) {
+    try (InputStream inStream = InMemoryQueueService.class.getClassLoader().getResourceAsStream(propFileName)) {
       confInfo.load(inStream);
     } catch (IOException e) {
       e.printStackTrace();
     }
-
-    this.visibilityTimeout = Integer.parseInt(confInfo.getProperty("visibilityTimeout", "30"));
+    return confInfo;
   }
 
+  /** @throws QueueFullException if the queue is full and no room was made for the message */
   @Override
   public void push(String queueUrl, String msgBody) {
-    Queue<Message> queue = queues.get(queueUrl);
-    if (queue == null) {
-      queue = new ConcurrentLinkedQueue<>();
-      queues.put(queueUrl, queue);
-    }
-    queue.add(new Message(msgBody));
+    FifoQueueEngine queue = queues.computeIfAbsent(queueUrl, this::newQueue);
+    queue.push(msgBody);
   }
 
   @Override
   public Message pull(String queueUrl) {
-    Queue<Message> queue = queues.get(queueUrl);
+    FifoQueueEngine queue = queues.get(queueUrl);
     if (queue == null) {
       return null;
     }
 
-    long nowTime = now();
-    Optional<Message> msgOpt = queue.stream().filter(m -> m.isVisibleAt(nowTime)).findFirst();
-    if (msgOpt.isEmpty()) {
-      return null;
-    } else {
-      Message msg = msgOpt.get();
-      msg.setReceiptId(UUID.randomUUID().toString());
-      msg.incrementAttempts();
-      msg.setVisibleFrom(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(visibilityTimeout));
+    return queue.pull(now(), visibleFrom(queueUrl));
+  }
 
-      return new Message(msg.getBody(), msg.getReceiptId());
-    }
+  @Override
+  public Message pull(String queueUrl, long waitTime, TimeUnit unit) {
+    FifoQueueEngine queue = queues.computeIfAbsent(queueUrl, this::newQueue);
+    return queue.pull(this::now, () -> visibleFrom(queueUrl), unit.toNanos(waitTime));
   }
 
   @Override
   public void delete(String queueUrl, String receiptId) {
-    Queue<Message> queue = queues.get(queueUrl);
+    FifoQueueEngine queue = queues.get(queueUrl);
     if (queue != null) {
-      long nowTime = now();
+      queue.delete(now(), receiptId);
+    }
+  }
+
+  /** @throws QueueFullException if the queue is full and no room was made for the messages */
+  @Override
+  public void pushBatch(String queueUrl, List<String> msgBodies) {
+    FifoQueueEngine queue = queues.computeIfAbsent(queueUrl, this::newQueue);
+    queue.pushAll(msgBodies);
+  }
+
+  @Override
+  public List<Message> pull(String queueUrl, int maxMessages) {
+    FifoQueueEngine queue = queues.get(queueUrl);
+    if (queue == null) {
+      return Collections.emptyList();
+    }
 
-      for (Iterator<Message> it = queue.iterator(); it.hasNext(); ) {
-        Message msg = it.next();
-        if (!msg.isVisibleAt(nowTime) && msg.getReceiptId().equals(receiptId)) {
-          it.remove();
-          break;
-        }
+    return queue.pull(now(), visibleFrom(queueUrl), maxMessages);
+  }
+
+  @Override
+  public void deleteBatch(String queueUrl, List<String> receiptIds) {
+    FifoQueueEngine queue = queues.get(queueUrl);
+    if (queue != null) {
+      long nowTime = now();
+      for (String receiptId : receiptIds) {
+        queue.delete(nowTime, receiptId);
       }
     }
   }
 
+  @Override
+  public List<Message> pull(String queueUrl, int maxMessages, int visibilityTimeout) {
+    FifoQueueEngine queue = queues.get(queueUrl);
+    if (queue == null) {
+      return Collections.emptyList();
+    }
+
+    long visibleFrom = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(visibilityTimeout);
+    return queue.pull(now(), visibleFrom, maxMessages);
+  }
+
+  @Override
+  public void changeVisibility(String queueUrl, String receiptId, int visibilityTimeout) {
+    FifoQueueEngine queue = queues.get(queueUrl);
+    if (queue != null) {
+      long visibleFrom = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(visibilityTimeout);
+      queue.changeVisibility(now(), receiptId, visibleFrom);
+    }
+  }
+
+  @Override
+  public void setVisibilityTimeout(String queueUrl, int visibilityTimeout) {
+    visibilityTimeouts.put(queueUrl, visibilityTimeout);
+  }
+
+  /** @return how many delivered messages were not deleted before their visibility timeout expired */
+  public long getExpirations() {
+    return timer.expirations();
+  }
+
+  /** @return how many messages the queue holds, visible or in flight, and the size of their bodies */
+  public QueueStats getQueueStats(String queueUrl) {
+    FifoQueueEngine queue = queues.get(queueUrl);
+    return queue == null ? new QueueStats(0, 0) : queue.stats();
+  }
+
+  private FifoQueueEngine newQueue(String queueUrl) {
+    return new FifoQueueEngine(timer, entryPoolSize, bodies, new QueueLimiter(queueUrl, limits));
+  }
+
+  // When a message pulled from the queue now becomes visible again.
+  private long visibleFrom(String queueUrl) {
+    Integer timeout = visibilityTimeouts.get(queueUrl);
+    return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout != null ? timeout : visibilityTimeout);
+  }
+
   long now() {
     return System.currentTimeMillis();
   }
@@ -0,0 +1,193 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A file of binary, length-prefixed records which is memory mapped for reading and appending.
+ *
+ * The file is allocated up front and starts with a header holding the offset where the next
+ * record goes, so every process mapping the file sees appended records without a system call:
+ * <pre>
+ *   header:  int magic, int version, long end
+ *   record:  int length, byte[length] payload
+ * </pre>
+ * The file is mapped as one region, so it holds at most MAX_SIZE bytes.
+ *
+ * The caller is responsible for serialising appends, e.g. by holding the queue lock.
+ */
+class MappedSegment implements Closeable {
+  static final int HEADER_SIZE = 16;
+  static final int LENGTH_SIZE = 4;
+
+  // The largest file one mapping covers.
+  static final long MAX_SIZE = Integer.MAX_VALUE;
+
+  static final int MAGIC = 0x51534547; // "QSEG"
+  private static final int VERSION = 1;
+  private static final int END_POSITION = 8;
+
+  private final Path path;
+  private final FileChannel channel;
+  private MappedByteBuffer buffer;
+
+  private MappedSegment(Path path, FileChannel channel) {
+    this.path = path;
+    this.channel = channel;
+  }
+
+  /**
+   * Open the file, creating it with the given capacity (in bytes, header included) if it does not
+   * exist or is empty.
+   */
+  static MappedSegment open(Path path, long capacity) throws IOException {
+    FileChannel channel = FileChannel.open(path, CREATE, READ, WRITE);
+    MappedSegment segment = new MappedSegment(path, channel);
+    try {
+      if (channel.size() < HEADER_SIZE) {
+        segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+            Math.min(Math.max(capacity, HEADER_SIZE), MAX_SIZE));
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(4, VERSION);
+        segment.buffer.putLong(END_POSITION, HEADER_SIZE);
+      } else {
+        segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        if (segment.buffer.getInt(0) != MAGIC || segment.buffer.getInt(4) != VERSION) {
+          throw new IOException("Not a queue segment: " + path);
+        }
+      }
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return segment;
+  }
+
+  /** @return the offset right after the last record */
+  long end() {
+    return buffer.getLong(END_POSITION);
+  }
+
+  /**
+   * @return true if a record with a payload of the given length fits without growing the file;
+   *     the length may include whole records to be appended before it
+   */
+  boolean hasRoom(long length) {
+    return end() + LENGTH_SIZE + length <= buffer.capacity();
+  }
+
+  /**
+   * Append a record, growing the file if it is full.
+   *
+   * @return the offset of the record
+   */
+  long append(ByteBuffer payload) throws IOException {
+    int length = payload.remaining();
+    long offset = end();
+    ensureCapacity(offset + LENGTH_SIZE + length);
+
+    buffer.putInt((int) offset, length);
+    ByteBuffer target = buffer.duplicate();
+    target.position((int) offset + LENGTH_SIZE);
+    target.put(payload);
+    // Publish the record only once it is complete.
+    buffer.putLong(END_POSITION, offset + LENGTH_SIZE + length);
+
+    return offset;
+  }
+
+  /**
+   * Append several records at once, growing the file at most once. Other processes see either none
+   * or all of them.
+   */
+  void append(List<ByteBuffer> payloads) throws IOException {
+    long offset = end();
+    long end = offset;
+    for (ByteBuffer payload : payloads) {
+      end += LENGTH_SIZE + payload.remaining();
+    }
+    ensureCapacity(end);
+
+    ByteBuffer target = buffer.duplicate();
+    target.position((int) offset);
+    for (ByteBuffer payload : payloads) {
+      target.putInt(payload.remaining());
+      target.put(payload);
+    }
+    buffer.putLong(END_POSITION, end);
+  }
+
+  /** @return the payload of the record at the offset, as a read-only view of the mapping */
+  ByteBuffer read(long offset) throws IOException {
+    remapIfNeeded();
+    int length = buffer.getInt((int) offset);
+    ByteBuffer payload = buffer.asReadOnlyBuffer();
+    payload.position((int) offset + LENGTH_SIZE).limit((int) offset + LENGTH_SIZE + length);
+    return payload.slice();
+  }
+
+  /**
+   * @return the payload of the record at the offset as a writable view of the mapping, for
+   *     updating the record in place
+   */
+  ByteBuffer update(long offset) throws IOException {
+    remapIfNeeded();
+    int length = buffer.getInt((int) offset);
+    ByteBuffer payload = buffer.duplicate();
+    payload.position((int) offset + LENGTH_SIZE).limit((int) offset + LENGTH_SIZE + length);
+    return payload.slice();
+  }
+
+  /** @return the offset of the record following the one at the offset */
+  long next(long offset) {
+    return offset + LENGTH_SIZE + buffer.getInt((int) offset);
+  }
+
+  /** Drop every record; the file keeps its size. */
+  void clear() {
+    buffer.putLong(END_POSITION, HEADER_SIZE);
+  }
+
+  /** Flush the mapping to the storage device. */
+  void force() {
+    buffer.force();
+  }
+
+  Path path() {
+    return path;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  // Another process may have grown the file beyond what this mapping covers, which shows as an
+  // end offset past the mapping.
+  private void remapIfNeeded() throws IOException {
+    if (end() > buffer.capacity()) {
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    }
+  }
+
+  private void ensureCapacity(long required) throws IOException {
+    remapIfNeeded();
+    if (required > buffer.capacity()) {
+      if (required > MAX_SIZE) {
+        throw new IOException("Segment full: " + path);
+      }
+      long capacity = buffer.capacity();
+      while (capacity < required) {
+        capacity *= 2;
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(capacity, MAX_SIZE));
+    }
+  }
+}
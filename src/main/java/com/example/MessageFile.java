@@ -0,0 +1,447 @@
+package com.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.nio.file.StandardCopyOption.*;
+
+/**
+ * The single "messages" file of a queue, in the "single" storage mode.
+ *
+ * The file is a {@link MappedSegment} and every message is one record, whose header fields have a
+ * fixed width:
+ * <pre>
+ *   byte   state          READY, DELIVERED or DELETED
+ *   int    attempts       how many times the message has been delivered
+ *   long   visible from   when the message becomes visible (again)
+ *   long   receipt        random number identifying the latest delivery
+ *   byte[] body           UTF-8, the rest of the record
+ * </pre>
+ * Pull and delete update the header of one record in place instead of rewriting the file. The
+ * receipt id handed to consumers holds the offset of the record as well as the receipt number, so
+ * delete goes straight to the record. Bodies may contain any character.
+ *
+ * A {@link MessageIndex} kept next to the file tracks where the next new message is and when the
+ * delivered ones become visible again, so pull does not read the records before them. It also
+ * counts the messages and the size of their bodies.
+ *
+ * Deleted records stay in the file until every message of the queue has been deleted, when the
+ * file is cleared, or until they take more space than the live ones, when compaction copies the
+ * live records into a new file which replaces this one. Each compaction starts a new generation of
+ * the file, recorded in the index, so other processes map the new file. Receipt ids name the
+ * generation they were issued in; a message delivered before the records moved is found by its
+ * receipt number among the deliveries in the index.
+ *
+ * The file is one memory mapping, so it holds at most maxFileSize bytes, 2 GiB at most, deleted
+ * records not yet compacted included. A push which does not fit is refused by {@link #hasRoom},
+ * and the queue counts as full; the "segmented" mode has no such limit.
+ *
+ * Files written by earlier versions, one text line per message, are converted when opened.
+ */
+class MessageFile implements FileQueueStore {
+  static final byte READY = 0;
+  static final byte DELIVERED = 1;
+  static final byte DELETED = 2;
+
+  private static final int STATE = 0;
+  private static final int ATTEMPTS = 1;
+  private static final int VISIBLE_FROM = 5;
+  private static final int RECEIPT = 13;
+  private static final int BODY = 21;
+
+  // Initial size of a messages file; it grows when needed.
+  private static final long CAPACITY = 1024 * 1024;
+
+  // Compaction is asked for once deleted records take more than this many bytes, and more than the
+  // live ones.
+  private static final long COMPACTION_THRESHOLD = 1024 * 1024;
+
+  private final Path path;
+  private final long maxSize;
+  private MappedSegment file;
+  private final MessageIndex index;
+
+  // The generation of the file mapped; the index holds the current one.
+  private long generation;
+
+  private boolean compactionRequested;
+
+  // Written while holding the queue lock, read without.
+  private volatile long expirations;
+
+  /** @param maxSize the largest size of the file, at most {@link MappedSegment#MAX_SIZE} */
+  MessageFile(Path path, String fieldDelimiter, long maxSize) throws IOException {
+    boolean converted = isTextFile(path);
+    if (converted) {
+      convertTextFile(path, fieldDelimiter);
+    }
+    this.path = path;
+    this.maxSize = Math.min(maxSize, MappedSegment.MAX_SIZE);
+    file = MappedSegment.open(path, CAPACITY);
+    index = new MessageIndex(path.resolveSibling(path.getFileName() + ".idx"));
+    generation = index.generation();
+
+    if (converted || index.isCreated() || index.head() > file.end()) {
+      rebuildIndex();
+    }
+  }
+
+  @Override
+  public void push(List<String> messageBodies) throws IOException {
+    reopenIfCompacted();
+    List<ByteBuffer> records = new ArrayList<>(messageBodies.size());
+    long bytes = 0;
+    for (String messageBody : messageBodies) {
+      byte[] body = messageBody.getBytes(StandardCharsets.UTF_8);
+      ByteBuffer record = ByteBuffer.allocate(BODY + body.length);
+      record.put(READY).putInt(0).putLong(0).putLong(0).put(body);
+      record.flip();
+      records.add(record);
+      bytes += body.length;
+    }
+    file.append(records);
+    index.addMessages(records.size(), bytes);
+  }
+
+  @Override
+  public Message pull(long nowTime, long visibleFrom) throws IOException {
+    reopenIfCompacted();
+    long offset = takeNext(nowTime);
+    if (offset < 0) {
+      return null;
+    }
+    ByteBuffer record = file.update(offset);
+    if (record.get(STATE) == DELIVERED) {
+      expirations++;
+    }
+    return deliver(offset, record, visibleFrom);
+  }
+
+  @Override
+  public boolean dropOldest(long nowTime) throws IOException {
+    reopenIfCompacted();
+    long offset = takeNext(nowTime);
+    if (offset < 0) {
+      return false;
+    }
+    remove(offset);
+    return true;
+  }
+
+  // Take the record a pull would deliver next off the index, counting it as in flight.
+  //
+  // @return its offset; -1 if no message is visible
+  private long takeNext(long nowTime) throws IOException {
+    // Messages whose visibility timeout expired are at the head of the queue again. Entries of
+    // messages deleted or delivered again since are skipped.
+    while (!index.isHeapEmpty() && index.peekVisibleFrom() < nowTime) {
+      long deadline = index.peekVisibleFrom();
+      long offset = index.peekOffset();
+      index.poll();
+
+      ByteBuffer record = file.update(offset);
+      if (record.get(STATE) == DELIVERED && record.getLong(VISIBLE_FROM) == deadline) {
+        return offset;
+      }
+    }
+
+    long head = index.head();
+    while (head < file.end()) {
+      ByteBuffer record = file.update(head);
+      long next = file.next(head);
+      if (record.get(STATE) == READY) {
+        index.setHead(next);
+        index.addInFlight(1);
+        return head;
+      }
+      head = next;
+    }
+    index.setHead(head);
+
+    return -1;
+  }
+
+  @Override
+  public void delete(long nowTime, String receiptId) throws IOException {
+    reopenIfCompacted();
+    long offset = findDelivery(nowTime, receiptId);
+    if (offset >= 0) {
+      remove(offset);
+    }
+  }
+
+  // Mark the record of an in-flight message deleted.
+  private void remove(long offset) throws IOException {
+    ByteBuffer record = file.update(offset);
+    record.put(STATE, DELETED);
+    index.addInFlight(-1);
+    index.addMessages(-1, -(record.limit() - BODY));
+
+    if (index.inFlight() == 0 && index.head() >= file.end()) {
+      // Every message has been deleted, the space can be reused.
+      purge();
+    } else if (deletedBytes() > COMPACTION_THRESHOLD && deletedBytes() > liveBytes()) {
+      compactionRequested = true;
+    }
+  }
+
+  /**
+   * Rewrites the deadline in the record header and adds a heap entry for it; the entry of the old
+   * deadline no longer matches the record and is skipped once it reaches the top.
+   */
+  @Override
+  public void changeVisibility(long nowTime, String receiptId, long visibleFrom) throws IOException {
+    reopenIfCompacted();
+    long offset = findDelivery(nowTime, receiptId);
+    if (offset < 0) {
+      return;
+    }
+
+    file.update(offset).putLong(VISIBLE_FROM, visibleFrom);
+    index.add(visibleFrom, offset);
+  }
+
+  @Override
+  public long expirations() {
+    return expirations;
+  }
+
+  @Override
+  public long messages() throws IOException {
+    reopenIfCompacted();
+    return index.messages();
+  }
+
+  @Override
+  public long bytes() throws IOException {
+    reopenIfCompacted();
+    return index.bytes();
+  }
+
+  @Override
+  public void purge() throws IOException {
+    reopenIfCompacted();
+    file.clear();
+    index.clear(MappedSegment.HEADER_SIZE);
+  }
+
+  @Override
+  public void force() {
+    file.force();
+  }
+
+  @Override
+  public boolean takeCompactionRequest() {
+    boolean requested = compactionRequested;
+    compactionRequested = false;
+    return requested;
+  }
+
+  /**
+   * Copies the records which were not deleted into a new file, forces it, and moves it over this
+   * one; then rebuilds the index for it and starts a new generation.
+   */
+  @Override
+  public void compact() throws IOException {
+    reopenIfCompacted();
+    if (deletedBytes() <= COMPACTION_THRESHOLD) {
+      // Compacted or cleared meanwhile.
+      return;
+    }
+
+    Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+    Files.deleteIfExists(compacted);
+    try (MappedSegment target = MappedSegment.open(compacted, Math.max(CAPACITY, 2 * liveBytes()))) {
+      for (long offset = MappedSegment.HEADER_SIZE; offset < file.end(); offset = file.next(offset)) {
+        ByteBuffer record = file.read(offset);
+        if (record.get(STATE) != DELETED) {
+          target.append(record);
+        }
+      }
+      target.force();
+    }
+
+    // Until the index is rebuilt, its head lies past the end of either file, so a crash in between
+    // makes the next open rebuild it.
+    index.setHead(Long.MAX_VALUE);
+    Files.move(compacted, path, REPLACE_EXISTING, ATOMIC_MOVE);
+    file.close();
+    file = MappedSegment.open(path, CAPACITY);
+    rebuildIndex();
+    index.nextGeneration();
+    generation = index.generation();
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+    index.close();
+  }
+
+  // The offset of the record delivered with the receipt id, if it is still invisible; -1 otherwise.
+  // Receipt ids are <offset>-<receipt>-<generation>; those of earlier versions lack the generation.
+  private long findDelivery(long nowTime, String receiptId) throws IOException {
+    int separator = receiptId.indexOf('-');
+    int generationSeparator = receiptId.indexOf('-', separator + 1);
+    long offset;
+    long receipt;
+    long issuedIn;
+    try {
+      offset = Long.parseLong(receiptId.substring(0, separator), 16);
+      if (generationSeparator < 0) {
+        receipt = Long.parseUnsignedLong(receiptId.substring(separator + 1), 16);
+        issuedIn = 0;
+      } else {
+        receipt = Long.parseUnsignedLong(receiptId.substring(separator + 1, generationSeparator), 16);
+        issuedIn = Long.parseLong(receiptId.substring(generationSeparator + 1), 16);
+      }
+    } catch (IndexOutOfBoundsException | NumberFormatException e) {
+      return -1;
+    }
+    if (issuedIn != generation) {
+      // The record has moved since; every delivered record has an entry in the heap.
+      offset = findInHeap(receipt);
+    }
+    if (offset < MappedSegment.HEADER_SIZE || offset >= file.end()) {
+      return -1;
+    }
+
+    ByteBuffer record = file.update(offset);
+    if (record.get(STATE) == DELIVERED
+        && record.getLong(RECEIPT) == receipt
+        && record.getLong(VISIBLE_FROM) >= nowTime) {
+      return offset;
+    }
+    return -1;
+  }
+
+  private Message deliver(long offset, ByteBuffer record, long visibleFrom) throws IOException {
+    long receipt = ThreadLocalRandom.current().nextLong();
+    record.put(STATE, DELIVERED);
+    record.putInt(ATTEMPTS, record.getInt(ATTEMPTS) + 1);
+    record.putLong(VISIBLE_FROM, visibleFrom);
+    record.putLong(RECEIPT, receipt);
+    index.add(visibleFrom, offset);
+
+    record.position(BODY);
+    String body = StandardCharsets.UTF_8.decode(record).toString();
+    return new Message(body,
+        Long.toHexString(offset) + "-" + Long.toHexString(receipt) + "-" + Long.toHexString(generation));
+  }
+
+  // The offset of the delivered record with the receipt number; -1 if there is none.
+  private long findInHeap(long receipt) throws IOException {
+    int size = index.heapSize();
+    for (int i = 0; i < size; i++) {
+      long offset = index.offsetAt(i);
+      ByteBuffer record = file.update(offset);
+      if (record.get(STATE) == DELIVERED && record.getLong(RECEIPT) == receipt) {
+        return offset;
+      }
+    }
+    return -1;
+  }
+
+  // Another process may have compacted the file, which leaves this mapping on the replaced one.
+  private void reopenIfCompacted() throws IOException {
+    if (index.generation() != generation) {
+      file.close();
+      file = MappedSegment.open(path, CAPACITY);
+      generation = index.generation();
+    }
+  }
+
+  @Override
+  public boolean hasRoom(int count, long size) throws IOException {
+    reopenIfCompacted();
+    if (file.end() + (long) count * (MappedSegment.LENGTH_SIZE + BODY) + size <= maxSize) {
+      return true;
+    }
+    if (deletedBytes() > 0) {
+      compactionRequested = true;
+    }
+    return false;
+  }
+
+  // How many bytes the records of messages which have not been deleted take.
+  private long liveBytes() {
+    return index.bytes() + index.messages() * (MappedSegment.LENGTH_SIZE + BODY);
+  }
+
+  // How many bytes the records of deleted messages take.
+  private long deletedBytes() {
+    return file.end() - MappedSegment.HEADER_SIZE - liveBytes();
+  }
+
+  // Build the index from the records, for a messages file which has none yet, or an outdated one.
+  private void rebuildIndex() throws IOException {
+    index.clear(file.end());
+
+    for (long offset = MappedSegment.HEADER_SIZE; offset < file.end(); offset = file.next(offset)) {
+      ByteBuffer record = file.update(offset);
+      byte state = record.get(STATE);
+      if (state != DELETED) {
+        index.addMessages(1, record.limit() - BODY);
+      }
+      if (state == READY && index.head() == file.end()) {
+        index.setHead(offset);
+      } else if (state == DELIVERED) {
+        index.add(record.getLong(VISIBLE_FROM), offset);
+        index.addInFlight(1);
+      }
+    }
+  }
+
+  //
+  // Conversion of the text format of earlier versions:
+  //		<prior attempts>delimiter<visible from time>delimiter<receipt id>delimiter<message body>
+  //
+
+  private static boolean isTextFile(Path path) throws IOException {
+    if (Files.notExists(path) || Files.size(path) == 0) {
+      return false;
+    }
+    byte[] magic = new byte[4];
+    try (InputStream in = Files.newInputStream(path)) {
+      int read = in.readNBytes(magic, 0, magic.length);
+      return read < magic.length
+          || !Arrays.equals(magic, ByteBuffer.allocate(4).putInt(MappedSegment.MAGIC).array());
+    }
+  }
+
+  private static void convertTextFile(Path path, String fieldDelimiter) throws IOException {
+    Path converted = path.resolveSibling(path.getFileName() + ".v1");
+    Files.deleteIfExists(converted);
+
+    try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+        MappedSegment file = MappedSegment.open(converted, Math.max(CAPACITY, Files.size(path) * 2))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split(fieldDelimiter, 4);
+        if (fields.length < 4) {
+          continue;
+        }
+
+        byte[] body = fields[3].getBytes(StandardCharsets.UTF_8);
+        int attempts = Integer.parseInt(fields[0]);
+        ByteBuffer record = ByteBuffer.allocate(BODY + body.length);
+        record.put(attempts == 0 ? READY : DELIVERED).putInt(attempts).putLong(Long.parseLong(fields[1]))
+            .putLong(0).put(body);
+        record.flip();
+        file.append(record);
+      }
+      file.force();
+    }
+
+    Files.move(converted, path, REPLACE_EXISTING);
+  }
+}
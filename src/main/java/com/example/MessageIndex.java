@@ -0,0 +1,227 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * The persistent index of a messages file, memory mapped so that every process sees the same one:
+ * <pre>
+ *   int   magic, int version
+ *   long  head         offset of the first record which may never have been delivered
+ *   long  in flight    number of delivered messages which have not been deleted
+ *   long  messages     number of messages which have not been deleted
+ *   long  bytes        size of their bodies
+ *   long  generation   how many times the messages file has been compacted
+ *   int   heap size
+ *   heap               (long visible from, long record offset) entries, a binary min-heap
+ *                      ordered by visible from
+ * </pre>
+ * Every record before the head has been delivered, so a pull finds the next new message at the
+ * head and expired deliveries at the top of the heap, without reading any other record. Heap
+ * entries are not removed when a message is deleted; the record header tells whether an entry
+ * is still current once it reaches the top.
+ */
+class MessageIndex implements Closeable {
+  private static final int MAGIC = 0x51494458; // "QIDX"
+  private static final int VERSION = 3;
+
+  private static final int HEAD = 8;
+  private static final int IN_FLIGHT = 16;
+  private static final int MESSAGES = 24;
+  private static final int BYTES = 32;
+  private static final int GENERATION = 40;
+  private static final int HEAP_SIZE = 48;
+  private static final int HEAP = 56;
+  private static final int ENTRY_SIZE = 16;
+
+  private static final long CAPACITY = 64 * 1024;
+
+  private final FileChannel channel;
+  private MappedByteBuffer buffer;
+  private final boolean created;
+
+  MessageIndex(Path path) throws IOException {
+    channel = FileChannel.open(path, CREATE, READ, WRITE);
+    try {
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(CAPACITY, channel.size()));
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+
+    created = buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION;
+    if (created) {
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, VERSION);
+      clear(MappedSegment.HEADER_SIZE);
+    }
+  }
+
+  /**
+   * @return true if the index did not exist, or was written by an earlier version, and has to be
+   *     built from the messages file
+   */
+  boolean isCreated() {
+    return created;
+  }
+
+  void clear(long head) {
+    buffer.putLong(HEAD, head);
+    buffer.putLong(IN_FLIGHT, 0);
+    buffer.putLong(MESSAGES, 0);
+    buffer.putLong(BYTES, 0);
+    buffer.putInt(HEAP_SIZE, 0);
+  }
+
+  long head() {
+    return buffer.getLong(HEAD);
+  }
+
+  void setHead(long head) {
+    buffer.putLong(HEAD, head);
+  }
+
+  long inFlight() {
+    return buffer.getLong(IN_FLIGHT);
+  }
+
+  void addInFlight(long delta) {
+    buffer.putLong(IN_FLIGHT, buffer.getLong(IN_FLIGHT) + delta);
+  }
+
+  long messages() {
+    return buffer.getLong(MESSAGES);
+  }
+
+  long bytes() {
+    return buffer.getLong(BYTES);
+  }
+
+  void addMessages(long count, long bytes) {
+    buffer.putLong(MESSAGES, buffer.getLong(MESSAGES) + count);
+    buffer.putLong(BYTES, buffer.getLong(BYTES) + bytes);
+  }
+
+  long generation() {
+    return buffer.getLong(GENERATION);
+  }
+
+  void nextGeneration() {
+    buffer.putLong(GENERATION, buffer.getLong(GENERATION) + 1);
+  }
+
+  /** @return how many entries the heap holds, current or not */
+  int heapSize() throws IOException {
+    remapIfNeeded();
+    return buffer.getInt(HEAP_SIZE);
+  }
+
+  /** @return the record offset of the i-th heap entry, in no particular order */
+  long offsetAt(int i) {
+    return offset(i);
+  }
+
+  boolean isHeapEmpty() {
+    return buffer.getInt(HEAP_SIZE) == 0;
+  }
+
+  /** @return the earliest visible from time of the heap */
+  long peekVisibleFrom() throws IOException {
+    remapIfNeeded();
+    return buffer.getLong(HEAP);
+  }
+
+  /** @return the record offset of the entry with the earliest visible from time */
+  long peekOffset() throws IOException {
+    remapIfNeeded();
+    return buffer.getLong(HEAP + 8);
+  }
+
+  void add(long visibleFrom, long offset) throws IOException {
+    int size = buffer.getInt(HEAP_SIZE);
+    ensureCapacity(HEAP + (long) (size + 1) * ENTRY_SIZE);
+
+    int i = size;
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (visibleFrom(parent) <= visibleFrom) {
+        break;
+      }
+      copy(parent, i);
+      i = parent;
+    }
+    set(i, visibleFrom, offset);
+    buffer.putInt(HEAP_SIZE, size + 1);
+  }
+
+  /** Removes the entry with the earliest visible from time. */
+  void poll() throws IOException {
+    remapIfNeeded();
+    int size = buffer.getInt(HEAP_SIZE) - 1;
+    buffer.putInt(HEAP_SIZE, size);
+    if (size == 0) {
+      return;
+    }
+
+    long visibleFrom = visibleFrom(size);
+    long offset = offset(size);
+    int i = 0;
+    while (2 * i + 1 < size) {
+      int child = 2 * i + 1;
+      if (child + 1 < size && visibleFrom(child + 1) < visibleFrom(child)) {
+        child++;
+      }
+      if (visibleFrom <= visibleFrom(child)) {
+        break;
+      }
+      copy(child, i);
+      i = child;
+    }
+    set(i, visibleFrom, offset);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private long visibleFrom(int i) {
+    return buffer.getLong(HEAP + i * ENTRY_SIZE);
+  }
+
+  private long offset(int i) {
+    return buffer.getLong(HEAP + i * ENTRY_SIZE + 8);
+  }
+
+  private void set(int i, long visibleFrom, long offset) {
+    buffer.putLong(HEAP + i * ENTRY_SIZE, visibleFrom);
+    buffer.putLong(HEAP + i * ENTRY_SIZE + 8, offset);
+  }
+
+  private void copy(int from, int to) {
+    set(to, visibleFrom(from), offset(from));
+  }
+
+  // Another process may have grown the heap beyond what this mapping covers.
+  private void remapIfNeeded() throws IOException {
+    if (HEAP + (long) buffer.getInt(HEAP_SIZE) * ENTRY_SIZE > buffer.capacity()) {
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    }
+  }
+
+  private void ensureCapacity(long required) throws IOException {
+    remapIfNeeded();
+    if (required > buffer.capacity()) {
+      long capacity = buffer.capacity();
+      while (capacity < required) {
+        capacity *= 2;
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+  }
+}
@@ -1,7 +1,12 @@
 package com.example;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 public class PriorityMessage extends Message implements Comparable<PriorityMessage> {
     private int priority;
+    // Where the message was pushed in its queue, to keep messages of equal priority FCFS.
+    private long sequence;
+    // When the message was created, in milliseconds; 0 for messages numbered by their queue.
     private long createdAt;
 
     public PriorityMessage() {
@@ -14,12 +19,23 @@ public class PriorityMessage extends Message implements Comparable<PriorityMessa
         this.createdAt = System.currentTimeMillis();
     }
 
+    /**
+     * @deprecated messages are ordered by the sequence number their queue gives them, not by when
+     *     they were created; use {@link #PriorityMessage(String, int, long)}
+     */
+    @Deprecated
     public PriorityMessage(String msgBody, String receiptId, int priority) {
         super(msgBody, receiptId);
         this.priority = priority;
         this.createdAt = System.currentTimeMillis();
     }
 
+    public PriorityMessage(String msgBody, int priority, long sequence) {
+        super(msgBody);
+        this.priority = priority;
+        this.sequence = sequence;
+    }
+
     public int getPriority() {
         return priority;
     }
@@ -28,6 +44,17 @@ public class PriorityMessage extends Message implements Comparable<PriorityMessa
         this.priority = priority;
     }
 
+    @JsonIgnore
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @deprecated messages of equal priority are ordered by {@link #getSequence()}; the creation
+     *     time no longer takes part, and is 0 for messages numbered by their queue
+     */
+    @Deprecated
+    @JsonIgnore
     public long getCreatedAt() {
         return createdAt;
     }
@@ -40,8 +67,8 @@ public class PriorityMessage extends Message implements Comparable<PriorityMessa
             return priorityComparison;
         }
 
-        // For equal priority, using FCFS (earlier createdAt comes first)
-        return Long.compare(this.createdAt, other.createdAt);
+        // For equal priority, using FCFS (earlier pushed comes first)
+        return Long.compare(this.sequence, other.sequence);
     }
 }
 
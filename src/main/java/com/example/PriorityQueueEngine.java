@@ -0,0 +1,332 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * The messages of a single in-memory priority queue.
+ *
+ * Visible messages are kept in a heap ordered by priority, or in a {@link BucketPriorityQueue} when
+ * the queue declares a range of priority levels. Delivered messages are handed to the
+ * {@link VisibilityTimer} of the service, which puts them back into the heap once their visibility
+ * timeout has passed, so a pull costs O(log n) and never looks at an invisible message.
+ *
+ * Delivered messages are found by the receipt handle of their {@link ReceiptTable}. A delete only
+ * clears the handle of the message, without taking the queue lock, and its entry is recycled for a
+ * later push; the timer entry is discarded once its deadline passes. Apart from the returned copy,
+ * a pull allocates nothing.
+ *
+ * The engine does not count its messages against the queue limits; the
+ * {@link ShardedPriorityQueueEngine} owning it does, with the sizes it reports.
+ */
+class PriorityQueueEngine implements VisibilityTimer.Task {
+    private final Queue<QueueEntry> ready;
+
+    private final ReceiptTable entries;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Signalled when messages are pushed or expire, for consumers waiting for one.
+    private final Condition pushed = lock.newCondition();
+
+    private final VisibilityTimer timer;
+
+    // Prepended to the receipt ids, to tell the shards of a sharded queue apart.
+    private final String receiptPrefix;
+
+    // Told whenever a message becomes visible, after the lock is released; may be null.
+    private final Runnable readyListener;
+
+    // The message at the head of the ready heap, for a lock-free look at the queue.
+    private volatile QueueEntry head;
+
+    /**
+     * @param priorityLevels how many priority levels, from 0, are kept in buckets; 0 keeps every
+     *     message in a heap
+     * @param poolSize how many entries of deleted messages are kept for reuse
+     * @param bodies where the bodies are kept off the heap; null to keep them on the heap
+     * @param receiptPrefix prepended to the receipt ids
+     * @param readyListener told whenever a message becomes visible; may be null
+     */
+    PriorityQueueEngine(VisibilityTimer timer, int priorityLevels, int poolSize, BodyStore bodies,
+            String receiptPrefix, Runnable readyListener) {
+        this.ready = priorityLevels > 0 ? new BucketPriorityQueue(priorityLevels) : new PriorityQueue<>();
+        this.entries = new ReceiptTable(poolSize, bodies);
+        this.timer = timer;
+        this.receiptPrefix = receiptPrefix;
+        this.readyListener = readyListener;
+    }
+
+    /** @param size the UTF-8 size of the body */
+    void push(String msgBody, long size, int priority, long sequence) {
+        QueueEntry msg = obtain(msgBody, priority, sequence);
+        msg.bodySize = size;
+        lock.lock();
+        try {
+            ready.add(msg);
+            head = ready.peek();
+            pushed.signal();
+        } finally {
+            lock.unlock();
+        }
+        notifyReady();
+    }
+
+    /** Pushes the messages with consecutive sequence numbers from firstSequence. */
+    void pushAll(List<String> msgBodies, int priority, long firstSequence) {
+        List<QueueEntry> msgs = new ArrayList<>(msgBodies.size());
+        try {
+            for (String msgBody : msgBodies) {
+                QueueEntry msg = obtain(msgBody, priority, firstSequence + msgs.size());
+                msg.bodySize = QueueLimits.sizeOf(msgBody);
+                msgs.add(msg);
+            }
+        } catch (RuntimeException e) {
+            for (QueueEntry msg : msgs) {
+                entries.release(msg);
+            }
+            throw e;
+        }
+        lock.lock();
+        try {
+            ready.addAll(msgs);
+            head = ready.peek();
+            pushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        notifyReady();
+    }
+
+    /**
+     * @return the visible message with the highest priority as of the last change of the queue,
+     *     without taking the lock; null if there was none
+     */
+    QueueEntry peek() {
+        return head;
+    }
+
+    /**
+     * Delivers the visible message with the highest priority.
+     *
+     * @param nowTime the current time, used to decide which in-flight messages have expired
+     * @param visibleFrom the time the delivered message becomes visible again
+     * @return a copy of the delivered message; null if no message is visible
+     */
+    Message pull(long nowTime, long visibleFrom) {
+        timer.advance(nowTime);
+        lock.lock();
+        try {
+            QueueEntry msg = pollReady();
+            return msg == null ? null : deliver(msg, visibleFrom);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delivers the visible message with the highest priority, waiting up to waitNanos for one to
+     * become visible if there is none: until a message is pushed or an in-flight message expires.
+     *
+     * @param nowTime supplies the current time, used to decide which in-flight messages have expired
+     * @param visibleFrom supplies the time the delivered message becomes visible again
+     * @return a copy of the delivered message; null if no message became visible in time, or the
+     *     thread was interrupted
+     */
+    Message pull(LongSupplier nowTime, LongSupplier visibleFrom, long waitNanos) {
+        long deadline = System.nanoTime() + waitNanos;
+        while (true) {
+            // The timer runs the tasks of other queues too, so it is advanced without the lock.
+            timer.advance(nowTime.getAsLong());
+            lock.lock();
+            try {
+                QueueEntry msg = pollReady();
+                if (msg != null) {
+                    return deliver(msg, visibleFrom.getAsLong());
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                pushed.awaitNanos(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Delivers up to maxMessages visible messages, highest priority first, holding the queue lock
+     * only once.
+     *
+     * @return copies of the delivered messages; empty if no message is visible
+     */
+    List<Message> pull(long nowTime, long visibleFrom, int maxMessages) {
+        List<Message> messages = new ArrayList<>(Math.min(maxMessages, 16));
+        timer.advance(nowTime);
+        lock.lock();
+        try {
+            QueueEntry msg;
+            while (messages.size() < maxMessages && (msg = pollReady()) != null) {
+                messages.add(deliver(msg, visibleFrom));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return messages;
+    }
+
+    /** @return the body size of the deleted message; -1 if no message was deleted */
+    long delete(long nowTime, String receiptId) {
+        long handle = DeliveredMessage.parseHandle(receiptPrefix, receiptId);
+        QueueEntry msg = entries.lookup(handle);
+        if (msg != null && !msg.isVisibleAt(nowTime) && msg.clearHandle(handle)) {
+            long size = msg.bodySize;
+            entries.release(msg);
+            return size;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the visible message which would be delivered last, as of now; null if there is none.
+     *     Costs O(n) with a heap.
+     */
+    Last peekLast() {
+        lock.lock();
+        try {
+            QueueEntry last = null;
+            if (ready instanceof BucketPriorityQueue) {
+                last = ((BucketPriorityQueue) ready).peekLast();
+            } else {
+                for (QueueEntry msg : ready) {
+                    if (last == null || msg.compareTo(last) > 0) {
+                        last = msg;
+                    }
+                }
+            }
+            // The entry may be recycled once the lock is released, so its fields are read now.
+            return last == null ? null : new Last(last, last.getPriority(), last.getSequence());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the message, if it is still visible with the sequence number and has a lower priority
+     * than the given one.
+     *
+     * @return the body size of the dropped message; -1 if it was not dropped
+     */
+    long shed(QueueEntry msg, long sequence, int priority) {
+        lock.lock();
+        try {
+            if (msg.getSequence() != sequence || msg.getPriority() <= priority || !ready.remove(msg)) {
+                return -1;
+            }
+            head = ready.peek();
+        } finally {
+            lock.unlock();
+        }
+        long size = msg.bodySize;
+        entries.release(msg);
+        return size;
+    }
+
+    /**
+     * Makes the message delivered with the receipt id visible again at visibleFrom instead, if it
+     * is still in flight. The timer entry of the old deadline is left to expire unused.
+     */
+    void changeVisibility(long nowTime, String receiptId, long visibleFrom) {
+        long handle = DeliveredMessage.parseHandle(receiptPrefix, receiptId);
+        lock.lock();
+        try {
+            QueueEntry msg = entries.lookup(handle);
+            if (msg == null || msg.isVisibleAt(nowTime)) {
+                return;
+            }
+            msg.setVisibleFrom(visibleFrom);
+            timer.schedule(visibleFrom, this, handle);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private QueueEntry obtain(String msgBody, int priority, long sequence) {
+        QueueEntry msg = entries.obtain(msgBody);
+        msg.setPriority(priority);
+        msg.setSequence(sequence);
+        return msg;
+    }
+
+    // Must be called while holding the lock.
+    private Message deliver(QueueEntry msg, long visibleFrom) {
+        long handle = entries.nextHandle(msg);
+        msg.incrementAttempts();
+        msg.setVisibleFrom(visibleFrom);
+        msg.setHandle(handle);
+        timer.schedule(visibleFrom, this, handle);
+
+        return new DeliveredMessage(entries.body(msg), receiptPrefix, handle);
+    }
+
+    // Puts a delivered message back into the ready heap, unless it was deleted or rescheduled
+    // since.
+    @Override
+    public boolean expire(long handle, long deadline) {
+        lock.lock();
+        try {
+            QueueEntry msg = entries.lookup(handle);
+            if (msg == null || msg.getVisibleFrom() != deadline || !msg.clearHandle(handle)) {
+                return false;
+            }
+            ready.add(msg);
+            head = ready.peek();
+            pushed.signal();
+        } finally {
+            lock.unlock();
+        }
+        notifyReady();
+        return true;
+    }
+
+    // Must be called while holding the lock.
+    private QueueEntry pollReady() {
+        QueueEntry msg = ready.poll();
+        head = ready.peek();
+        return msg;
+    }
+
+    private void notifyReady() {
+        if (readyListener != null) {
+            readyListener.run();
+        }
+    }
+
+    /** A message which would be delivered last, with its priority and sequence number at the time. */
+    static final class Last {
+        final QueueEntry msg;
+        final int priority;
+        final long sequence;
+
+        Last(QueueEntry msg, int priority, long sequence) {
+            this.msg = msg;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        /** @return true if the message would be delivered after the other one */
+        boolean isAfter(Last other) {
+            return priority != other.priority ? priority > other.priority : sequence > other.sequence;
+        }
+    }
+}
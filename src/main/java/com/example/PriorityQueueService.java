@@ -1,5 +1,8 @@
 package com.example;
 
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 public interface PriorityQueueService {
   /** push a message onto a queue. */
   public void push(String queueUrl, String msgBody, int priority);
@@ -7,6 +10,37 @@ public interface PriorityQueueService {
   /** retrieves a single message from a queue. */
   public Message pull(String queueUrl);
 
+  /**
+   * retrieves a single message from a queue, waiting up to waitTime for one to become visible if
+   * there is none; null if none did.
+   */
+  public Message pull(String queueUrl, long waitTime, TimeUnit unit);
+
   /** deletes a message from the queue that was received by pull(). */
   public void delete(String queueUrl, String receiptId);
+
+  /** pushes several messages with the same priority onto a queue, in order. */
+  public void pushBatch(String queueUrl, List<String> msgBodies, int priority);
+
+  /** retrieves up to maxMessages messages from a queue; an empty list if there is none. */
+  public List<Message> pull(String queueUrl, int maxMessages);
+
+  /** deletes several messages from the queue that were received by pull(). */
+  public void deleteBatch(String queueUrl, List<String> receiptIds);
+
+  /**
+   * retrieves up to maxMessages messages from a queue, which stay invisible for visibilityTimeout
+   * seconds instead of the visibility timeout of the queue.
+   */
+  public List<Message> pull(String queueUrl, int maxMessages, int visibilityTimeout);
+
+  /**
+   * makes a message received by pull() visible again visibilityTimeout seconds from now (0 for
+   * right away), if it is still invisible; a consumer extends the timeout of a message it needs
+   * longer to process.
+   */
+  public void changeVisibility(String queueUrl, String receiptId, int visibilityTimeout);
+
+  /** sets the visibility timeout, in seconds, of the messages pulled from a queue from now on. */
+  public void setVisibilityTimeout(String queueUrl, int visibilityTimeout);
 }
@@ -0,0 +1,364 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the pull, process and delete loop of a queue: pulls messages, hands each one to a
+ * {@link MessageHandler} on a virtual thread of its own, and deletes the messages handled without
+ * an exception.
+ *
+ * At most consumerConcurrency handlers run at a time, and up to consumerPrefetch more messages are
+ * pulled ahead so a handler finishing finds the next message waiting. Messages are pulled in
+ * batches, and deleted in batches of up to ackBatchSize at most ackInterval milliseconds after
+ * they were handled. A message whose handler throws is not deleted; it is delivered again once its
+ * visibility timeout expires.
+ *
+ * From the pull until its message is deleted or its handler fails, the visibility timeout of a
+ * message is extended to consumerVisibilityTimeout seconds every half of that time, so neither a
+ * long handler nor a wait behind other handlers sees the message delivered a second time. The
+ * extensions run on a scheduler of their own, so slow deletes do not hold them up. A
+ * {@link VisibilityExtender} may replace how the timeout is extended.
+ *
+ * Works with any QueueService or PriorityQueueService.
+ */
+public class QueueConsumer implements AutoCloseable {
+  /** Processes one message. */
+  public interface MessageHandler {
+    void handle(Message msg) throws Exception;
+  }
+
+  /** Extends the visibility timeout of a message which is still being processed. */
+  public interface VisibilityExtender {
+    void extend(String queueUrl, String receiptId);
+  }
+
+  // The queue operations the consumer needs, whichever kind of queue service it runs against.
+  private interface Source {
+    List<Message> pull(int maxMessages);
+
+    Message pull(long waitTime, TimeUnit unit);
+
+    void deleteBatch(List<String> receiptIds);
+
+    void changeVisibility(String receiptId, int visibilityTimeout);
+  }
+
+  // The most messages pulled with one request.
+  private static final int MAX_PULL_SIZE = 10;
+
+  private final String queueUrl;
+  private final Source source;
+  private final MessageHandler handler;
+
+  private final int ackBatchSize;
+  private final long ackInterval;
+
+  // How long (in milliseconds) one pull waits for a message when the queue is empty.
+  private final long waitTime;
+
+  private VisibilityExtender visibilityExtender;
+  private long extendInterval;
+
+  // Permits for the messages pulled and not yet handled: running handlers and prefetched messages.
+  private final Semaphore slots;
+  // Permits for the running handlers.
+  private final Semaphore running;
+
+  private final ExecutorService handlers = Executors.newVirtualThreadPerTaskExecutor();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "queue-consumer-scheduler");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "queue-consumer-heartbeat");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // Receipt ids of the messages handled and not yet deleted.
+  private final ConcurrentLinkedQueue<String> acks = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pendingAcks = new AtomicInteger();
+  // Held while deleting, so batches are deleted one at a time.
+  private final Object ackLock = new Object();
+
+  private volatile boolean accepting;
+  private Thread fetcher;
+
+  public QueueConsumer(QueueService queueService, String queueUrl, MessageHandler handler) {
+    this(queueService, queueUrl, handler, loadConfig());
+  }
+
+  public QueueConsumer(PriorityQueueService queueService, String queueUrl, MessageHandler handler) {
+    this(queueService, queueUrl, handler, loadConfig());
+  }
+
+  QueueConsumer(QueueService queueService, String queueUrl, MessageHandler handler, Properties confInfo) {
+    this(queueUrl, new Source() {
+      @Override
+      public List<Message> pull(int maxMessages) {
+        return queueService.pull(queueUrl, maxMessages);
+      }
+
+      @Override
+      public Message pull(long waitTime, TimeUnit unit) {
+        return queueService.pull(queueUrl, waitTime, unit);
+      }
+
+      @Override
+      public void deleteBatch(List<String> receiptIds) {
+        queueService.deleteBatch(queueUrl, receiptIds);
+      }
+
+      @Override
+      public void changeVisibility(String receiptId, int visibilityTimeout) {
+        queueService.changeVisibility(queueUrl, receiptId, visibilityTimeout);
+      }
+    }, handler, confInfo);
+  }
+
+  QueueConsumer(PriorityQueueService queueService, String queueUrl, MessageHandler handler, Properties confInfo) {
+    this(queueUrl, new Source() {
+      @Override
+      public List<Message> pull(int maxMessages) {
+        return queueService.pull(queueUrl, maxMessages);
+      }
+
+      @Override
+      public Message pull(long waitTime, TimeUnit unit) {
+        return queueService.pull(queueUrl, waitTime, unit);
+      }
+
+      @Override
+      public void deleteBatch(List<String> receiptIds) {
+        queueService.deleteBatch(queueUrl, receiptIds);
+      }
+
+      @Override
+      public void changeVisibility(String receiptId, int visibilityTimeout) {
+        queueService.changeVisibility(queueUrl, receiptId, visibilityTimeout);
+      }
+    }, handler, confInfo);
+  }
+
+  private QueueConsumer(String queueUrl, Source source, MessageHandler handler, Properties confInfo) {
+    this.queueUrl = queueUrl;
+    this.source = source;
+    this.handler = handler;
+
+    int concurrency = Integer.parseInt(confInfo.getProperty("consumerConcurrency", "16"));
+    int prefetch = Integer.parseInt(confInfo.getProperty("consumerPrefetch", "16"));
+    this.ackBatchSize = Integer.parseInt(confInfo.getProperty("ackBatchSize", "10"));
+    this.ackInterval = Long.parseLong(confInfo.getProperty("ackInterval", "100"));
+    this.waitTime = Long.parseLong(confInfo.getProperty("consumerWaitTime", "1000"));
+
+    this.slots = new Semaphore(concurrency + prefetch);
+    this.running = new Semaphore(concurrency);
+
+    int visibilityTimeout = Integer.parseInt(confInfo.getProperty("consumerVisibilityTimeout", "30"));
+    if (visibilityTimeout > 0) {
+      this.visibilityExtender = (url, receiptId) -> source.changeVisibility(receiptId, visibilityTimeout);
+      this.extendInterval = TimeUnit.SECONDS.toMillis(visibilityTimeout) / 2;
+    }
+  }
+
+  private static Properties loadConfig() {
+    Properties confInfo = new Properties();
+
+    try (InputStream inStream = QueueConsumer.class.getClassLoader().getResourceAsStream("config.properties")) {
+      confInfo.load(inStream);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+
+    return confInfo;
+  }
+
+  /**
+   * Has the visibility timeout of every message extended by the extender every interval
+   * milliseconds until it is handled, instead of by the consumer. Must be called before
+   * {@link #start}.
+   */
+  public void setVisibilityExtender(VisibilityExtender visibilityExtender, long interval) {
+    this.visibilityExtender = visibilityExtender;
+    this.extendInterval = interval;
+  }
+
+  /** Starts pulling and handling messages. */
+  public synchronized void start() {
+    if (fetcher != null) {
+      throw new IllegalStateException("Consumer already started");
+    }
+    accepting = true;
+    scheduler.scheduleWithFixedDelay(this::flushAcks, ackInterval, ackInterval, TimeUnit.MILLISECONDS);
+    fetcher = Thread.ofVirtual().name("queue-consumer-fetcher").start(this::fetch);
+  }
+
+  /**
+   * Stops pulling, lets the running handlers finish, and deletes the messages handled. Prefetched
+   * messages whose handler has not started are left to be delivered again once their visibility
+   * timeout expires.
+   *
+   * @return true if every handler finished in time
+   */
+  public synchronized boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    accepting = false;
+    if (fetcher != null) {
+      fetcher.interrupt();
+      fetcher.join(Math.max(TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()), 1));
+    }
+
+    handlers.shutdown();
+    boolean finished = handlers.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    heartbeats.shutdownNow();
+    scheduler.shutdown();
+    scheduler.awaitTermination(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+    flushAcks();
+    return finished;
+  }
+
+  /**
+   * Shuts down, waiting up to 30 seconds for the running handlers. If the thread is interrupted,
+   * the wait ends early and the interrupt status is set again for the caller.
+   */
+  @Override
+  public void close() {
+    try {
+      shutdown(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void fetch() {
+    while (accepting) {
+      try {
+        slots.acquire();
+      } catch (InterruptedException e) {
+        return;
+      }
+      int wanted = 1;
+      int more = Math.min(slots.availablePermits(), MAX_PULL_SIZE - 1);
+      if (more > 0 && slots.tryAcquire(more)) {
+        wanted += more;
+      }
+
+      List<Message> messages;
+      try {
+        messages = source.pull(wanted);
+        if (messages.isEmpty() && accepting) {
+          // Nothing to batch: wait for the next message.
+          Message msg = source.pull(waitTime, TimeUnit.MILLISECONDS);
+          messages = msg == null ? Collections.emptyList() : Collections.singletonList(msg);
+        }
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+        messages = Collections.emptyList();
+      }
+
+      slots.release(wanted - messages.size());
+      for (Message msg : messages) {
+        ScheduledFuture<?> heartbeat = startHeartbeat(msg);
+        handlers.execute(() -> process(msg, heartbeat));
+      }
+    }
+  }
+
+  // Extends the visibility timeout of a message pulled until the heartbeat is cancelled.
+  private ScheduledFuture<?> startHeartbeat(Message msg) {
+    if (visibilityExtender == null) {
+      return null;
+    }
+    try {
+      return heartbeats.scheduleAtFixedRate(() -> extend(msg), extendInterval, extendInterval,
+          TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Shutting down; the message is not handled.
+      return null;
+    }
+  }
+
+  // The heartbeat stops once the message is acked, its handler failed, or it is left unhandled.
+  private void process(Message msg, ScheduledFuture<?> heartbeat) {
+    try {
+      running.acquire();
+    } catch (InterruptedException e) {
+      stopHeartbeat(heartbeat);
+      slots.release();
+      return;
+    }
+
+    try {
+      if (!accepting) {
+        return;
+      }
+      handler.handle(msg);
+      stopHeartbeat(heartbeat);
+      ack(msg.getReceiptId());
+    } catch (Exception e) {
+      e.printStackTrace();
+    } finally {
+      stopHeartbeat(heartbeat);
+      running.release();
+      slots.release();
+    }
+  }
+
+  private static void stopHeartbeat(ScheduledFuture<?> heartbeat) {
+    if (heartbeat != null) {
+      heartbeat.cancel(false);
+    }
+  }
+
+  private void extend(Message msg) {
+    try {
+      visibilityExtender.extend(queueUrl, msg.getReceiptId());
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void ack(String receiptId) {
+    acks.add(receiptId);
+    if (pendingAcks.incrementAndGet() >= ackBatchSize) {
+      try {
+        scheduler.execute(this::flushAcks);
+      } catch (RejectedExecutionException e) {
+        // Shutting down, which deletes the rest.
+      }
+    }
+  }
+
+  private void flushAcks() {
+    synchronized (ackLock) {
+      while (!acks.isEmpty()) {
+        List<String> batch = new ArrayList<>(ackBatchSize);
+        String receiptId;
+        while (batch.size() < ackBatchSize && (receiptId = acks.poll()) != null) {
+          batch.add(receiptId);
+        }
+        pendingAcks.addAndGet(-batch.size());
+        try {
+          source.deleteBatch(batch);
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+}
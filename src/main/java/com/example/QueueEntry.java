@@ -0,0 +1,114 @@
+package com.example;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A message as an in-memory queue engine holds it, with the bookkeeping of its
+ * {@link ReceiptTable}. Entries are recycled once their message is deleted, so they never leave
+ * the engine: a pull hands out a {@link DeliveredMessage} copy instead.
+ *
+ * A FIFO queue leaves the priority and sequence number at 0.
+ */
+final class QueueEntry implements Comparable<QueueEntry> {
+  private static final AtomicLongFieldUpdater<QueueEntry> HANDLE =
+      AtomicLongFieldUpdater.newUpdater(QueueEntry.class, "handle");
+
+  // Null while the body is kept in a BodyStore.
+  private String body;
+
+  private int attempts;
+
+  private long visibleFrom;
+
+  private int priority;
+
+  // Where the message was pushed in its queue, to keep messages of equal priority FCFS.
+  private long sequence;
+
+  /** The slot of the entry in its {@link ReceiptTable}; -1 if it has none. */
+  int slot = -1;
+
+  /** Where a {@link BodyStore} keeps the body; -1 if it is on the heap. */
+  long bodyRef = -1;
+
+  /** The UTF-8 size of the body, counted against the queue limits. */
+  long bodySize;
+
+  /** The receipt handle of the delivery while the message is in flight; 0 otherwise. */
+  private volatile long handle;
+
+  /** @return the body, if it is kept on the heap; else null */
+  String getBody() {
+    return body;
+  }
+
+  int getAttempts() {
+    return attempts;
+  }
+
+  void incrementAttempts() {
+    attempts++;
+  }
+
+  long getVisibleFrom() {
+    return visibleFrom;
+  }
+
+  void setVisibleFrom(long visibleFrom) {
+    this.visibleFrom = visibleFrom;
+  }
+
+  boolean isVisibleAt(long instant) {
+    return visibleFrom < instant;
+  }
+
+  int getPriority() {
+    return priority;
+  }
+
+  void setPriority(int priority) {
+    this.priority = priority;
+  }
+
+  long getSequence() {
+    return sequence;
+  }
+
+  void setSequence(long sequence) {
+    this.sequence = sequence;
+  }
+
+  long getHandle() {
+    return handle;
+  }
+
+  void setHandle(long handle) {
+    this.handle = handle;
+  }
+
+  /** Ends the delivery with the handle, if it is still the current one. */
+  boolean clearHandle(long expected) {
+    return HANDLE.compareAndSet(this, expected, 0);
+  }
+
+  /** Makes a new or recycled entry hold a new message, with the body on the heap or null. */
+  void reset(String body) {
+    this.body = body;
+    this.attempts = 0;
+    this.visibleFrom = 0;
+    this.priority = 0;
+    this.sequence = 0;
+  }
+
+  @Override
+  public int compareTo(QueueEntry other) {
+    // Lower value has higher priority and should come first
+    int priorityComparison = Integer.compare(this.priority, other.priority);
+    if (priorityComparison != 0) {
+      return priorityComparison;
+    }
+
+    // For equal priority, using FCFS (earlier pushed comes first)
+    return Long.compare(this.sequence, other.sequence);
+  }
+}
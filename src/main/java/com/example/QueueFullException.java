@@ -0,0 +1,17 @@
+package com.example;
+
+/**
+ * Thrown by a push to a queue which has reached its limit of messages or bytes, when the queue
+ * could not make room in time.
+ */
+public class QueueFullException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  QueueFullException(String queueName) {
+    this("Failed to push message: queue " + queueName + " is full", null);
+  }
+
+  QueueFullException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
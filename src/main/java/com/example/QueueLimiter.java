@@ -0,0 +1,192 @@
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Counts the messages and body bytes of one in-memory queue, and holds pushes to its
+ * {@link QueueLimits}.
+ *
+ * The counters are atomic, so an unbounded queue only counts. A bounded queue admits pushes under
+ * a lock, so concurrent pushes never take it past its limits together; deletes only take the lock
+ * when a push is waiting for room.
+ */
+class QueueLimiter {
+  /** Makes room in a full queue. */
+  interface Shedder {
+    /**
+     * Drops the worst visible message, if it is worse than a new one of the priority.
+     *
+     * @return the body size of the dropped message; NONE_VISIBLE if every message is in flight,
+     *     NONE_WORSE if no visible message is worse
+     */
+    long shed(int priority);
+  }
+
+  static final long NONE_VISIBLE = -1;
+  static final long NONE_WORSE = -2;
+
+  // How long a push blocked on a full body store waits before looking again, as deletes from other
+  // queues of the service are not signalled.
+  private static final long STORE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private final String queueName;
+  private final QueueLimits limits;
+
+  private final AtomicLong messages = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+
+  // Pushes waiting for room park on this condition.
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition released = lock.newCondition();
+  private final AtomicInteger waiters = new AtomicInteger();
+
+  QueueLimiter(String queueName, QueueLimits limits) {
+    this.queueName = queueName;
+    this.limits = limits;
+  }
+
+  /**
+   * Counts count new messages of size bytes in all, once the queue has room for them.
+   *
+   * @param shedder drops messages to make room, with the SHED policy
+   * @param priority the priority of the new messages, for the shedder
+   * @return true if the messages are admitted; false if they are to be dropped, as every visible
+   *     message is better
+   * @throws QueueFullException if the queue has no room for them
+   */
+  boolean admit(int count, long size, Shedder shedder, int priority) {
+    if (!limits.isBounded()) {
+      messages.addAndGet(count);
+      bytes.addAndGet(size);
+      return true;
+    }
+    if (!limits.allows(count, size)) {
+      throw new QueueFullException(queueName);
+    }
+
+    long deadline = System.nanoTime() + limits.overflowTimeoutNanos();
+    lock.lock();
+    try {
+      while (!limits.allows(messages.get() + count, bytes.get() + size)) {
+        switch (limits.overflow()) {
+          case SHED:
+            long shed = shedder.shed(priority);
+            if (shed == NONE_WORSE) {
+              return false;
+            }
+            if (shed == NONE_VISIBLE) {
+              throw new QueueFullException(queueName);
+            }
+            release(1, shed);
+            break;
+          case BLOCK:
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+              throw new QueueFullException(queueName);
+            }
+            // Deletes check for waiters after releasing their message, so a message released
+            // from here on is either seen below or signalled.
+            waiters.incrementAndGet();
+            try {
+              if (!limits.allows(messages.get() + count, bytes.get() + size)) {
+                released.awaitNanos(remaining);
+              }
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new QueueFullException(queueName);
+            } finally {
+              waiters.decrementAndGet();
+            }
+            break;
+          default:
+            throw new QueueFullException(queueName);
+        }
+      }
+      messages.addAndGet(count);
+      bytes.addAndGet(size);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Runs the store of admitted messages into the body store the queues of the service share. While
+   * that is full, makes room as the overflow policy says and runs the store again: SHED drops
+   * visible messages of this queue worse than the new ones, BLOCK waits up to the overflow timeout
+   * for deletes.
+   *
+   * @throws BodyStoreFullException if no room was made; the caller releases what it admitted
+   */
+  <T> T store(Supplier<T> store, Shedder shedder, int priority) {
+    long deadline = System.nanoTime() + limits.overflowTimeoutNanos();
+    while (true) {
+      try {
+        return store.get();
+      } catch (BodyStoreFullException e) {
+        if (!makeStoreRoom(shedder, priority, deadline)) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  /** Stops counting count deleted or dropped messages of size bytes in all. */
+  void release(int count, long size) {
+    messages.addAndGet(-count);
+    bytes.addAndGet(-size);
+    if (waiters.get() == 0) {
+      return;
+    }
+    lock.lock();
+    try {
+      released.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Drops a message, or waits for a delete, as the overflow policy says; false if neither helps.
+  private boolean makeStoreRoom(Shedder shedder, int priority, long deadline) {
+    lock.lock();
+    try {
+      switch (limits.overflow()) {
+        case SHED:
+          long shed = shedder.shed(priority);
+          if (shed < 0) {
+            return false;
+          }
+          release(1, shed);
+          return true;
+        case BLOCK:
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            return false;
+          }
+          waiters.incrementAndGet();
+          try {
+            released.awaitNanos(Math.min(remaining, STORE_POLL_NANOS));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+          } finally {
+            waiters.decrementAndGet();
+          }
+          return true;
+        default:
+          return false;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  QueueStats stats() {
+    return new QueueStats(messages.get(), bytes.get());
+  }
+}
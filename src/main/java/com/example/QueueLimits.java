@@ -0,0 +1,76 @@
+package com.example;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How many messages, and how many bytes of message bodies, every queue of a service may hold, and
+ * what a push does once a queue is full:
+ * <ul>
+ *   <li>BLOCK waits up to the overflow timeout for deletes to make room, then fails;</li>
+ *   <li>FAIL fails at once;</li>
+ *   <li>SHED drops visible messages to make room: the lowest priority ones, or in a FIFO queue
+ *       the oldest ones. A new message no better than every visible one is dropped itself; if
+ *       every message is in flight, the push fails.</li>
+ * </ul>
+ * A failed push throws a {@link QueueFullException}. In-flight messages count against the limits
+ * until they are deleted.
+ */
+class QueueLimits {
+  enum Overflow { BLOCK, FAIL, SHED }
+
+  // 0 for no limit.
+  private final long maxMessages;
+  private final long maxBytes;
+
+  private final Overflow overflow;
+
+  private final long overflowTimeoutNanos;
+
+  QueueLimits(long maxMessages, long maxBytes, Overflow overflow, long overflowTimeoutNanos) {
+    this.maxMessages = maxMessages;
+    this.maxBytes = maxBytes;
+    this.overflow = overflow;
+    this.overflowTimeoutNanos = overflowTimeoutNanos;
+  }
+
+  static QueueLimits fromConfig(Properties confInfo) {
+    return new QueueLimits(
+        Long.parseLong(confInfo.getProperty("maxQueueMessages", "0")),
+        Long.parseLong(confInfo.getProperty("maxQueueBytes", "0")),
+        Overflow.valueOf(confInfo.getProperty("queueOverflow", "fail").toUpperCase()),
+        TimeUnit.MILLISECONDS.toNanos(Long.parseLong(confInfo.getProperty("queueOverflowTimeout", "1000"))));
+  }
+
+  boolean isBounded() {
+    return maxMessages > 0 || maxBytes > 0;
+  }
+
+  Overflow overflow() {
+    return overflow;
+  }
+
+  long overflowTimeoutNanos() {
+    return overflowTimeoutNanos;
+  }
+
+  /** @return true if a queue may hold that many messages and bytes */
+  boolean allows(long messages, long bytes) {
+    return (maxMessages <= 0 || messages <= maxMessages) && (maxBytes <= 0 || bytes <= maxBytes);
+  }
+
+  /** @return the size of the body in UTF-8, counted without encoding it */
+  static long sizeOf(String msgBody) {
+    long size = msgBody.length();
+    for (int i = 0; i < msgBody.length(); i++) {
+      char c = msgBody.charAt(i);
+      if (c >= 0x800) {
+        // Three bytes, or four for a surrogate pair of two chars.
+        size += Character.isSurrogate(c) ? 1 : 2;
+      } else if (c >= 0x80) {
+        size++;
+      }
+    }
+    return size;
+  }
+}
@@ -0,0 +1,74 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Exclusive access to a file-based queue, for threads of this JVM and for other processes.
+ *
+ * Threads wait on a ReentrantLock shared by every FileQueueService of the JVM; only the thread
+ * holding it takes the FileChannel lock on the queue's ".lock" file, which excludes other
+ * processes. The operating system releases a file lock when its process dies, so a crashed
+ * process can not leave the queue locked.
+ */
+class QueueLock {
+  private static final Map<Path, QueueLock> LOCKS = new ConcurrentHashMap<>();
+
+  private final Path lockFile;
+  private final ReentrantLock threadLock = new ReentrantLock();
+
+  // Guarded by threadLock.
+  private FileChannel channel;
+  private FileLock fileLock;
+
+  private QueueLock(Path lockFile) {
+    this.lockFile = lockFile;
+  }
+
+  /** @return the lock of the queue stored in the folder */
+  static QueueLock forQueue(Path queueFolder) {
+    return LOCKS.computeIfAbsent(queueFolder.toAbsolutePath().normalize(), f -> new QueueLock(f.resolve(".lock")));
+  }
+
+  void lock() throws InterruptedException, IOException {
+    threadLock.lockInterruptibly();
+    if (threadLock.getHoldCount() > 1) {
+      return;
+    }
+
+    try {
+      if (channel == null || !channel.isOpen()) {
+        // Earlier versions locked by creating a ".lock" directory, which stays behind when the
+        // process holding it dies.
+        if (Files.isDirectory(lockFile)) {
+          Files.deleteIfExists(lockFile);
+        }
+        channel = FileChannel.open(lockFile, CREATE, WRITE);
+      }
+      fileLock = channel.lock();
+    } catch (IOException | RuntimeException e) {
+      threadLock.unlock();
+      throw e;
+    }
+  }
+
+  void unlock() {
+    if (threadLock.getHoldCount() == 1 && fileLock != null) {
+      try {
+        fileLock.release();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      fileLock = null;
+    }
+    threadLock.unlock();
+  }
+}
@@ -0,0 +1,139 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Wakes up the consumers of a file-based queue waiting for a message, when a thread of this JVM
+ * or another process pushes to the queue.
+ *
+ * Every FileQueueService of the JVM shares the notifier of a queue folder, as they share its
+ * {@link QueueLock}. Threads of this JVM are woken directly. For other processes, a push also
+ * writes to a signal file in the queue folder, and the folders of queues with waiting consumers
+ * are watched with a {@link WatchService}; the messages file itself cannot be watched, as writes
+ * through a memory mapping are not reported. Where the file system cannot be watched, or watches
+ * are only polled, as on some platforms, waiting consumers still recheck the queue at intervals.
+ */
+class QueueNotifier {
+  private static final Map<Path, QueueNotifier> NOTIFIERS = new ConcurrentHashMap<>();
+
+  // The file in the queue folder written after every push, for the watchers of other processes.
+  static final String SIGNAL_FILE = "pushed";
+
+  // Watches the folders of the queues consumers wait for; created on the first wait. Guarded by
+  // QueueNotifier.class.
+  private static WatchService watcher;
+
+  private final Path queueFolder;
+
+  // Guarded by this.
+  private long pushes;
+
+  // The watch of the queue folder; null until a consumer waits, or if it cannot be watched.
+  // Guarded by this.
+  private WatchKey watchKey;
+
+  private QueueNotifier(Path queueFolder) {
+    this.queueFolder = queueFolder;
+  }
+
+  /** @return the notifier of the queue stored in the folder */
+  static QueueNotifier forQueue(Path queueFolder) {
+    return NOTIFIERS.computeIfAbsent(queueFolder.toAbsolutePath().normalize(), QueueNotifier::new);
+  }
+
+  /** @return the number of pushes so far, to pass to {@link #await} */
+  synchronized long pushes() {
+    return pushes;
+  }
+
+  /** Wakes the consumers of this JVM, and through the signal file those of other processes. */
+  void notifyPushed() {
+    wake();
+    try (FileChannel signal = FileChannel.open(queueFolder.resolve(SIGNAL_FILE),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      signal.write(ByteBuffer.allocate(1), 0);
+    } catch (IOException e) {
+      // Consumers of other processes find the push when they check the queue again.
+    }
+  }
+
+  /**
+   * Waits until there has been a push since the count was read, or the time is up.
+   *
+   * @param seen the number of pushes read before checking the queue
+   */
+  synchronized void await(long seen, long nanos) throws InterruptedException {
+    watch();
+    long deadline = System.nanoTime() + nanos;
+    long remaining = nanos;
+    while (pushes == seen && remaining > 0) {
+      long millis = remaining / 1_000_000;
+      wait(millis, (int) (remaining % 1_000_000));
+      remaining = deadline - System.nanoTime();
+    }
+  }
+
+  private synchronized void wake() {
+    pushes++;
+    notifyAll();
+  }
+
+  // Must be called while holding the lock. A watch is cancelled when its folder is deleted, so it
+  // is checked before every wait.
+  private void watch() {
+    if (watchKey != null && watchKey.isValid()) {
+      return;
+    }
+    try {
+      watchKey = queueFolder.register(watcher(), StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY);
+    } catch (IOException | UnsupportedOperationException e) {
+      // Left to checking the queue at intervals.
+      watchKey = null;
+    }
+  }
+
+  private static synchronized WatchService watcher() throws IOException {
+    if (watcher == null) {
+      WatchService service = FileSystems.getDefault().newWatchService();
+      Thread thread = new Thread(() -> dispatch(service), "queue-notifier-watcher");
+      thread.setDaemon(true);
+      thread.start();
+      watcher = service;
+    }
+    return watcher;
+  }
+
+  // Wakes the consumers of a queue whose signal file changed; runs for the life of the JVM.
+  private static void dispatch(WatchService service) {
+    try {
+      while (true) {
+        WatchKey key = service.take();
+        boolean signalled = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+          signalled |= event.kind() == StandardWatchEventKinds.OVERFLOW
+              || SIGNAL_FILE.equals(String.valueOf(event.context()));
+        }
+        QueueNotifier notifier = NOTIFIERS.get((Path) key.watchable());
+        if (signalled && notifier != null) {
+          notifier.wake();
+        }
+        key.reset();
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // The JVM is shutting down.
+    }
+  }
+}
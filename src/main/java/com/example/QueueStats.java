@@ -0,0 +1,26 @@
+package com.example;
+
+/** How many messages a queue holds, visible or in flight, and how many bytes their bodies take. */
+public class QueueStats {
+  private final long messages;
+  private final long bytes;
+
+  QueueStats(long messages, long bytes) {
+    this.messages = messages;
+    this.bytes = bytes;
+  }
+
+  public long getMessages() {
+    return messages;
+  }
+
+  /** @return the size of the message bodies, in UTF-8 */
+  public long getBytes() {
+    return bytes;
+  }
+
+  @Override
+  public String toString() {
+    return messages + " messages, " + bytes + " bytes";
+  }
+}
@@ -0,0 +1,130 @@
+package com.example;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The entries of an in-memory queue, and the receipt handles of their deliveries.
+ *
+ * Every entry owns a slot of the table. A receipt handle holds the slot of the entry in its low 32
+ * bits and the generation of the slot in its high 32 bits. The generation grows with every
+ * delivery from the slot, so looking up a handle is an array access, and a stale handle never
+ * matches a later delivery, not even of the same entry.
+ *
+ * The entry of a deleted message is kept for the next push, up to maxFree of them; beyond that it
+ * is dropped, and its slot goes to the next new entry, generation and all.
+ *
+ * With a {@link BodyStore}, the entries keep their bodies there rather than on the heap.
+ */
+class ReceiptTable {
+  private static final int CHUNK_BITS = 10;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private final int maxFree;
+  // Null to keep bodies on the heap.
+  private final BodyStore bodies;
+
+  // Only grows, under the lock; read without it.
+  private volatile Chunk[] chunks = new Chunk[0];
+
+  // Guarded by this.
+  private final ArrayDeque<QueueEntry> free = new ArrayDeque<>();
+  private int[] freeSlots = new int[16];
+  private int freeSlotCount;
+  private int slotCount;
+
+  ReceiptTable(int maxFree, BodyStore bodies) {
+    this.maxFree = maxFree;
+    this.bodies = bodies;
+  }
+
+  /**
+   * @return an entry holding the message body: a deleted one if there is any, else a new one
+   * @throws BodyStoreFullException if the body store is full
+   */
+  QueueEntry obtain(String msgBody) {
+    long bodyRef = bodies == null ? -1 : bodies.store(msgBody);
+    QueueEntry entry;
+    synchronized (this) {
+      entry = free.poll();
+      if (entry == null) {
+        entry = new QueueEntry();
+        assignSlot(entry);
+      }
+    }
+    entry.reset(bodyRef < 0 ? msgBody : null);
+    entry.bodyRef = bodyRef;
+    return entry;
+  }
+
+  /** @return the body of the entry, read back from the body store if it is there */
+  String body(QueueEntry entry) {
+    return entry.bodyRef < 0 ? entry.getBody() : bodies.read(entry.bodyRef);
+  }
+
+  /** @return a handle for a new delivery of the entry, never 0 */
+  long nextHandle(QueueEntry entry) {
+    AtomicIntegerArray generations = chunks[entry.slot >>> CHUNK_BITS].generations;
+    int generation = generations.incrementAndGet(entry.slot & CHUNK_MASK);
+    if (generation == 0) {
+      generation = generations.incrementAndGet(entry.slot & CHUNK_MASK);
+    }
+    return ((long) generation << 32) | entry.slot;
+  }
+
+  /** @return the entry delivered with the handle, if that delivery is still in flight; else null */
+  QueueEntry lookup(long handle) {
+    int slot = (int) handle;
+    Chunk[] current = chunks;
+    if (handle == 0 || slot < 0 || (slot >>> CHUNK_BITS) >= current.length) {
+      return null;
+    }
+    QueueEntry entry = current[slot >>> CHUNK_BITS].entries.get(slot & CHUNK_MASK);
+    return entry != null && entry.getHandle() == handle ? entry : null;
+  }
+
+  /** Takes back the entry of a deleted message, whose handle was cleared. */
+  void release(QueueEntry entry) {
+    if (entry.bodyRef >= 0) {
+      bodies.free(entry.bodyRef);
+      entry.bodyRef = -1;
+    }
+    entry.reset(null);
+    synchronized (this) {
+      if (free.size() < maxFree) {
+        free.push(entry);
+        return;
+      }
+      chunks[entry.slot >>> CHUNK_BITS].entries.set(entry.slot & CHUNK_MASK, null);
+      if (freeSlotCount == freeSlots.length) {
+        freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+      }
+      freeSlots[freeSlotCount++] = entry.slot;
+    }
+  }
+
+  // Must be called while holding the lock.
+  private void assignSlot(QueueEntry entry) {
+    int slot;
+    if (freeSlotCount > 0) {
+      slot = freeSlots[--freeSlotCount];
+    } else {
+      slot = slotCount++;
+      if ((slot >>> CHUNK_BITS) == chunks.length) {
+        Chunk[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+        grown[chunks.length] = new Chunk();
+        chunks = grown;
+      }
+    }
+    entry.slot = slot;
+    chunks[slot >>> CHUNK_BITS].entries.set(slot & CHUNK_MASK, entry);
+  }
+
+  private static class Chunk {
+    final AtomicReferenceArray<QueueEntry> entries = new AtomicReferenceArray<>(CHUNK_SIZE);
+    final AtomicIntegerArray generations = new AtomicIntegerArray(CHUNK_SIZE);
+  }
+}
@@ -0,0 +1,653 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+/**
+ * Append-only storage of one file-based queue.
+ *
+ * Message bodies are appended to numbered segment files and never rewritten. What happens to a
+ * message afterwards (delivery, redelivery, deletion) is appended as a record to a state log. Each
+ * process keeps a view of the queue built from the state log: the cursor of the next message which
+ * was never delivered, the messages currently in flight, and how many messages and bytes the queue
+ * holds. Every operation first reads the state
+ * records other processes appended since its last call, so push, pull and delete all do a constant
+ * amount of I/O whatever the size of the queue.
+ *
+ * Both the segments and the state log are {@link MappedSegment}s: memory-mapped files of binary,
+ * length-prefixed records, so no operation parses text or goes through a reader or writer.
+ *
+ * Segments that lie completely behind the cursor and hold no in-flight message are deleted by
+ * compaction, which also rewrites the state log into a new generation once it grows too large.
+ * The old generation ends with a record naming its successor, so other processes follow it. A new
+ * generation is written under a temporary name and only renamed once complete, so recovery never
+ * finds one only partly written; an older generation left behind by a crash is ended and deleted
+ * when the queue is opened next.
+ *
+ * All methods must be called while holding the queue lock.
+ */
+class SegmentedLog implements FileQueueStore {
+  // State log record types. Every record starts with its type byte, followed by:
+  //    CHECKPOINT  long cursor segment, long cursor offset, long last segment, long messages,
+  //                long bytes                       the first record of a generation
+  //    ROLL        long segment                     a new segment was started
+  //    PUSH        long messages, long bytes        messages were appended
+  //    DELIVERY    long segment, long offset, long next offset, int attempts, long visible from,
+  //                receipt id, previous receipt id (two longs each, zero if there is none)
+  //    ACK         receipt id                       the message was deleted
+  //    VISIBILITY  receipt id, long visible from    the message becomes visible at another time
+  //    DROP        long segment, long offset, long next offset
+  //                                                 the message was deleted without a delivery
+  //    END         long generation                  the log continues in another generation
+  private static final byte CHECKPOINT = 'C';
+  private static final byte ROLL = 'R';
+  private static final byte PUSH = 'P';
+  private static final byte DELIVERY = 'D';
+  private static final byte ACK = 'A';
+  private static final byte VISIBILITY = 'V';
+  private static final byte END = 'E';
+  private static final byte DROP = 'X';
+
+  private static final int DELIVERY_SIZE = 1 + 8 + 8 + 8 + 4 + 8 + 16 + 16;
+
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String STATE_PREFIX = "state-";
+  private static final String STATE_SUFFIX = ".log";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  // Initial size of a state log file; it grows when needed.
+  private static final long STATE_LOG_CAPACITY = 1024 * 1024;
+
+  // Rewrite the state log once it is larger than this, and than twice its size after the last
+  // rewrite: the in-flight deliveries copied into a new generation may fill more than this alone.
+  private static final long STATE_LOG_COMPACTION_SIZE = 1024 * 1024;
+
+  private final Path dir;
+  private final long segmentSize;
+
+  private long generation;
+  private MappedSegment stateLog;
+  private long stateLogPosition;
+  // The size of the state log when its generation started.
+  private long stateLogStartSize;
+
+  private long firstSegment;
+  private long lastSegment;
+  private long cursorSegment;
+  private long cursorOffset;
+
+  // The messages which have not been acknowledged, and the size of their bodies. Queues written by
+  // earlier versions, whose logs do not count pushes, count only the messages pushed since.
+  private long messages;
+  private long bytes;
+
+  private final Map<UUID, Delivery> receipts = new HashMap<>();
+  private final PriorityQueue<Delivery> inFlight =
+      new PriorityQueue<>(Comparator.comparingLong((Delivery d) -> d.visibleFrom));
+  // Number of in-flight messages per segment; a segment behind the cursor without any can go.
+  private final Map<Long, Integer> liveCounts = new HashMap<>();
+
+  private final Map<Long, MappedSegment> segments = new HashMap<>();
+
+  // Reused for encoding state log records.
+  private final ByteBuffer record = ByteBuffer.allocate(DELIVERY_SIZE);
+
+  private boolean compactionScheduled;
+
+  // Written while holding the queue lock, read without.
+  private volatile long expirations;
+
+  SegmentedLog(Path dir, long segmentSize) throws IOException {
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+
+    long lowest = Long.MAX_VALUE;
+    List<Long> generations = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(SEGMENT_SUFFIX)) {
+          lowest = Math.min(lowest, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+        } else if (name.startsWith(STATE_PREFIX) && name.endsWith(STATE_SUFFIX)) {
+          generations.add(Long.parseLong(name.substring(STATE_PREFIX.length(), name.length() - STATE_SUFFIX.length())));
+        } else if (name.startsWith(STATE_PREFIX) && name.endsWith(STATE_SUFFIX + TEMP_SUFFIX)) {
+          // A generation a crash interrupted before it was complete.
+          Files.deleteIfExists(file);
+        }
+      }
+    }
+    firstSegment = lowest == Long.MAX_VALUE ? 1 : lowest;
+
+    if (generations.isEmpty()) {
+      startGeneration(1, firstSegment, MappedSegment.HEADER_SIZE, firstSegment, 0, 0);
+      publishGeneration();
+    } else {
+      long highestGeneration = Collections.max(generations);
+      for (long gen : generations) {
+        if (gen < highestGeneration) {
+          endGeneration(gen, highestGeneration);
+        }
+      }
+      openGeneration(highestGeneration);
+    }
+  }
+
+  @Override
+  public void push(List<String> messageBodies) throws IOException {
+    refresh();
+
+    // The messages which fit into the last segment are appended together, the rest go to new
+    // segments.
+    MappedSegment segment = segment(lastSegment);
+    List<ByteBuffer> batch = new ArrayList<>(messageBodies.size());
+    long batchLength = 0;
+    long pushedBytes = 0;
+    for (String messageBody : messageBodies) {
+      ByteBuffer payload = StandardCharsets.UTF_8.encode(messageBody);
+      pushedBytes += payload.remaining();
+      if (!segment.hasRoom(batchLength + payload.remaining())) {
+        segment.append(batch);
+        batch.clear();
+        batchLength = 0;
+
+        lastSegment++;
+        appendState(record(ROLL).putLong(lastSegment));
+        segment = MappedSegment.open(segmentPath(lastSegment),
+            Math.max(segmentSize, MappedSegment.HEADER_SIZE + MappedSegment.LENGTH_SIZE + payload.remaining()));
+        segments.put(lastSegment, segment);
+      }
+      batch.add(payload);
+      batchLength += MappedSegment.LENGTH_SIZE + payload.remaining();
+    }
+    segment.append(batch);
+    appendState(record(PUSH).putLong(messageBodies.size()).putLong(pushedBytes));
+  }
+
+  @Override
+  public Message pull(long nowTime, long visibleFrom) throws IOException {
+    refresh();
+
+    Delivery expired = takeExpired(nowTime);
+    if (expired != null) {
+      expirations++;
+      return deliver(expired, expired.segment, expired.offset, expired.nextOffset, visibleFrom);
+    }
+    if (!advanceCursor()) {
+      return null;
+    }
+    return deliver(null, cursorSegment, cursorOffset, segment(cursorSegment).next(cursorOffset), visibleFrom);
+  }
+
+  @Override
+  public boolean dropOldest(long nowTime) throws IOException {
+    refresh();
+
+    Delivery expired = takeExpired(nowTime);
+    if (expired != null) {
+      appendState(putReceipt(record(ACK), expired.receiptId));
+      return true;
+    }
+    if (!advanceCursor()) {
+      return false;
+    }
+    appendState(record(DROP).putLong(cursorSegment).putLong(cursorOffset)
+        .putLong(segment(cursorSegment).next(cursorOffset)));
+    return true;
+  }
+
+  // Messages whose visibility timeout expired are at the head of the queue again.
+  //
+  // @return the delivery of the first of them; null if there is none
+  private Delivery takeExpired(long nowTime) {
+    Delivery expired;
+    while ((expired = inFlight.peek()) != null && expired.visibleFrom < nowTime) {
+      inFlight.poll();
+      if (receipts.get(expired.receiptId) == expired) {
+        return expired;
+      }
+    }
+    return null;
+  }
+
+  // Move the cursor onto the next message never delivered.
+  //
+  // @return false if there is none
+  private boolean advanceCursor() throws IOException {
+    while (cursorOffset >= segment(cursorSegment).end()) {
+      if (cursorSegment >= lastSegment) {
+        return false;
+      }
+      cursorSegment++;
+      cursorOffset = MappedSegment.HEADER_SIZE;
+      scheduleCompaction();
+    }
+    return true;
+  }
+
+  @Override
+  public void delete(long nowTime, String receiptId) throws IOException {
+    refresh();
+
+    UUID receipt;
+    try {
+      receipt = UUID.fromString(receiptId);
+    } catch (IllegalArgumentException e) {
+      return;
+    }
+
+    Delivery delivery = receipts.get(receipt);
+    if (delivery != null && delivery.visibleFrom >= nowTime) {
+      appendState(putReceipt(record(ACK), receipt));
+    }
+  }
+
+  @Override
+  public void changeVisibility(long nowTime, String receiptId, long visibleFrom) throws IOException {
+    refresh();
+
+    UUID receipt;
+    try {
+      receipt = UUID.fromString(receiptId);
+    } catch (IllegalArgumentException e) {
+      return;
+    }
+
+    Delivery delivery = receipts.get(receipt);
+    if (delivery != null && delivery.visibleFrom >= nowTime) {
+      appendState(putReceipt(record(VISIBILITY), receipt).putLong(visibleFrom));
+    }
+  }
+
+  @Override
+  public long expirations() {
+    return expirations;
+  }
+
+  @Override
+  public long messages() throws IOException {
+    refresh();
+    return Math.max(messages, 0);
+  }
+
+  @Override
+  public long bytes() throws IOException {
+    refresh();
+    return Math.max(bytes, 0);
+  }
+
+  /**
+   * Drops every message of the queue, by starting a new state log generation whose cursor is at a
+   * new, empty segment.
+   */
+  @Override
+  public void purge() throws IOException {
+    refresh();
+
+    long segment = lastSegment + 1;
+    switchGeneration(generation + 1, segment, MappedSegment.HEADER_SIZE, segment, 0, 0, Collections.emptyList());
+    deleteSegmentsBefore(segment);
+  }
+
+  @Override
+  public void force() {
+    for (MappedSegment segment : segments.values()) {
+      segment.force();
+    }
+    stateLog.force();
+  }
+
+  @Override
+  public boolean takeCompactionRequest() {
+    boolean requested = compactionScheduled;
+    compactionScheduled = false;
+    return requested;
+  }
+
+  /**
+   * Deletes the segments which have been delivered and acknowledged completely, and rewrites the
+   * state log if it has grown too large.
+   */
+  @Override
+  public void compact() throws IOException {
+    refresh();
+
+    long segment = firstSegment;
+    while (segment < cursorSegment && liveCounts.getOrDefault(segment, 0) == 0) {
+      closeSegment(segment);
+      Files.deleteIfExists(segmentPath(segment));
+      segment++;
+    }
+    firstSegment = segment;
+
+    if (stateLogTooLarge()) {
+      switchGeneration(generation + 1, cursorSegment, cursorOffset, lastSegment, messages, bytes,
+          new ArrayList<>(receipts.values()));
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (MappedSegment segment : segments.values()) {
+      segment.close();
+    }
+    segments.clear();
+    stateLog.close();
+  }
+
+  private Message deliver(Delivery previous, long segment, long offset, long nextOffset, long visibleFrom)
+      throws IOException {
+    String body = StandardCharsets.UTF_8.decode(segment(segment).read(offset)).toString();
+    Delivery delivery = new Delivery(segment, offset, nextOffset, previous == null ? 1 : previous.attempts + 1,
+        visibleFrom, UUID.randomUUID());
+    appendState(deliveryRecord(delivery, previous));
+
+    return new Message(body, delivery.receiptId.toString());
+  }
+
+  //
+  // State log
+  //
+
+  private ByteBuffer record(byte type) {
+    record.clear();
+    return record.put(type);
+  }
+
+  private static ByteBuffer putReceipt(ByteBuffer buffer, UUID receipt) {
+    return receipt == null
+        ? buffer.putLong(0).putLong(0)
+        : buffer.putLong(receipt.getMostSignificantBits()).putLong(receipt.getLeastSignificantBits());
+  }
+
+  private static UUID getReceipt(ByteBuffer buffer) {
+    long msb = buffer.getLong();
+    long lsb = buffer.getLong();
+    return msb == 0 && lsb == 0 ? null : new UUID(msb, lsb);
+  }
+
+  private ByteBuffer deliveryRecord(Delivery d, Delivery previous) {
+    ByteBuffer buffer = record(DELIVERY).putLong(d.segment).putLong(d.offset).putLong(d.nextOffset)
+        .putInt(d.attempts).putLong(d.visibleFrom);
+    putReceipt(buffer, d.receiptId);
+    return putReceipt(buffer, previous == null ? null : previous.receiptId);
+  }
+
+  // Apply the records appended by other processes since the last call.
+  private void refresh() throws IOException {
+    while (stateLogPosition < stateLog.end()) {
+      ByteBuffer payload = stateLog.read(stateLogPosition);
+      stateLogPosition = stateLog.next(stateLogPosition);
+      if (!apply(payload)) {
+        // This generation has ended, the rest of the view comes from the next one.
+        return;
+      }
+    }
+  }
+
+  private void appendState(ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    long offset = stateLog.append(buffer);
+    stateLogPosition = stateLog.next(offset);
+    buffer.rewind();
+    apply(buffer);
+
+    if (stateLogTooLarge()) {
+      scheduleCompaction();
+    }
+  }
+
+  /** @return false if the record ends the current generation. */
+  private boolean apply(ByteBuffer payload) throws IOException {
+    switch (payload.get()) {
+      case CHECKPOINT:
+        cursorSegment = payload.getLong();
+        cursorOffset = payload.getLong();
+        lastSegment = payload.getLong();
+        // Checkpoints written by earlier versions end here.
+        if (payload.remaining() >= 16) {
+          messages = payload.getLong();
+          bytes = payload.getLong();
+        }
+        break;
+      case ROLL:
+        lastSegment = Math.max(lastSegment, payload.getLong());
+        break;
+      case PUSH:
+        messages += payload.getLong();
+        bytes += payload.getLong();
+        break;
+      case DELIVERY:
+        Delivery delivery = new Delivery(payload.getLong(), payload.getLong(), payload.getLong(),
+            payload.getInt(), payload.getLong(), getReceipt(payload));
+        applyDelivery(delivery, getReceipt(payload));
+        break;
+      case ACK:
+        Delivery acked = receipts.remove(getReceipt(payload));
+        if (acked != null) {
+          messages--;
+          bytes -= acked.nextOffset - acked.offset - MappedSegment.LENGTH_SIZE;
+          int live = liveCounts.merge(acked.segment, -1, Integer::sum);
+          if (live == 0) {
+            liveCounts.remove(acked.segment);
+            if (acked.segment < cursorSegment) {
+              scheduleCompaction();
+            }
+          }
+        }
+        break;
+      case VISIBILITY:
+        // The delivery is replaced, so the heap entry of the old deadline no longer matches.
+        UUID receipt = getReceipt(payload);
+        Delivery current = receipts.get(receipt);
+        if (current != null) {
+          Delivery changed = new Delivery(current.segment, current.offset, current.nextOffset, current.attempts,
+              payload.getLong(), receipt);
+          receipts.put(receipt, changed);
+          inFlight.add(changed);
+        }
+        break;
+      case DROP:
+        long segment = payload.getLong();
+        long offset = payload.getLong();
+        long nextOffset = payload.getLong();
+        messages--;
+        bytes -= nextOffset - offset - MappedSegment.LENGTH_SIZE;
+        if (segment > cursorSegment || (segment == cursorSegment && nextOffset > cursorOffset)) {
+          cursorSegment = segment;
+          cursorOffset = nextOffset;
+        }
+        break;
+      case END:
+        openGeneration(payload.getLong());
+        return false;
+      default:
+        break;
+    }
+    return true;
+  }
+
+  private void applyDelivery(Delivery delivery, UUID previousReceiptId) {
+    if (previousReceiptId != null && receipts.remove(previousReceiptId) != null) {
+      liveCounts.merge(delivery.segment, -1, Integer::sum);
+    }
+
+    receipts.put(delivery.receiptId, delivery);
+    inFlight.add(delivery);
+    liveCounts.merge(delivery.segment, 1, Integer::sum);
+
+    if (delivery.segment > cursorSegment
+        || (delivery.segment == cursorSegment && delivery.nextOffset > cursorOffset)) {
+      cursorSegment = delivery.segment;
+      cursorOffset = delivery.nextOffset;
+    }
+  }
+
+  // Start a new generation under its temporary name; see publishGeneration.
+  private void startGeneration(long gen, long cursorSeg, long cursorOff, long lastSeg, long msgs, long size)
+      throws IOException {
+    resetView(gen);
+    Files.deleteIfExists(tempStatePath(gen));
+    stateLog = MappedSegment.open(tempStatePath(gen), STATE_LOG_CAPACITY);
+    stateLogPosition = MappedSegment.HEADER_SIZE;
+    appendState(record(CHECKPOINT).putLong(cursorSeg).putLong(cursorOff).putLong(lastSeg).putLong(msgs)
+        .putLong(size));
+  }
+
+  // Write the checkpoint and every in-flight message to a new generation, then point the old
+  // generation at it.
+  private void switchGeneration(long gen, long cursorSeg, long cursorOff, long lastSeg, long msgs, long size,
+      Collection<Delivery> live) throws IOException {
+    MappedSegment oldLog = stateLog;
+
+    startGeneration(gen, cursorSeg, cursorOff, lastSeg, msgs, size);
+    for (Delivery d : live) {
+      appendState(deliveryRecord(d, null));
+    }
+    publishGeneration();
+
+    ByteBuffer end = record(END).putLong(gen);
+    end.flip();
+    oldLog.append(end);
+    oldLog.close();
+    Files.deleteIfExists(oldLog.path());
+  }
+
+  // Flush the new generation and give it its name in one step, so it is either found complete or
+  // not at all.
+  private void publishGeneration() throws IOException {
+    stateLog.force();
+    stateLog.close();
+    Files.move(tempStatePath(generation), statePath(generation), StandardCopyOption.ATOMIC_MOVE);
+    stateLog = MappedSegment.open(statePath(generation), STATE_LOG_CAPACITY);
+    stateLogStartSize = stateLogPosition;
+  }
+
+  private boolean stateLogTooLarge() {
+    return stateLogPosition > Math.max(STATE_LOG_COMPACTION_SIZE, 2 * stateLogStartSize);
+  }
+
+  // End a generation which a crash left behind without its END record, so processes still reading
+  // it follow the later one, and delete it.
+  private void endGeneration(long gen, long successor) throws IOException {
+    try (MappedSegment oldLog = MappedSegment.open(statePath(gen), STATE_LOG_CAPACITY)) {
+      ByteBuffer end = record(END).putLong(successor);
+      end.flip();
+      oldLog.append(end);
+    }
+    Files.deleteIfExists(statePath(gen));
+  }
+
+  private void openGeneration(long gen) throws IOException {
+    if (stateLog != null) {
+      stateLog.close();
+    }
+    resetView(gen);
+    if (Files.notExists(statePath(gen))) {
+      // Already superseded by a later generation as well.
+      long latest = gen;
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, STATE_PREFIX + "*" + STATE_SUFFIX)) {
+        for (Path file : files) {
+          String name = file.getFileName().toString();
+          latest = Math.max(latest,
+              Long.parseLong(name.substring(STATE_PREFIX.length(), name.length() - STATE_SUFFIX.length())));
+        }
+      }
+      if (latest == gen) {
+        throw new NoSuchFileException(statePath(gen).toString());
+      }
+      openGeneration(latest);
+      return;
+    }
+    stateLog = MappedSegment.open(statePath(gen), STATE_LOG_CAPACITY);
+    stateLogPosition = MappedSegment.HEADER_SIZE;
+    refresh();
+    // Written by another process, or before a restart: about what a rewrite of the view would take.
+    stateLogStartSize = MappedSegment.HEADER_SIZE + (long) receipts.size() * (MappedSegment.LENGTH_SIZE + DELIVERY_SIZE);
+  }
+
+  private void resetView(long gen) {
+    generation = gen;
+    messages = 0;
+    bytes = 0;
+    receipts.clear();
+    inFlight.clear();
+    liveCounts.clear();
+  }
+
+  private void scheduleCompaction() {
+    compactionScheduled = true;
+  }
+
+  //
+  // Segments
+  //
+
+  private MappedSegment segment(long segment) throws IOException {
+    MappedSegment mapped = segments.get(segment);
+    if (mapped == null) {
+      mapped = MappedSegment.open(segmentPath(segment), segmentSize);
+      segments.put(segment, mapped);
+    }
+    return mapped;
+  }
+
+  private void closeSegment(long segment) throws IOException {
+    MappedSegment mapped = segments.remove(segment);
+    if (mapped != null) {
+      mapped.close();
+    }
+  }
+
+  private void deleteSegmentsBefore(long segment) throws IOException {
+    for (long s = firstSegment; s < segment; s++) {
+      closeSegment(s);
+      Files.deleteIfExists(segmentPath(s));
+    }
+    firstSegment = segment;
+  }
+
+  private Path segmentPath(long segment) {
+    return dir.resolve(String.format("%020d", segment) + SEGMENT_SUFFIX);
+  }
+
+  private Path statePath(long gen) {
+    return dir.resolve(STATE_PREFIX + String.format("%020d", gen) + STATE_SUFFIX);
+  }
+
+  private Path tempStatePath(long gen) {
+    return dir.resolve(STATE_PREFIX + String.format("%020d", gen) + STATE_SUFFIX + TEMP_SUFFIX);
+  }
+
+  private static class Delivery {
+    final long segment;
+    final long offset;
+    final long nextOffset;
+    final int attempts;
+    final long visibleFrom;
+    final UUID receiptId;
+
+    Delivery(long segment, long offset, long nextOffset, int attempts, long visibleFrom, UUID receiptId) {
+      this.segment = segment;
+      this.offset = offset;
+      this.nextOffset = nextOffset;
+      this.attempts = attempts;
+      this.visibleFrom = visibleFrom;
+      this.receiptId = receiptId;
+    }
+  }
+}
@@ -0,0 +1,302 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * An in-memory priority queue split into shards, each a {@link PriorityQueueEngine} with a heap
+ * and lock of its own, so producers and consumers on many cores do not all contend on one lock.
+ *
+ * A thread always pushes to the same shard, picked from its thread id. A pull looks at the head of
+ * every shard without locking and pulls from the shard with the best one. In relaxed mode it only
+ * compares the heads of two shards picked at random, as a MultiQueue does: a pull may then deliver
+ * a message of lower priority while a better one waits in another shard, but it costs the same
+ * however many shards there are. A pull only reports the queue empty once every shard is.
+ *
+ * Messages are numbered in the order they are pushed to the queue, across all shards, and
+ * messages of equal priority are delivered in that order.
+ *
+ * Receipt ids start with the index of the shard, so a delete goes straight to it.
+ *
+ * Pushes are admitted by the {@link QueueLimiter} of the queue. Shedding drops the visible message
+ * of the lowest priority across all shards, the latest pushed among equals.
+ *
+ * With a single shard, every call goes straight to it.
+ */
+class ShardedPriorityQueueEngine implements QueueLimiter.Shedder {
+    private final PriorityQueueEngine[] shards;
+    private final boolean relaxed;
+    private final VisibilityTimer timer;
+    private final QueueLimiter limiter;
+
+    // The sequence number of the last message pushed.
+    private final AtomicLong sequence = new AtomicLong();
+
+    // Consumers waiting for a message park on this condition. The shards only take the lock when
+    // someone is waiting.
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition changed = waitLock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    ShardedPriorityQueueEngine(VisibilityTimer timer, int shardCount, boolean relaxed, int priorityLevels,
+            int poolSize, BodyStore bodies, QueueLimiter limiter) {
+        this.timer = timer;
+        this.limiter = limiter;
+        this.relaxed = relaxed;
+        this.shards = new PriorityQueueEngine[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = shardCount == 1
+                    ? new PriorityQueueEngine(timer, priorityLevels, poolSize, bodies, "", null)
+                    : new PriorityQueueEngine(timer, priorityLevels, poolSize, bodies, i + ":",
+                            this::signalWaiters);
+        }
+    }
+
+    /** @throws QueueFullException if the queue has no room for the message */
+    void push(String msgBody, int priority) {
+        long size = QueueLimits.sizeOf(msgBody);
+        if (!limiter.admit(1, size, this, priority)) {
+            return;
+        }
+        long seq = sequence.incrementAndGet();
+        try {
+            limiter.store(() -> {
+                home().push(msgBody, size, priority, seq);
+                return null;
+            }, this, priority);
+        } catch (RuntimeException e) {
+            limiter.release(1, size);
+            throw e;
+        }
+    }
+
+    /**
+     * Pushes the messages with consecutive sequence numbers, so they are delivered in order.
+     *
+     * @throws QueueFullException if the queue has no room for all of them
+     */
+    void pushAll(List<String> msgBodies, int priority) {
+        long size = 0;
+        for (String msgBody : msgBodies) {
+            size += QueueLimits.sizeOf(msgBody);
+        }
+        if (!limiter.admit(msgBodies.size(), size, this, priority)) {
+            return;
+        }
+        long firstSequence = sequence.getAndAdd(msgBodies.size()) + 1;
+        try {
+            limiter.store(() -> {
+                home().pushAll(msgBodies, priority, firstSequence);
+                return null;
+            }, this, priority);
+        } catch (RuntimeException e) {
+            limiter.release(msgBodies.size(), size);
+            throw e;
+        }
+    }
+
+    /**
+     * Delivers the visible message with the highest priority, or in relaxed mode one of the
+     * messages with the highest priority of their shard.
+     *
+     * @return a copy of the delivered message; null if no message is visible
+     */
+    Message pull(long nowTime, long visibleFrom) {
+        if (shards.length == 1) {
+            return shards[0].pull(nowTime, visibleFrom);
+        }
+
+        // Expired messages go back to their shard first, so their heads are current.
+        timer.advance(nowTime);
+        PriorityQueueEngine shard;
+        while ((shard = choose()) != null) {
+            Message msg = shard.pull(nowTime, visibleFrom);
+            if (msg != null) {
+                return msg;
+            }
+            // Another consumer emptied the shard meanwhile; choose again.
+        }
+        return null;
+    }
+
+    /**
+     * Delivers a message as {@link #pull(long, long)} does, waiting up to waitNanos for one to
+     * become visible if there is none.
+     *
+     * @return a copy of the delivered message; null if no message became visible in time, or the
+     *     thread was interrupted
+     */
+    Message pull(LongSupplier nowTime, LongSupplier visibleFrom, long waitNanos) {
+        if (shards.length == 1) {
+            return shards[0].pull(nowTime, visibleFrom, waitNanos);
+        }
+
+        long deadline = System.nanoTime() + waitNanos;
+        while (true) {
+            // The timer runs the tasks of other queues too, so it is advanced without the wait lock.
+            Message msg = pull(nowTime.getAsLong(), visibleFrom.getAsLong());
+            long remaining = deadline - System.nanoTime();
+            if (msg != null || remaining <= 0) {
+                return msg;
+            }
+
+            waitLock.lock();
+            // The shards check for waiters after a message becomes visible, so a message added
+            // from here on is either seen below or signalled.
+            waiters.incrementAndGet();
+            try {
+                if (isEmpty()) {
+                    changed.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                waiters.decrementAndGet();
+                waitLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Delivers up to maxMessages visible messages, each chosen as {@link #pull(long, long)} does.
+     *
+     * @return copies of the delivered messages; empty if no message is visible
+     */
+    List<Message> pull(long nowTime, long visibleFrom, int maxMessages) {
+        if (shards.length == 1) {
+            return shards[0].pull(nowTime, visibleFrom, maxMessages);
+        }
+
+        List<Message> messages = new ArrayList<>(Math.min(maxMessages, 16));
+        Message msg;
+        while (messages.size() < maxMessages && (msg = pull(nowTime, visibleFrom)) != null) {
+            messages.add(msg);
+        }
+        return messages;
+    }
+
+    void delete(long nowTime, String receiptId) {
+        PriorityQueueEngine shard = shardOf(receiptId);
+        if (shard != null) {
+            long size = shard.delete(nowTime, receiptId);
+            if (size >= 0) {
+                limiter.release(1, size);
+            }
+        }
+    }
+
+    void changeVisibility(long nowTime, String receiptId, long visibleFrom) {
+        PriorityQueueEngine shard = shardOf(receiptId);
+        if (shard != null) {
+            shard.changeVisibility(nowTime, receiptId, visibleFrom);
+        }
+    }
+
+    QueueStats stats() {
+        return limiter.stats();
+    }
+
+    // Drops the last visible message of all shards, if it has a lower priority than the given one.
+    @Override
+    public long shed(int priority) {
+        while (true) {
+            PriorityQueueEngine lastShard = null;
+            PriorityQueueEngine.Last last = null;
+            for (PriorityQueueEngine shard : shards) {
+                PriorityQueueEngine.Last candidate = shard.peekLast();
+                if (candidate != null && (last == null || candidate.isAfter(last))) {
+                    last = candidate;
+                    lastShard = shard;
+                }
+            }
+            if (last == null) {
+                return QueueLimiter.NONE_VISIBLE;
+            }
+            if (last.priority <= priority) {
+                return QueueLimiter.NONE_WORSE;
+            }
+            // The shard checks again under its lock that the entry still holds that message.
+            long size = lastShard.shed(last.msg, last.sequence, priority);
+            if (size >= 0) {
+                return size;
+            }
+            // Delivered by another consumer, or its entry recycled, meanwhile; look again.
+        }
+    }
+
+    // The shard the current thread pushes to.
+    private PriorityQueueEngine home() {
+        return shards[(int) (Thread.currentThread().threadId() % shards.length)];
+    }
+
+    // The shard to pull from; null if every shard is empty.
+    private PriorityQueueEngine choose() {
+        if (relaxed) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(shards.length);
+            int second = (first + 1 + random.nextInt(shards.length - 1)) % shards.length;
+            PriorityQueueEngine better = better(shards[first], shards[second]);
+            if (better != null) {
+                return better;
+            }
+        }
+
+        PriorityQueueEngine best = null;
+        for (PriorityQueueEngine shard : shards) {
+            best = better(best, shard);
+        }
+        return best;
+    }
+
+    // The shard with the better head; null if neither has one.
+    private static PriorityQueueEngine better(PriorityQueueEngine a, PriorityQueueEngine b) {
+        QueueEntry headA = a == null ? null : a.peek();
+        QueueEntry headB = b.peek();
+        if (headA == null) {
+            return headB == null ? null : b;
+        }
+        return headB == null || headA.compareTo(headB) <= 0 ? a : b;
+    }
+
+    private boolean isEmpty() {
+        for (PriorityQueueEngine shard : shards) {
+            if (shard.peek() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private PriorityQueueEngine shardOf(String receiptId) {
+        if (shards.length == 1) {
+            return shards[0];
+        }
+        int separator = receiptId.indexOf(':');
+        try {
+            int index = Integer.parseInt(receiptId, 0, Math.max(separator, 0), 10);
+            return index >= 0 && index < shards.length ? shards[index] : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void signalWaiters() {
+        if (waiters.get() == 0) {
+            return;
+        }
+        waitLock.lock();
+        try {
+            // The shards do not say how many messages became visible, so every waiter looks.
+            changed.signalAll();
+        } finally {
+            waitLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.AmazonSQSAsyncClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+public class SqsAsyncQueueService implements AsyncQueueService {
+  //
+  // The AsyncQueueService implementation intended for a production environment, on the
+  // asynchronous SQS client: no thread waits for SQS while a request is in flight.
+  //
+  private AmazonSQSAsync sqs;
+
+  // The most entries SQS accepts in one batch request.
+  private static final int MAX_BATCH_SIZE = 10;
+
+  public SqsAsyncQueueService(AmazonSQSAsyncClient sqsClient) {
+    this((AmazonSQSAsync) sqsClient);
+  }
+
+  SqsAsyncQueueService(AmazonSQSAsync sqs) {
+    this.sqs = sqs;
+  }
+
+  @Override
+  public CompletableFuture<Void> pushAsync(String queueUrl, String messageBody) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    sqs.sendMessageAsync(queueUrl, messageBody, completing(future, result -> null));
+    return future;
+  }
+
+  @Override
+  public CompletableFuture<com.example.Message> pullAsync(String queueUrl) {
+    return pullAsync(queueUrl, 1).thenApply(messages -> messages.isEmpty() ? null : messages.get(0));
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteAsync(String queueUrl, String receiptId) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    sqs.deleteMessageAsync(queueUrl, receiptId, completing(future, result -> null));
+    return future;
+  }
+
+  /**
+   * sends the messages in batches of 10. Messages SQS failed to take for a reason of its own are
+   * sent again; any other failure completes the future with a RuntimeException naming the failed
+   * messages by their index in messageBodies.
+   */
+  @Override
+  public CompletableFuture<Void> pushBatchAsync(String queueUrl, List<String> messageBodies) {
+    List<CompletableFuture<Void>> requests = new ArrayList<>();
+    for (int from = 0; from < messageBodies.size(); from += MAX_BATCH_SIZE) {
+      List<SendMessageBatchRequestEntry> entries = new ArrayList<>(MAX_BATCH_SIZE);
+      for (int i = from; i < Math.min(from + MAX_BATCH_SIZE, messageBodies.size()); i++) {
+        entries.add(new SendMessageBatchRequestEntry(String.valueOf(i), messageBodies.get(i)));
+      }
+      requests.add(sendBatch(queueUrl, entries, 0));
+    }
+    return CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0]));
+  }
+
+  /** retrieves up to maxMessages messages, at most 10 as SQS delivers no more at a time. */
+  @Override
+  public CompletableFuture<List<com.example.Message>> pullAsync(String queueUrl, int maxMessages) {
+    ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl)
+        .withMaxNumberOfMessages(Math.min(maxMessages, MAX_BATCH_SIZE));
+
+    CompletableFuture<List<com.example.Message>> future = new CompletableFuture<>();
+    sqs.receiveMessageAsync(request, completing(future, SqsAsyncQueueService::toMessages));
+    return future;
+  }
+
+  /**
+   * deletes the messages in batches of 10. Deletes SQS failed for a reason of its own are sent
+   * again; any other failure completes the future with a RuntimeException naming the failed
+   * receipt ids.
+   */
+  @Override
+  public CompletableFuture<Void> deleteBatchAsync(String queueUrl, List<String> receiptIds) {
+    List<CompletableFuture<Void>> requests = new ArrayList<>();
+    for (int from = 0; from < receiptIds.size(); from += MAX_BATCH_SIZE) {
+      List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(MAX_BATCH_SIZE);
+      for (int i = from; i < Math.min(from + MAX_BATCH_SIZE, receiptIds.size()); i++) {
+        entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i), receiptIds.get(i)));
+      }
+      requests.add(deleteBatch(queueUrl, entries, 0));
+    }
+    return CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0]));
+  }
+
+  // Sends one batch, and again the entries SQS failed to take, retries times so far.
+  private CompletableFuture<Void> sendBatch(String queueUrl, List<SendMessageBatchRequestEntry> entries,
+      int retries) {
+    CompletableFuture<List<BatchResultErrorEntry>> future = new CompletableFuture<>();
+    sqs.sendMessageBatchAsync(queueUrl, entries, completing(future, SendMessageBatchResult::getFailed));
+    return future.thenCompose(failed -> {
+      List<SendMessageBatchRequestEntry> retry = SqsBatches.toRetry(entries, SendMessageBatchRequestEntry::getId,
+          SendMessageBatchRequestEntry::getId, failed, retries, "push messages to " + queueUrl);
+      return retry.isEmpty() ? CompletableFuture.completedFuture(null) : sendBatch(queueUrl, retry, retries + 1);
+    });
+  }
+
+  // Deletes one batch, and again the entries SQS failed to delete, retries times so far.
+  private CompletableFuture<Void> deleteBatch(String queueUrl, List<DeleteMessageBatchRequestEntry> entries,
+      int retries) {
+    CompletableFuture<List<BatchResultErrorEntry>> future = new CompletableFuture<>();
+    sqs.deleteMessageBatchAsync(queueUrl, entries, completing(future, DeleteMessageBatchResult::getFailed));
+    return future.thenCompose(failed -> {
+      List<DeleteMessageBatchRequestEntry> retry = SqsBatches.toRetry(entries, DeleteMessageBatchRequestEntry::getId,
+          DeleteMessageBatchRequestEntry::getReceiptHandle, failed, retries, "delete messages from " + queueUrl);
+      return retry.isEmpty() ? CompletableFuture.completedFuture(null) : deleteBatch(queueUrl, retry, retries + 1);
+    });
+  }
+
+  private static List<com.example.Message> toMessages(ReceiveMessageResult result) {
+    List<com.example.Message> messages = new ArrayList<>();
+    if (result.getMessages() != null) {
+      for (com.amazonaws.services.sqs.model.Message sqsMsg : result.getMessages()) {
+        messages.add(new com.example.Message(sqsMsg.getBody(), sqsMsg.getReceiptHandle()));
+      }
+    }
+    return messages;
+  }
+
+  // A handler which completes the future with the result of the SQS call, converted.
+  private static <REQUEST extends AmazonWebServiceRequest, RESULT, T> AsyncHandler<REQUEST, RESULT> completing(
+      CompletableFuture<T> future, Function<RESULT, T> conversion) {
+    return new AsyncHandler<REQUEST, RESULT>() {
+      @Override
+      public void onError(Exception exception) {
+        future.completeExceptionally(exception);
+      }
+
+      @Override
+      public void onSuccess(REQUEST request, RESULT result) {
+        future.complete(conversion.apply(result));
+      }
+    };
+  }
+}
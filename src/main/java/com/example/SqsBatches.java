@@ -0,0 +1,68 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+
+/**
+ * Checks the results of the SQS batch requests of {@link SqsQueueService} and
+ * {@link SqsAsyncQueueService}. SQS answers a batch request with success even when some of its
+ * entries failed, and lists those in the result. Entries which failed through no fault of the
+ * sender, as when SQS throttles or has an internal error, are sent again, at most MAX_RETRIES
+ * times; any other failure, or one which outlasts the retries, fails the call.
+ */
+final class SqsBatches {
+  // How often the failed entries of one batch are sent again.
+  static final int MAX_RETRIES = 3;
+
+  private SqsBatches() {
+  }
+
+  /**
+   * @param entries the entries of the request
+   * @param idOf gives the id of an entry in the request
+   * @param nameOf gives what names an entry to the caller: the message or receipt id
+   * @param failed the failed entries of the result
+   * @param retries how often the entries have been sent again so far
+   * @param action what the request does, for the exception
+   * @return the entries to send again; empty if none failed
+   * @throws RuntimeException naming the failed entries, if they are not to be sent again
+   */
+  static <E> List<E> toRetry(List<E> entries, Function<E, String> idOf, Function<E, String> nameOf,
+      List<BatchResultErrorEntry> failed, int retries, String action) {
+    List<E> retry = new ArrayList<>();
+    if (failed == null || failed.isEmpty()) {
+      return retry;
+    }
+
+    Map<String, E> byId = new HashMap<>();
+    for (E entry : entries) {
+      byId.put(idOf.apply(entry), entry);
+    }
+    boolean retryable = retries < MAX_RETRIES;
+    for (BatchResultErrorEntry error : failed) {
+      E entry = byId.get(error.getId());
+      if (entry == null || Boolean.TRUE.equals(error.getSenderFault())) {
+        retryable = false;
+      } else {
+        retry.add(entry);
+      }
+    }
+    if (retryable) {
+      return retry;
+    }
+
+    StringBuilder names = new StringBuilder();
+    for (BatchResultErrorEntry error : failed) {
+      E entry = byId.get(error.getId());
+      names.append(names.length() == 0 ? "" : ", ")
+          .append(entry == null ? error.getId() : nameOf.apply(entry))
+          .append(" (").append(error.getCode()).append(")");
+    }
+    throw new RuntimeException("Failed to " + action + ": " + names);
+  }
+}
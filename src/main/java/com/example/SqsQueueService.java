@@ -1,9 +1,15 @@
 package com.example;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
 
 public class SqsQueueService implements QueueService {
   //
@@ -11,8 +17,18 @@ public class SqsQueueService implements QueueService {
   //
   private AmazonSQS sqs;
 
+  // The most entries SQS accepts in one batch request.
+  private static final int MAX_BATCH_SIZE = 10;
+
+  // The longest SQS waits for a message in a receive request.
+  private static final int MAX_WAIT_SECONDS = 20;
+
   public SqsQueueService(AmazonSQSClient sqsClient) {
-    this.sqs = sqsClient;
+    this((AmazonSQS) sqsClient);
+  }
+
+  SqsQueueService(AmazonSQS sqs) {
+    this.sqs = sqs;
   }
 
   @Override
@@ -34,8 +50,103 @@ public class SqsQueueService implements QueueService {
     return new com.example.Message(sqsMsg.getBody(), sqsMsg.getReceiptHandle());
   }
 
+  /** long polls SQS for a message, waiting at most 20 seconds as SQS waits no longer. */
+  @Override
+  public com.example.Message pull(String queueUrl, long waitTime, TimeUnit unit) {
+    ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl)
+        .withWaitTimeSeconds((int) Math.min(unit.toSeconds(waitTime), MAX_WAIT_SECONDS));
+    List<com.amazonaws.services.sqs.model.Message> messages = sqs.receiveMessage(request).getMessages();
+
+    if (messages == null || messages.isEmpty()) {
+      return null;
+    }
+
+    com.amazonaws.services.sqs.model.Message sqsMsg = messages.get(0);
+
+    return new com.example.Message(sqsMsg.getBody(), sqsMsg.getReceiptHandle());
+  }
+
   @Override
   public void delete(String queueUrl, String receiptId) {
     sqs.deleteMessage(queueUrl, receiptId);
   }
+
+  /**
+   * sends the messages in batches of 10. Messages SQS failed to take for a reason of its own are
+   * sent again; any other failure throws a RuntimeException naming the failed messages by their
+   * index in messageBodies.
+   */
+  @Override
+  public void pushBatch(String queueUrl, List<String> messageBodies) {
+    List<SendMessageBatchRequestEntry> entries = new ArrayList<>(MAX_BATCH_SIZE);
+    for (int i = 0; i < messageBodies.size(); i++) {
+      entries.add(new SendMessageBatchRequestEntry(String.valueOf(i), messageBodies.get(i)));
+      if (entries.size() == MAX_BATCH_SIZE || i == messageBodies.size() - 1) {
+        for (int retries = 0; !entries.isEmpty(); retries++) {
+          entries = SqsBatches.toRetry(entries, SendMessageBatchRequestEntry::getId,
+              SendMessageBatchRequestEntry::getId, sqs.sendMessageBatch(queueUrl, entries).getFailed(),
+              retries, "push messages to " + queueUrl);
+        }
+        entries = new ArrayList<>(MAX_BATCH_SIZE);
+      }
+    }
+  }
+
+  /** retrieves up to maxMessages messages, at most 10 as SQS delivers no more at a time. */
+  @Override
+  public List<com.example.Message> pull(String queueUrl, int maxMessages) {
+    return receive(new ReceiveMessageRequest(queueUrl)
+        .withMaxNumberOfMessages(Math.min(maxMessages, MAX_BATCH_SIZE)));
+  }
+
+  /** retrieves up to maxMessages messages, at most 10 as SQS delivers no more at a time. */
+  @Override
+  public List<com.example.Message> pull(String queueUrl, int maxMessages, int visibilityTimeout) {
+    return receive(new ReceiveMessageRequest(queueUrl)
+        .withMaxNumberOfMessages(Math.min(maxMessages, MAX_BATCH_SIZE))
+        .withVisibilityTimeout(visibilityTimeout));
+  }
+
+  @Override
+  public void changeVisibility(String queueUrl, String receiptId, int visibilityTimeout) {
+    sqs.changeMessageVisibility(queueUrl, receiptId, visibilityTimeout);
+  }
+
+  /** sets the VisibilityTimeout attribute of the queue, for every consumer. */
+  @Override
+  public void setVisibilityTimeout(String queueUrl, int visibilityTimeout) {
+    sqs.setQueueAttributes(queueUrl, Collections.singletonMap("VisibilityTimeout", String.valueOf(visibilityTimeout)));
+  }
+
+  private List<com.example.Message> receive(ReceiveMessageRequest request) {
+    List<com.amazonaws.services.sqs.model.Message> sqsMsgs = sqs.receiveMessage(request).getMessages();
+
+    List<com.example.Message> messages = new ArrayList<>();
+    if (sqsMsgs != null) {
+      for (com.amazonaws.services.sqs.model.Message sqsMsg : sqsMsgs) {
+        messages.add(new com.example.Message(sqsMsg.getBody(), sqsMsg.getReceiptHandle()));
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * deletes the messages in batches of 10. Deletes SQS failed for a reason of its own are sent
+   * again; any other failure throws a RuntimeException naming the failed receipt ids.
+   */
+  @Override
+  public void deleteBatch(String queueUrl, List<String> receiptIds) {
+    List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(MAX_BATCH_SIZE);
+    for (int i = 0; i < receiptIds.size(); i++) {
+      entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i), receiptIds.get(i)));
+      if (entries.size() == MAX_BATCH_SIZE || i == receiptIds.size() - 1) {
+        for (int retries = 0; !entries.isEmpty(); retries++) {
+          entries = SqsBatches.toRetry(entries, DeleteMessageBatchRequestEntry::getId,
+              DeleteMessageBatchRequestEntry::getReceiptHandle,
+              sqs.deleteMessageBatch(queueUrl, entries).getFailed(), retries, "delete messages from " + queueUrl);
+        }
+        entries = new ArrayList<>(MAX_BATCH_SIZE);
+      }
+    }
+  }
 }
@@ -0,0 +1,307 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A FIFO queue service which keeps the head of every queue in memory and spills the tail to disk.
+ *
+ * The first tieredMemoryMessages messages of a queue, in flight or not, are held by an
+ * {@link InMemoryQueueService}. Once that many are, later messages are pushed to a
+ * {@link FileQueueService} in the spill directory instead, and so are all messages pushed while any
+ * is on disk, so none overtakes an older one. Pulls are served from memory. When the messages in
+ * memory drop to half the limit, or none of them is visible, a pull pages the oldest messages on
+ * disk back in, as many as fit. Only if every message in memory is in flight does a pull deliver
+ * straight from disk; the receipt id of such a delivery starts with "f:".
+ *
+ * So pushes and pulls run at in-memory speed until a queue outgrows its memory tier, and the queue
+ * can grow as far as the disk and the limits of the file tier allow; in the default "single"
+ * storage, that includes the maxFileSize of its messages files, so set fileStorage = segmented for
+ * a tier bounded by the disk alone. Messages in memory are lost
+ * with the process; spilled messages are not, and are paged in by the next service to use the
+ * spill directory.
+ */
+public class TieredQueueService implements QueueService {
+  private static final String DISK_RECEIPT_PREFIX = "f:";
+
+  private final InMemoryQueueService memory;
+  private final FileQueueService disk;
+
+  // How many messages of a queue are kept in memory.
+  private final long memoryMessages;
+
+  // How often (in milliseconds) a waiting pull checks for messages paged in from disk.
+  private final long pollInterval;
+
+  // The tiering state of the queues, by queue URL.
+  private final Map<String, Tier> tiers = new ConcurrentHashMap<>();
+
+  public TieredQueueService() {
+    this(FileQueueService.loadConfig());
+  }
+
+  TieredQueueService(Properties confInfo) {
+    memoryMessages = Math.max(1, Long.parseLong(confInfo.getProperty("tieredMemoryMessages", "10000")));
+    pollInterval = Long.parseLong(confInfo.getProperty("pollInterval", "100"));
+
+    // The memory tier is bounded by the tiering itself; the queue limits apply to the disk tier.
+    Properties memoryConf = new Properties();
+    memoryConf.putAll(confInfo);
+    memoryConf.setProperty("maxQueueMessages", "0");
+    memoryConf.setProperty("maxQueueBytes", "0");
+    memory = new InMemoryQueueService(memoryConf);
+
+    Properties diskConf = new Properties();
+    diskConf.putAll(confInfo);
+    diskConf.setProperty("queueDirectory", confInfo.getProperty("spillDirectory", "nigel-qs/.spill"));
+    disk = new FileQueueService(diskConf);
+  }
+
+  /** @throws QueueFullException if the message goes to disk and the disk tier is full */
+  @Override
+  public void push(String queueUrl, String messageBody) {
+    Tier tier = tier(queueUrl);
+    tier.lock.lock();
+    try {
+      if (tier.onDisk == 0 && resident(queueUrl) < memoryMessages) {
+        memory.push(queueUrl, messageBody);
+      } else {
+        disk.push(queueUrl, messageBody);
+        tier.onDisk++;
+      }
+    } finally {
+      tier.lock.unlock();
+    }
+  }
+
+  /**
+   * Pushes the messages which fit into memory there, and the rest to disk.
+   *
+   * @throws QueueFullException if messages go to disk and the disk tier is full
+   */
+  @Override
+  public void pushBatch(String queueUrl, List<String> messageBodies) {
+    Tier tier = tier(queueUrl);
+    tier.lock.lock();
+    try {
+      int fit = tier.onDisk > 0 ? 0
+          : (int) Math.min(messageBodies.size(), Math.max(memoryMessages - resident(queueUrl), 0));
+      if (fit > 0) {
+        memory.pushBatch(queueUrl, messageBodies.subList(0, fit));
+      }
+      if (fit < messageBodies.size()) {
+        disk.pushBatch(queueUrl, messageBodies.subList(fit, messageBodies.size()));
+        tier.onDisk += messageBodies.size() - fit;
+      }
+    } finally {
+      tier.lock.unlock();
+    }
+  }
+
+  @Override
+  public Message pull(String queueUrl) {
+    if (tier(queueUrl).onDisk == 0) {
+      return memory.pull(queueUrl);
+    }
+    List<Message> messages = pull(queueUrl, 1);
+    return messages.isEmpty() ? null : messages.get(0);
+  }
+
+  /**
+   * Waits for a message pushed to memory from this service; messages paged in from disk are found
+   * by checking again every pollInterval milliseconds.
+   */
+  @Override
+  public Message pull(String queueUrl, long waitTime, TimeUnit unit) {
+    long deadline = System.nanoTime() + unit.toNanos(waitTime);
+    while (true) {
+      Message msg = pull(queueUrl);
+      long remaining = deadline - System.nanoTime();
+      if (msg != null || remaining <= 0) {
+        return msg;
+      }
+
+      msg = memory.pull(queueUrl, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(pollInterval)),
+          TimeUnit.NANOSECONDS);
+      if (msg != null) {
+        return msg;
+      }
+    }
+  }
+
+  @Override
+  public List<Message> pull(String queueUrl, int maxMessages) {
+    return pull(queueUrl, maxMessages, -1);
+  }
+
+  @Override
+  public List<Message> pull(String queueUrl, int maxMessages, int visibilityTimeout) {
+    Tier tier = tier(queueUrl);
+    if (tier.onDisk > 0) {
+      pageIn(queueUrl, tier, false);
+    }
+    List<Message> messages = pullMemory(queueUrl, maxMessages, visibilityTimeout);
+    if (messages.size() < maxMessages && tier.onDisk > 0) {
+      // Nothing visible is left in memory; bring in what fits, or else deliver from disk.
+      pageIn(queueUrl, tier, true);
+      messages = new ArrayList<>(messages);
+      messages.addAll(pullMemory(queueUrl, maxMessages - messages.size(), visibilityTimeout));
+      if (messages.size() < maxMessages) {
+        List<Message> fromDisk = visibilityTimeout < 0
+            ? disk.pull(queueUrl, maxMessages - messages.size())
+            : disk.pull(queueUrl, maxMessages - messages.size(), visibilityTimeout);
+        for (Message msg : fromDisk) {
+          messages.add(new Message(msg.getBody(), DISK_RECEIPT_PREFIX + msg.getReceiptId()));
+        }
+      }
+    }
+    return messages;
+  }
+
+  @Override
+  public void delete(String queueUrl, String receiptId) {
+    if (receiptId.startsWith(DISK_RECEIPT_PREFIX)) {
+      disk.delete(queueUrl, receiptId.substring(DISK_RECEIPT_PREFIX.length()));
+    } else {
+      memory.delete(queueUrl, receiptId);
+    }
+  }
+
+  @Override
+  public void deleteBatch(String queueUrl, List<String> receiptIds) {
+    List<String> inMemory = new ArrayList<>(receiptIds.size());
+    List<String> onDisk = new ArrayList<>();
+    for (String receiptId : receiptIds) {
+      if (receiptId.startsWith(DISK_RECEIPT_PREFIX)) {
+        onDisk.add(receiptId.substring(DISK_RECEIPT_PREFIX.length()));
+      } else {
+        inMemory.add(receiptId);
+      }
+    }
+    memory.deleteBatch(queueUrl, inMemory);
+    if (!onDisk.isEmpty()) {
+      disk.deleteBatch(queueUrl, onDisk);
+    }
+  }
+
+  @Override
+  public void changeVisibility(String queueUrl, String receiptId, int visibilityTimeout) {
+    if (receiptId.startsWith(DISK_RECEIPT_PREFIX)) {
+      disk.changeVisibility(queueUrl, receiptId.substring(DISK_RECEIPT_PREFIX.length()), visibilityTimeout);
+    } else {
+      memory.changeVisibility(queueUrl, receiptId, visibilityTimeout);
+    }
+  }
+
+  @Override
+  public void setVisibilityTimeout(String queueUrl, int visibilityTimeout) {
+    memory.setVisibilityTimeout(queueUrl, visibilityTimeout);
+    disk.setVisibilityTimeout(queueUrl, visibilityTimeout);
+  }
+
+  /**
+   * @return how many messages the queue holds in both tiers, visible or in flight, and the size of
+   *     their bodies
+   */
+  public QueueStats getQueueStats(String queueUrl) {
+    QueueStats inMemory = memory.getQueueStats(queueUrl);
+    QueueStats onDisk = disk.getQueueStats(queueUrl);
+    return onDisk == null ? inMemory : new QueueStats(inMemory.getMessages() + onDisk.getMessages(),
+        inMemory.getBytes() + onDisk.getBytes());
+  }
+
+  /** @return how many messages of the queue are on disk, visible or in flight */
+  public long getSpilledMessages(String queueUrl) {
+    return tier(queueUrl).onDisk;
+  }
+
+  /**
+   * @return how many delivered messages were not deleted before their visibility timeout expired,
+   *     in both tiers
+   */
+  public long getExpirations() {
+    return memory.getExpirations() + disk.getExpirations();
+  }
+
+  /** Deletes the messages of the queue which are on disk. */
+  protected void purgeQueue(String queueUrl) {
+    Tier tier = tier(queueUrl);
+    tier.lock.lock();
+    try {
+      disk.purgeQueue(queueUrl);
+      tier.onDisk = 0;
+    } finally {
+      tier.lock.unlock();
+    }
+  }
+
+  /**
+   * Moves the oldest visible messages on disk into memory, as many as fit: if force is set, or once
+   * the messages in memory have dropped to half the limit.
+   */
+  private void pageIn(String queueUrl, Tier tier, boolean force) {
+    tier.lock.lock();
+    try {
+      long resident = resident(queueUrl);
+      if (tier.onDisk == 0 || (!force && resident > memoryMessages / 2) || resident >= memoryMessages) {
+        return;
+      }
+
+      List<Message> paged = disk.pull(queueUrl, (int) Math.min(memoryMessages - resident, Integer.MAX_VALUE));
+      if (!paged.isEmpty()) {
+        List<String> bodies = new ArrayList<>(paged.size());
+        List<String> receiptIds = new ArrayList<>(paged.size());
+        for (Message msg : paged) {
+          bodies.add(msg.getBody());
+          receiptIds.add(msg.getReceiptId());
+        }
+        memory.pushBatch(queueUrl, bodies);
+        disk.deleteBatch(queueUrl, receiptIds);
+      }
+
+      // Deliveries straight from disk are deleted without the lock, so count again.
+      QueueStats onDisk = disk.getQueueStats(queueUrl);
+      if (onDisk != null) {
+        tier.onDisk = onDisk.getMessages();
+      }
+    } finally {
+      tier.lock.unlock();
+    }
+  }
+
+  private List<Message> pullMemory(String queueUrl, int maxMessages, int visibilityTimeout) {
+    return visibilityTimeout < 0
+        ? memory.pull(queueUrl, maxMessages)
+        : memory.pull(queueUrl, maxMessages, visibilityTimeout);
+  }
+
+  // How many messages of the queue are in memory.
+  private long resident(String queueUrl) {
+    return memory.getQueueStats(queueUrl).getMessages();
+  }
+
+  // Messages spilled by an earlier service are on disk from the start.
+  private Tier tier(String queueUrl) {
+    return tiers.computeIfAbsent(queueUrl, url -> {
+      QueueStats onDisk = disk.getQueueStats(url);
+      return new Tier(onDisk == null ? 0 : onDisk.getMessages());
+    });
+  }
+
+  private static class Tier {
+    // Taken by pushes and page-ins, so no message overtakes an older one.
+    final ReentrantLock lock = new ReentrantLock();
+
+    // How many messages are on disk; written while holding the lock.
+    volatile long onDisk;
+
+    Tier(long onDisk) {
+      this.onDisk = onDisk;
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package com.example;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Sends Redis commands to the Upstash REST API asynchronously, one HTTP request at a time.
+ *
+ * A command submitted while no request is in flight is sent right away on its own. Commands
+ * submitted while a request is in flight are queued, and sent together in one POST to the
+ * /pipeline endpoint once the response arrives, so a burst of commands from many threads costs a
+ * few round trips instead of one each. Commands reach Redis in the order they were submitted.
+ */
+class UpstashPipeline {
+    // The most commands sent in one request.
+    private static final int MAX_PIPELINE_SIZE = 1000;
+
+    private final HttpClient httpClient;
+    private final ObjectMapper objectMapper;
+    private final URI commandUri;
+    private final URI pipelineUri;
+    private final String token;
+
+    private final ConcurrentLinkedQueue<PendingCommand> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean sending = new AtomicBoolean();
+
+    UpstashPipeline(HttpClient httpClient, ObjectMapper objectMapper, String redisUrl, String token) {
+        this.httpClient = httpClient;
+        this.objectMapper = objectMapper;
+        this.commandUri = URI.create(redisUrl);
+        this.pipelineUri = URI.create(redisUrl.endsWith("/") ? redisUrl + "pipeline" : redisUrl + "/pipeline");
+        this.token = token;
+    }
+
+    /**
+     * @return completed with the result of the command, or exceptionally if the request failed or
+     *     Redis returned an error
+     */
+    CompletableFuture<JsonNode> submit(String... command) {
+        PendingCommand pendingCommand = new PendingCommand(command);
+        pending.add(pendingCommand);
+        sendPending();
+        return pendingCommand.future;
+    }
+
+    // Whoever clears the sending flag calls this again, so no command is left behind.
+    private void sendPending() {
+        while (!pending.isEmpty() && sending.compareAndSet(false, true)) {
+            List<PendingCommand> batch = new ArrayList<>();
+            PendingCommand command;
+            while (batch.size() < MAX_PIPELINE_SIZE && (command = pending.poll()) != null) {
+                batch.add(command);
+            }
+            if (batch.isEmpty()) {
+                sending.set(false);
+                continue;
+            }
+
+            CompletableFuture<List<JsonNode>> sent;
+            try {
+                sent = send(batch);
+            } catch (RuntimeException e) {
+                // Such as a token no header can hold; the commands fail and the next batch is sent.
+                complete(batch, null, e);
+                sending.set(false);
+                continue;
+            }
+            sent.whenComplete((responses, error) -> {
+                complete(batch, responses, error);
+                sending.set(false);
+                sendPending();
+            });
+            return;
+        }
+    }
+
+    // Sends the commands and returns the response object of each: {"result": ...} or {"error": ...}.
+    private CompletableFuture<List<JsonNode>> send(List<PendingCommand> batch) {
+        boolean pipelined = batch.size() > 1;
+        String body;
+        try {
+            if (pipelined) {
+                List<String[]> commands = new ArrayList<>(batch.size());
+                for (PendingCommand command : batch) {
+                    commands.add(command.command);
+                }
+                body = objectMapper.writeValueAsString(commands);
+            } else {
+                body = objectMapper.writeValueAsString(batch.get(0).command);
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(pipelined ? pipelineUri : commandUri)
+                .header("Authorization", "Bearer " + token)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenApply(response -> parse(response, pipelined, batch.size()));
+    }
+
+    private List<JsonNode> parse(HttpResponse<String> response, boolean pipelined, int size) {
+        JsonNode body;
+        try {
+            body = objectMapper.readTree(response.body());
+        } catch (IOException e) {
+            throw new CompletionException(new IOException("Invalid response from Redis: " + response.body(), e));
+        }
+
+        List<JsonNode> responses = new ArrayList<>(size);
+        if (pipelined && response.statusCode() == 200 && body.isArray() && body.size() == size) {
+            body.forEach(responses::add);
+        } else if (!pipelined && (body.has("result") || body.has("error"))) {
+            responses.add(body);
+        } else {
+            throw new CompletionException(new IOException("Redis command failed: " + response.body()));
+        }
+        return responses;
+    }
+
+    private static void complete(List<PendingCommand> batch, List<JsonNode> responses, Throwable error) {
+        for (int i = 0; i < batch.size(); i++) {
+            CompletableFuture<JsonNode> future = batch.get(i).future;
+            if (error != null) {
+                future.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+            } else if (responses.get(i).has("error")) {
+                future.completeExceptionally(
+                        new RuntimeException("Redis command failed: " + responses.get(i).get("error").asText()));
+            } else {
+                future.complete(responses.get(i).get("result"));
+            }
+        }
+    }
+
+    private static class PendingCommand {
+        final String[] command;
+        final CompletableFuture<JsonNode> future = new CompletableFuture<>();
+
+        PendingCommand(String[] command) {
+            this.command = command;
+        }
+    }
+}
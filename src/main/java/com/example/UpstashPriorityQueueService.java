@@ -1,46 +1,158 @@
 package com.example;
 
 import java.io.InputStream;
-import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.util.*;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
-public class UpstashPriorityQueueService implements PriorityQueueService {
+public class UpstashPriorityQueueService implements PriorityQueueService, AsyncPriorityQueueService {
 
     private static final HttpClient HTTP_CLIENT = HttpClient.newHttpClient();
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
-    private final String redisUrl;
-    private final String redisToken;
+    // Bounds (in milliseconds) of the interval between polls of a waiting pull.
+    private static final long MIN_POLL_INTERVAL = 50;
+    private static final long MAX_POLL_INTERVAL = 1000;
+
+    private final UpstashPipeline pipeline;
     private final long visibilityTimeout;
 
+    // Visibility timeouts (in seconds) set for single queues by this service, by queue URL.
+    private final Map<String, Integer> visibilityTimeouts = new ConcurrentHashMap<>();
+
+    // A queue is kept in four keys:
+    //   <queueUrl>           ZSET  the visible messages, scored by priority
+    //   <queueUrl>:inflight  ZSET  the receipt ids of delivered messages, scored by visible from time
+    //   <queueUrl>:receipts  HASH  receipt id -> "<score>|<member>", to requeue or delete it
+    //   <queueUrl>:sequence  the sequence number of the last message pushed
+    // so pull, delete and requeueing an expired message each cost O(log n).
+    //
+    // A member is the sequence number of the message, zero-padded to 16 digits, followed by the
+    // message as JSON. Redis orders members of equal score lexicographically, so messages of equal
+    // priority are delivered in the order they were pushed. The score holds the priority alone,
+    // which a double represents exactly.
+    //
+    // Earlier versions stored the message as JSON alone, scored by its priority plus its creation
+    // time / 1e13. Such members start with '{', which no sequence number does, and are still
+    // delivered: after the new messages of their priority, as their score is a little higher.
+
+    /**
+     * Adds the messages ARGV[2..] to KEYS[1] with the priority ARGV[1], numbering them from the
+     * counter KEYS[2]. Returns the number of messages added.
+     */
+    static final String PUSH_SCRIPT = String.join("\n",
+            "local last = redis.call('INCRBY', KEYS[2], #ARGV - 1)",
+            "for i = 2, #ARGV do",
+            "  redis.call('ZADD', KEYS[1], ARGV[1], string.format('%016.0f', last - #ARGV + i) .. ARGV[i])",
+            "end",
+            "return #ARGV - 1");
+
+    /**
+     * Moves the messages of KEYS[2] which are visible at ARGV[1] back to KEYS[1], then delivers up
+     * to ARGV[4] messages of KEYS[1] in score order: each becomes invisible until ARGV[2] under a
+     * receipt id made from the prefix ARGV[3]. Returns the body and receipt id of each message, in
+     * turn.
+     */
+    static final String PULL_SCRIPT = String.join("\n",
+            "local expired = redis.call('ZRANGEBYSCORE', KEYS[2], '-inf', '(' .. ARGV[1])",
+            "for _, receiptId in ipairs(expired) do",
+            "  local entry = redis.call('HGET', KEYS[3], receiptId)",
+            "  redis.call('ZREM', KEYS[2], receiptId)",
+            "  redis.call('HDEL', KEYS[3], receiptId)",
+            "  if entry then",
+            "    local sep = string.find(entry, '|', 1, true)",
+            "    redis.call('ZADD', KEYS[1], string.sub(entry, 1, sep - 1), string.sub(entry, sep + 1))",
+            "  end",
+            "end",
+            "local result = {}",
+            "local popped = redis.call('ZPOPMIN', KEYS[1], ARGV[4])",
+            "for i = 1, #popped, 2 do",
+            "  local receiptId = ARGV[3] .. '.' .. ((i - 1) / 2)",
+            "  redis.call('ZADD', KEYS[2], ARGV[2], receiptId)",
+            "  redis.call('HSET', KEYS[3], receiptId, popped[i + 1] .. '|' .. popped[i])",
+            "  local json = popped[i]",
+            "  if string.sub(json, 1, 1) ~= '{' then",
+            "    json = string.sub(json, 17)",
+            "  end",
+            "  table.insert(result, cjson.decode(json).msgBody)",
+            "  table.insert(result, receiptId)",
+            "end",
+            "return result");
+
+    /**
+     * Deletes the messages delivered with the receipt ids ARGV[2..] which are still invisible at
+     * ARGV[1]. Returns the number of messages deleted.
+     */
+    static final String DELETE_SCRIPT = String.join("\n",
+            "local now = tonumber(ARGV[1])",
+            "local deleted = 0",
+            "for i = 2, #ARGV do",
+            "  local visibleFrom = redis.call('ZSCORE', KEYS[2], ARGV[i])",
+            "  if visibleFrom and tonumber(visibleFrom) >= now then",
+            "    redis.call('ZREM', KEYS[2], ARGV[i])",
+            "    redis.call('HDEL', KEYS[3], ARGV[i])",
+            "    deleted = deleted + 1",
+            "  end",
+            "end",
+            "return deleted");
+
+    /**
+     * Makes the message delivered with the receipt id ARGV[3] invisible until ARGV[2] instead, if
+     * it is still invisible at ARGV[1]. Returns 1 if it was, 0 otherwise.
+     */
+    static final String VISIBILITY_SCRIPT = String.join("\n",
+            "local visibleFrom = redis.call('ZSCORE', KEYS[2], ARGV[3])",
+            "if visibleFrom and tonumber(visibleFrom) >= tonumber(ARGV[1]) then",
+            "  redis.call('ZADD', KEYS[2], 'XX', ARGV[2], ARGV[3])",
+            "  return 1",
+            "end",
+            "return 0");
+
+    private static final String PUSH_SCRIPT_SHA = sha1(PUSH_SCRIPT);
+    private static final String PULL_SCRIPT_SHA = sha1(PULL_SCRIPT);
+    private static final String DELETE_SCRIPT_SHA = sha1(DELETE_SCRIPT);
+    private static final String VISIBILITY_SCRIPT_SHA = sha1(VISIBILITY_SCRIPT);
+
     public UpstashPriorityQueueService() {
+        this(loadConfig());
+    }
+
+    private UpstashPriorityQueueService(Properties confInfo) {
+        this(confInfo.getProperty("upstashRedisUrl"), confInfo.getProperty("upstashRedisToken"),
+                Long.parseLong(confInfo.getProperty("visibilityTimeout", "30")));
+    }
+
+    UpstashPriorityQueueService(String redisUrl, String redisToken, long visibilityTimeout) {
+        this.pipeline = new UpstashPipeline(HTTP_CLIENT, OBJECT_MAPPER, redisUrl, redisToken);
+        this.visibilityTimeout = visibilityTimeout;
+    }
+
+    private static Properties loadConfig() {
         String propFileName = "config.properties";
         Properties confInfo = new Properties();
 
-        try (InputStream inStream = getClass().getClassLoader().getResourceAsStream(propFileName)) {
+        try (InputStream inStream = UpstashPriorityQueueService.class.getClassLoader().getResourceAsStream(propFileName)) {
             confInfo.load(inStream);
         } catch (IOException e) {
             throw new RuntimeException("Failed to load configuration", e);
         }
-
-        this.redisUrl = confInfo.getProperty("upstashRedisUrl");
-        this.redisToken = confInfo.getProperty("upstashRedisToken");
-        this.visibilityTimeout = Long.parseLong(confInfo.getProperty("visibilityTimeout", "30"));
+        return confInfo;
     }
 
     @Override
     public void push(String queueUrl, String msgBody, int priority) {
-        PriorityMessage msg = new PriorityMessage(msgBody, priority);
         try {
-            String message = OBJECT_MAPPER.writeValueAsString(msg);
-            double score = priority + (msg.getCreatedAt() / 1e13); // Priority as main score, timestamp for FCFS.
-
-            executeRedisCommand("ZADD", queueUrl, String.valueOf(score), message);
+            await(pushAsync(queueUrl, msgBody, priority));
         } catch (IOException | InterruptedException e) {
             throw new RuntimeException("Failed to push message to queue", e);
         }
@@ -48,79 +160,226 @@ public class UpstashPriorityQueueService implements PriorityQueueService {
 
     @Override
     public Message pull(String queueUrl) {
-        try {
-            long nowTime = now();
+        List<Message> messages = pull(queueUrl, 1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
 
-            // Fetch all the messages sorted by priority and timestamp
-            String response = executeRedisCommand("ZRANGE", queueUrl, "0", "-1");
-            if (response == null || response.isEmpty() || response.equals("[]")) {
-                return null;
+    /**
+     * Polls the queue until a message is visible, at growing intervals. Redis can not block inside
+     * the pull script, which also requeues expired messages, so BZPOPMIN is no option.
+     */
+    @Override
+    public Message pull(String queueUrl, long waitTime, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        long interval = MIN_POLL_INTERVAL;
+        Message msg;
+        while ((msg = pull(queueUrl)) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(interval)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
+            interval = Math.min(interval * 2, MAX_POLL_INTERVAL);
+        }
+        return msg;
+    }
+
+    @Override
+    public void delete(String queueUrl, String receiptId) {
+        deleteBatch(queueUrl, Collections.singletonList(receiptId));
+    }
 
-            List<PriorityMessage> messages = parseMessages(response);
+    @Override
+    public void pushBatch(String queueUrl, List<String> msgBodies, int priority) {
+        try {
+            await(pushBatchAsync(queueUrl, msgBodies, priority));
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException("Failed to push messages to queue", e);
+        }
+    }
 
-            for (PriorityMessage message : messages) {
-                if (message.isVisibleAt(nowTime)) {
-                    executeRedisCommand("ZREM", queueUrl, OBJECT_MAPPER.writeValueAsString(message)); // Remove old message
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages) {
+        try {
+            return await(pullAsync(queueUrl, maxMessages));
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException("Failed to pull message from queue", e);
+        }
+    }
 
-                    message.setReceiptId(UUID.randomUUID().toString());
-                    message.incrementAttempts();
-                    message.setVisibleFrom(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(visibilityTimeout));
-                    double score = message.getPriority() + (message.getCreatedAt() / 1e13);
-                    executeRedisCommand("ZADD", queueUrl, String.valueOf(score), OBJECT_MAPPER.writeValueAsString(message)); // Add updated message
-                    return new Message(message.getBody(), message.getReceiptId());
-                }
-            }
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptIds) {
+        try {
+            await(deleteBatchAsync(queueUrl, receiptIds));
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException("Failed to delete message from queue", e);
+        }
+    }
 
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages, int visibilityTimeout) {
+        try {
+            return await(pullAsync(queueUrl, maxMessages, visibilityTimeout));
         } catch (IOException | InterruptedException e) {
             throw new RuntimeException("Failed to pull message from queue", e);
         }
-        return null;
     }
 
+    /** Re-scores the receipt id in the in-flight sorted set, which costs O(log n). */
     @Override
-    public void delete(String queueUrl, String receiptId) {
+    public void changeVisibility(String queueUrl, String receiptId, int visibilityTimeout) {
+        try {
+            await(evalScriptAsync(VISIBILITY_SCRIPT, VISIBILITY_SCRIPT_SHA, keys(queueUrl),
+                    String.valueOf(now()),
+                    String.valueOf(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(visibilityTimeout)),
+                    receiptId));
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException("Failed to change message visibility", e);
+        }
+    }
+
+    /**
+     * Sets the visibility timeout of a queue for the pulls of this service; other services keep
+     * using their own.
+     */
+    @Override
+    public void setVisibilityTimeout(String queueUrl, int visibilityTimeout) {
+        visibilityTimeouts.put(queueUrl, visibilityTimeout);
+    }
+
+    @Override
+    public CompletableFuture<Void> pushAsync(String queueUrl, String msgBody, int priority) {
+        return pushBatchAsync(queueUrl, Collections.singletonList(msgBody), priority);
+    }
 
+    @Override
+    public CompletableFuture<Message> pullAsync(String queueUrl) {
+        return pullAsync(queueUrl, 1).thenApply(messages -> messages.isEmpty() ? null : messages.get(0));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String queueUrl, String receiptId) {
+        return deleteBatchAsync(queueUrl, Collections.singletonList(receiptId));
+    }
+
+    @Override
+    public CompletableFuture<Void> pushBatchAsync(String queueUrl, List<String> msgBodies, int priority) {
+        if (msgBodies.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // One script call numbers and adds all the messages, so they are written without a sequence.
+        List<String> args = new ArrayList<>(1 + msgBodies.size());
+        args.add(String.valueOf(priority));
         try {
-            String response = executeRedisCommand("ZRANGE", queueUrl, "0", "-1");
-            if (response != null && !response.isEmpty() && !response.equals("[]")) {
-                List<PriorityMessage> allMessages = parseMessages(response);
-                long nowTime = now();
-
-                for (PriorityMessage msg : allMessages) {
-                    if (!msg.isVisibleAt(nowTime) && msg.getReceiptId().equals(receiptId)) {
-                        executeRedisCommand("ZREM", queueUrl, OBJECT_MAPPER.writeValueAsString(msg));
-                        break;
-                    }
-                }
+            for (String msgBody : msgBodies) {
+                args.add(OBJECT_MAPPER.writeValueAsString(new PriorityMessage(msgBody, priority, 0)));
             }
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException("Failed to delete message from queue", e);
+        } catch (JsonProcessingException e) {
+            return CompletableFuture.failedFuture(e);
         }
+        return evalScriptAsync(PUSH_SCRIPT, PUSH_SCRIPT_SHA, Arrays.asList(queueUrl, queueUrl + ":sequence"),
+                args.toArray(new String[0]))
+                .thenApply(result -> null);
     }
 
-    private String executeRedisCommand(String... command) throws IOException, InterruptedException {
-        String requestBody = OBJECT_MAPPER.writeValueAsString(command);
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(redisUrl))
-                .header("Authorization", "Bearer " + redisToken)
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                .build();
-        HttpResponse<String> response = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
-        if (response.statusCode() != 200) {
-            throw new RuntimeException("Redis command failed: " + response.body());
+    @Override
+    public CompletableFuture<List<Message>> pullAsync(String queueUrl, int maxMessages) {
+        return pullAsync(queueUrl, maxMessages, visibilityTimeouts.getOrDefault(queueUrl, (int) visibilityTimeout));
+    }
+
+    private CompletableFuture<List<Message>> pullAsync(String queueUrl, int maxMessages, long visibilityTimeout) {
+        return evalScriptAsync(PULL_SCRIPT, PULL_SCRIPT_SHA, keys(queueUrl),
+                String.valueOf(now()),
+                String.valueOf(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(visibilityTimeout)),
+                UUID.randomUUID().toString(),
+                String.valueOf(maxMessages))
+                .thenApply(fields -> {
+                    // The script returns the body and the receipt id of each delivered message.
+                    List<Message> delivered = new ArrayList<>(fields.size() / 2);
+                    for (int i = 0; i + 1 < fields.size(); i += 2) {
+                        delivered.add(new Message(fields.get(i).asText(), fields.get(i + 1).asText()));
+                    }
+                    return delivered;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteBatchAsync(String queueUrl, List<String> receiptIds) {
+        if (receiptIds.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
         }
-        return OBJECT_MAPPER.readTree(response.body()).get("result").toString();
+
+        List<String> args = new ArrayList<>(1 + receiptIds.size());
+        args.add(String.valueOf(now()));
+        args.addAll(receiptIds);
+        return evalScriptAsync(DELETE_SCRIPT, DELETE_SCRIPT_SHA, keys(queueUrl), args.toArray(new String[0]))
+                .thenApply(result -> null);
+    }
+
+    // The keys of a queue, in the order the scripts expect them.
+    private static List<String> keys(String queueUrl) {
+        return Arrays.asList(queueUrl, queueUrl + ":inflight", queueUrl + ":receipts");
     }
 
-    private List<PriorityMessage> parseMessages(String response) throws IOException {
-        String[] messageArray = OBJECT_MAPPER.readValue(response, String[].class);
-        List<PriorityMessage> messages = new ArrayList<>();
-        for (String message : messageArray) {
-            messages.add(OBJECT_MAPPER.readValue(message, PriorityMessage.class));
+    /**
+     * Runs a script by its SHA1 digest, so the script is only sent when Redis does not have it
+     * cached yet.
+     */
+    private CompletableFuture<JsonNode> evalScriptAsync(String script, String sha, List<String> keys, String... args) {
+        String[] command = new String[3 + keys.size() + args.length];
+        command[0] = "EVALSHA";
+        command[1] = sha;
+        command[2] = String.valueOf(keys.size());
+        System.arraycopy(keys.toArray(new String[0]), 0, command, 3, keys.size());
+        System.arraycopy(args, 0, command, 3 + keys.size(), args.length);
+
+        return pipeline.submit(command).handle((result, error) -> {
+            if (error == null) {
+                return CompletableFuture.completedFuture(result);
+            }
+            if (error.getMessage() == null || !error.getMessage().contains("NOSCRIPT")) {
+                return CompletableFuture.<JsonNode>failedFuture(error);
+            }
+            String[] eval = command.clone();
+            eval[0] = "EVAL";
+            eval[1] = script;
+            return pipeline.submit(eval);
+        }).thenCompose(future -> future);
+    }
+
+    private static String sha1(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Waits for the future, rethrowing what made it fail.
+    private static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
         }
-        return messages;
     }
 
     long now() {
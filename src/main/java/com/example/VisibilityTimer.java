@@ -0,0 +1,227 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns the visibility deadlines of the in-flight messages of an in-memory queue service, and
+ * hands each message back to its queue once its deadline has passed.
+ *
+ * The deadlines sit in a hashed timer wheel of one-millisecond slots, so scheduling a deadline is
+ * O(1) and advancing the wheel only visits the slots of the milliseconds that passed. A deadline
+ * further away than one turn of the wheel stays in its slot for the following turns.
+ *
+ * The wheel is advanced by every pull, to the clock of the service, so pulls see every message
+ * that expired until then, and by a shared reaper thread, to the system time, so expired messages
+ * are back in their queue (and waiting consumers woken) within a few milliseconds even when
+ * nobody pulls.
+ *
+ * Entries are not removed when a message is deleted: the task of the entry checks whether the
+ * delivery is still in flight under the same deadline, and reports whether it expired. Entries are
+ * recycled once their task has run, so scheduling a deadline allocates nothing in steady state.
+ *
+ * One timer serves every queue of a service, so advancing it may run the tasks of any of them:
+ * it must not be advanced while holding the lock of a queue.
+ */
+class VisibilityTimer {
+  /** Hands in-flight messages back to their queue once their deadline has passed. */
+  interface Task {
+    /**
+     * Hands back the message delivered with the receipt handle.
+     *
+     * @return false if the message was deleted or rescheduled meanwhile
+     */
+    boolean expire(long handle, long deadline);
+  }
+
+  private static final int WHEEL_SIZE = 4096;
+  private static final int MASK = WHEEL_SIZE - 1;
+
+  // How many entries are kept for reuse at most.
+  private static final int MAX_FREE_ENTRIES = 1 << 16;
+
+  // How often (in milliseconds) the reaper advances the wheels.
+  private static final long REAP_INTERVAL = 5;
+
+  // The timers of the services in use, advanced by the reaper.
+  private static final Map<VisibilityTimer, Boolean> TIMERS = new WeakHashMap<>();
+
+  private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "visibility-reaper");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  static {
+    REAPER.scheduleWithFixedDelay(VisibilityTimer::reap, REAP_INTERVAL, REAP_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  // Guarded by this.
+  private final Entry[] wheel = new Entry[WHEEL_SIZE];
+  // Entries scheduled with a deadline which had already passed; they expire on the next advance.
+  private Entry overdue;
+  // Every deadline before this time has expired.
+  private long currentTime;
+  // Entries whose task has run, for reuse.
+  private Entry free;
+  private int freeCount;
+
+  private final AtomicLong expirations = new AtomicLong();
+
+  VisibilityTimer() {
+    currentTime = System.currentTimeMillis();
+    synchronized (TIMERS) {
+      TIMERS.put(this, Boolean.TRUE);
+    }
+  }
+
+  /** Runs the task for the receipt handle once the time is past the deadline. */
+  synchronized void schedule(long deadline, Task task, long handle) {
+    Entry entry = free;
+    if (entry != null) {
+      free = entry.next;
+      freeCount--;
+    } else {
+      entry = new Entry();
+    }
+    entry.deadline = deadline;
+    entry.task = task;
+    entry.handle = handle;
+
+    if (deadline < currentTime) {
+      entry.next = overdue;
+      overdue = entry;
+    } else {
+      int slot = (int) (deadline & MASK);
+      entry.next = wheel[slot];
+      wheel[slot] = entry;
+    }
+  }
+
+  /**
+   * Runs the tasks of every deadline before nowTime. The tasks run after the timer is released,
+   * so they may take the lock of their queue.
+   */
+  void advance(long nowTime) {
+    Entry expired = null;
+    synchronized (this) {
+      expired = overdue;
+      overdue = null;
+      if (nowTime > currentTime) {
+        // Past a full turn, every slot is due.
+        long from = Math.max(currentTime, nowTime - WHEEL_SIZE);
+        for (long time = from; time < nowTime; time++) {
+          int slot = (int) (time & MASK);
+          Entry keep = null;
+          Entry entry = wheel[slot];
+          while (entry != null) {
+            Entry next = entry.next;
+            if (entry.deadline < nowTime) {
+              entry.next = expired;
+              expired = entry;
+            } else {
+              entry.next = keep;
+              keep = entry;
+            }
+            entry = next;
+          }
+          wheel[slot] = keep;
+        }
+        currentTime = nowTime;
+      }
+    }
+
+    if (expired == null) {
+      return;
+    }
+
+    // Entries were collected newest slot first; expire them in deadline order.
+    expired = sortByDeadline(expired);
+    Entry last = null;
+    int count = 0;
+    for (Entry entry = expired; entry != null; entry = entry.next) {
+      if (entry.task.expire(entry.handle, entry.deadline)) {
+        expirations.incrementAndGet();
+      }
+      entry.task = null;
+      last = entry;
+      count++;
+    }
+
+    synchronized (this) {
+      if (freeCount < MAX_FREE_ENTRIES) {
+        last.next = free;
+        free = expired;
+        freeCount += count;
+      }
+    }
+  }
+
+  /** @return how many in-flight messages expired so far */
+  long expirations() {
+    return expirations.get();
+  }
+
+  // A merge sort of the list, which stays stable and allocates nothing.
+  private static Entry sortByDeadline(Entry list) {
+    if (list == null || list.next == null) {
+      return list;
+    }
+    Entry slow = list;
+    for (Entry fast = list.next.next; fast != null && fast.next != null; fast = fast.next.next) {
+      slow = slow.next;
+    }
+    Entry second = slow.next;
+    slow.next = null;
+
+    Entry a = sortByDeadline(list);
+    Entry b = sortByDeadline(second);
+    Entry head = null;
+    Entry tail = null;
+    while (a != null || b != null) {
+      Entry next;
+      if (b == null || (a != null && a.deadline <= b.deadline)) {
+        next = a;
+        a = a.next;
+      } else {
+        next = b;
+        b = b.next;
+      }
+      if (tail == null) {
+        head = next;
+      } else {
+        tail.next = next;
+      }
+      tail = next;
+    }
+    return head;
+  }
+
+  private static void reap() {
+    List<VisibilityTimer> timers;
+    synchronized (TIMERS) {
+      timers = new ArrayList<>(TIMERS.keySet());
+    }
+    long nowTime = System.currentTimeMillis();
+    for (VisibilityTimer timer : timers) {
+      try {
+        timer.advance(nowTime);
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private static class Entry {
+    long deadline;
+    Task task;
+    long handle;
+    Entry next;
+  }
+}
@@ -1,16 +1,59 @@
 package com.example;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 
+@RunWith(Parameterized.class)
 public class FileQueueTest {
-	private FileQueueService qs = new FileQueueService();
+	private Properties config;
+	private FileQueueService qs;
 	private String queueUrl = "https://sqs.ap-1.amazonaws.com/007/MyQueue";
 	
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> storageModes() {
+		return Arrays.asList(new Object[][] {{"single"}, {"segmented"}});
+	}
+	
+	public FileQueueTest(String fileStorage) {
+		config = FileQueueService.loadConfig();
+		config.setProperty("fileStorage", fileStorage);
+		qs = new FileQueueService(config);
+	}
+	
 	@Before
 	public void setup() {
 		qs.purgeQueue(queueUrl);
@@ -76,12 +119,279 @@ public class FileQueueTest {
 				&& msg2.getBody().equals(msgStrs[1]) && msg3.getBody().equals(msgStrs[2]));
 	}
 	
+	@Test
+	public void testTwoServicesShareQueue(){
+		FileQueueService other = new FileQueueService(config);
+
+		qs.push(queueUrl, "Message A.");
+		qs.push(queueUrl, "Message B.");
+		Message msg = other.pull(queueUrl);
+		assertEquals("Message A.", msg.getBody());
+
+		qs.delete(queueUrl, msg.getReceiptId());
+		assertEquals("Message B.", qs.pull(queueUrl).getBody());
+		assertNull(other.pull(queueUrl));
+	}
+	
+	@Test
+	public void testWaitingPullWokenByOtherProcess() throws Exception {
+		// Polling alone would not find the message before the pull gives up.
+		config.setProperty("pollInterval", "60000");
+		FileQueueService waiting = new FileQueueService(config);
+		CompletableFuture<Message> pulled = CompletableFuture.supplyAsync(
+				() -> waiting.pull(queueUrl, 20, TimeUnit.SECONDS));
+		Thread.sleep(200);
+
+		long start = System.nanoTime();
+		Process other = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+				"-cp", System.getProperty("java.class.path"), OtherProcess.class.getName(),
+				config.getProperty("fileStorage"), queueUrl, "Message A.").inheritIO().start();
+		assertEquals(0, other.waitFor());
+
+		assertEquals("Message A.", pulled.get(20, TimeUnit.SECONDS).getBody());
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(15));
+	}
+	
+	@Test
+	public void testMultiLineMessage(){
+		String msgBody = "{\n" +
+				"    \"name\":\"John\",\n" +
+				"    \"cars\": {\"car1\":\"Ford\", \"car2\":\"BMW\"}\n" +
+				" }";
+
+		qs.push(queueUrl, msgBody);
+		qs.push(queueUrl, "Message B.");
+
+		assertEquals(msgBody, qs.pull(queueUrl).getBody());
+		assertEquals("Message B.", qs.pull(queueUrl).getBody());
+	}
+	
+	@Test
+	public void testCompactAcknowledgedSegments() throws Exception {
+		assumeTrue("segmented".equals(config.getProperty("fileStorage")));
+		config.setProperty("segmentSize", "64");
+		FileQueueService queueService = new FileQueueService(config);
+
+		for (int i = 0; i < 100; i++) {
+			queueService.push(queueUrl, "Message " + i);
+		}
+		for (int i = 0; i < 100; i++) {
+			Message msg = queueService.pull(queueUrl);
+			assertEquals("Message " + i, msg.getBody());
+			queueService.delete(queueUrl, msg.getReceiptId());
+		}
+		assertNull(queueService.pull(queueUrl));
+
+		Path queueFolder = Paths.get(config.getProperty("queueDirectory"), "MyQueue");
+		long segments = Long.MAX_VALUE;
+		for (int i = 0; i < 50 && segments > 2; i++) {
+			Thread.sleep(100);
+			try (Stream<Path> files = Files.list(queueFolder)) {
+				segments = files.filter(f -> f.toString().endsWith(".seg")).count();
+			}
+		}
+		assertTrue(segments <= 2);
+	}
+
+	@Test
+	public void testStateLogNotRewrittenWhileDeliveriesFillIt() throws Exception {
+		assumeTrue("segmented".equals(config.getProperty("fileStorage")));
+		// Some 1.4 MiB of delivery records stay in flight.
+		List<String> bodies = new ArrayList<>();
+		for (int i = 0; i < 20000; i++) {
+			bodies.add("Message " + i + ".");
+		}
+		qs.pushBatch(queueUrl, bodies);
+		assertEquals(20000, qs.pull(queueUrl, 20000, 30).size());
+		Path queueFolder = Paths.get(config.getProperty("queueDirectory"), "MyQueue");
+		Thread.sleep(500);
+		String generation = stateLog(queueFolder).getFileName().toString();
+
+		// Rewriting the log once more would not make it any smaller.
+		for (int i = 0; i < 100; i++) {
+			qs.push(queueUrl, "Message A.");
+			qs.delete(queueUrl, qs.pull(queueUrl).getReceiptId());
+			Thread.sleep(1);
+		}
+		Thread.sleep(500);
+		assertEquals(generation, stateLog(queueFolder).getFileName().toString());
+	}
+
+	@Test
+	public void testRecoverFromInterruptedGenerationSwitch() throws Exception {
+		assumeTrue("segmented".equals(config.getProperty("fileStorage")));
+		qs.push(queueUrl, "Message A.");
+		qs.push(queueUrl, "Message B.");
+		Message msgA = qs.pull(queueUrl);
+
+		// A crash after the next generation was published, before the current one was ended, and
+		// one while a later generation was still being written.
+		Path queueFolder = Paths.get(config.getProperty("queueDirectory"), "MyQueue");
+		Path current = stateLog(queueFolder);
+		String name = current.getFileName().toString();
+		long generation = Long.parseLong(name.substring("state-".length(), name.length() - ".log".length()));
+		Path next = queueFolder.resolve(String.format("state-%020d.log", generation + 1));
+		Path partial = queueFolder.resolve(String.format("state-%020d.log.tmp", generation + 2));
+		Files.copy(current, next);
+		Files.write(partial, new byte[] {1, 2, 3});
+
+		FileQueueService recovered = new FileQueueService(config);
+		assertEquals("Message B.", recovered.pull(queueUrl).getBody());
+		assertTrue(Files.exists(next));
+		assertFalse(Files.exists(current));
+		assertFalse(Files.exists(partial));
+
+		// The service still reading the ended generation follows it to the next one.
+		qs.delete(queueUrl, msgA.getReceiptId());
+		assertEquals(1, recovered.getQueueStats(queueUrl).getMessages());
+	}
+
+	@Test
+	public void testCompactDeletedRecords() throws Exception {
+		assumeTrue("single".equals(config.getProperty("fileStorage")));
+		char[] filler = new char[1000];
+		Arrays.fill(filler, 'x');
+		String body = new String(filler);
+
+		// One message stays in flight throughout, so the queue is never drained and the file never
+		// cleared; some 8 MiB of records pass through it.
+		qs.push(queueUrl, "Held message.");
+		Message held = qs.pull(queueUrl, 1, 600).get(0);
+		for (int i = 0; i < 8000; i++) {
+			qs.push(queueUrl, body + i);
+			Message msg = qs.pull(queueUrl);
+			assertEquals(body + i, msg.getBody());
+			qs.delete(queueUrl, msg.getReceiptId());
+		}
+
+		Path messagesFile = Paths.get(config.getProperty("queueDirectory"), "MyQueue", "messages");
+		long size = Long.MAX_VALUE;
+		for (int i = 0; i < 50 && size > 4 * 1024 * 1024; i++) {
+			Thread.sleep(100);
+			size = Files.size(messagesFile);
+		}
+		assertTrue(size <= 4 * 1024 * 1024);
+
+		// The held message was delivered before its record moved.
+		qs.push(queueUrl, "Message A.");
+		assertEquals(2, qs.getQueueStats(queueUrl).getMessages());
+		qs.delete(queueUrl, held.getReceiptId());
+		assertEquals(1, qs.getQueueStats(queueUrl).getMessages());
+		assertEquals("Message A.", qs.pull(queueUrl).getBody());
+		assertNull(qs.pull(queueUrl));
+	}
+
+	@Test
+	public void testConcurrentPushAndPull() throws InterruptedException {
+		Thread[] producers = new Thread[4];
+		for (int i = 0; i < producers.length; i++) {
+			String producer = "Producer " + i;
+			producers[i] = new Thread(() -> {
+				for (int j = 0; j < 50; j++) {
+					qs.push(queueUrl, producer + " message " + j);
+				}
+			});
+			producers[i].start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+
+		Set<String> received = ConcurrentHashMap.newKeySet();
+		AtomicInteger deliveries = new AtomicInteger();
+		Thread[] consumers = new Thread[4];
+		for (int i = 0; i < consumers.length; i++) {
+			consumers[i] = new Thread(() -> {
+				Message msg;
+				while ((msg = qs.pull(queueUrl)) != null) {
+					received.add(msg.getBody());
+					deliveries.incrementAndGet();
+				}
+			});
+			consumers[i].start();
+		}
+		for (Thread consumer : consumers) {
+			consumer.join();
+		}
+
+		assertEquals(200, received.size());
+		assertEquals(200, deliveries.get());
+	}
+	
+	@Test
+	public void testPushAsyncBatchesInOrder() throws InterruptedException {
+		config.setProperty("fileSync", "batch");
+		config.setProperty("groupCommitWindow", "1000");
+		FileQueueService batching = new FileQueueService(config);
+
+		List<CompletableFuture<Void>> pushes = Collections.synchronizedList(new ArrayList<>());
+		Thread[] producers = new Thread[4];
+		for (int i = 0; i < producers.length; i++) {
+			int producer = i;
+			producers[i] = new Thread(() -> {
+				for (int j = 0; j < 50; j++) {
+					pushes.add(batching.pushAsync(queueUrl, producer + ":" + j));
+				}
+			});
+			producers[i].start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		CompletableFuture.allOf(pushes.toArray(new CompletableFuture<?>[0])).join();
+
+		// The messages of each producer come out in the order they were pushed.
+		int[] next = new int[producers.length];
+		Message msg;
+		while ((msg = qs.pull(queueUrl)) != null) {
+			String[] fields = msg.getBody().split(":");
+			int producer = Integer.parseInt(fields[0]);
+			assertEquals(next[producer]++, Integer.parseInt(fields[1]));
+		}
+		for (int count : next) {
+			assertEquals(50, count);
+		}
+	}
+	
+	@Test
+	public void testBatchPushPullDelete(){
+		qs.pushBatch(queueUrl, Arrays.asList("Message A.", "Message B.", "Message C."));
+		List<Message> msgs = qs.pull(queueUrl, 2);
+		assertEquals(2, msgs.size());
+		assertEquals("Message A.", msgs.get(0).getBody());
+		assertEquals("Message B.", msgs.get(1).getBody());
+
+		qs.deleteBatch(queueUrl, Arrays.asList(msgs.get(0).getReceiptId(), msgs.get(1).getReceiptId()));
+		msgs = qs.pull(queueUrl, 10);
+		assertEquals(1, msgs.size());
+		assertEquals("Message C.", msgs.get(0).getBody());
+
+		qs.setTimeSupplier(() -> System.currentTimeMillis() + 1000 * 30 + 1);
+		msgs = qs.pull(queueUrl, 10);
+		assertEquals(1, msgs.size());
+		assertEquals("Message C.", msgs.get(0).getBody());
+	}
+	
+	@Test
+	public void testRedeliverBeforeNewMessages(){
+		qs.push(queueUrl, "Message A.");
+		qs.push(queueUrl, "Message B.");
+		qs.push(queueUrl, "Message C.");
+		qs.pull(queueUrl);
+		Message msg = qs.pull(queueUrl);
+		qs.delete(queueUrl, msg.getReceiptId());
+
+		qs.setTimeSupplier(() -> System.currentTimeMillis() + 1000 * 30 + 1);
+		assertEquals("Message A.", qs.pull(queueUrl).getBody());
+		assertEquals("Message C.", qs.pull(queueUrl).getBody());
+	}
+	
 	/**
 	 * Test delete/acknowledge timeout.
 	 */
 	@Test
 	public void testAckTimeout(){
-		FileQueueService queueService = new FileQueueService();
+		FileQueueService queueService = new FileQueueService(config);
 
 		queueService.push(queueUrl, "Message A.");
 		queueService.pull(queueUrl);
@@ -90,4 +400,333 @@ public class FileQueueTest {
 		Message msg = queueService.pull(queueUrl);
 		assertTrue(msg != null && msg.getBody().equals("Message A."));
 	}
+
+	@Test
+	public void testWaitingPullWokenByPush() throws InterruptedException {
+		Thread producer = new Thread(() -> {
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				return;
+			}
+			qs.push(queueUrl, "Message A.");
+		});
+		producer.start();
+
+		Message msg = qs.pull(queueUrl, 10, TimeUnit.SECONDS);
+		producer.join();
+		assertTrue(msg != null && msg.getBody().equals("Message A."));
+	}
+
+	@Test
+	public void testWaitingPullTimesOut() {
+		long start = System.nanoTime();
+		Message msg = qs.pull(queueUrl, 200, TimeUnit.MILLISECONDS);
+		assertNull(msg);
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+	}
+
+	@Test
+	public void testExpirationsCounted(){
+		qs.push(queueUrl, "Message A.");
+		qs.push(queueUrl, "Message B.");
+		qs.pull(queueUrl);
+		Message msgB = qs.pull(queueUrl);
+		qs.delete(queueUrl, msgB.getReceiptId());
+		assertEquals(0, qs.getExpirations());
+
+		qs.setTimeSupplier(() -> System.currentTimeMillis() + 1000 * 30 + 1);
+		assertEquals("Message A.", qs.pull(queueUrl).getBody());
+		assertNull(qs.pull(queueUrl));
+		assertEquals(1, qs.getExpirations());
+	}
+
+	@Test
+	public void testChangeVisibility(){
+		AtomicLong clockOffset = new AtomicLong();
+		qs.setTimeSupplier(() -> System.currentTimeMillis() + clockOffset.get());
+		qs.push(queueUrl, "Message A.");
+		qs.push(queueUrl, "Message B.");
+		Message msgA = qs.pull(queueUrl);
+		Message msgB = qs.pull(queueUrl);
+		qs.changeVisibility(queueUrl, msgA.getReceiptId(), 60);
+		qs.changeVisibility(queueUrl, msgB.getReceiptId(), 0);
+
+		clockOffset.set(1000);
+		msgB = qs.pull(queueUrl);
+		assertEquals("Message B.", msgB.getBody());
+		qs.delete(queueUrl, msgB.getReceiptId());
+		clockOffset.set(1000 * 30 + 1);
+		assertNull(qs.pull(queueUrl));
+		clockOffset.set(1000 * 60 + 1);
+		assertEquals("Message A.", qs.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testVisibilityTimeoutPerQueueAndPull(){
+		AtomicLong clockOffset = new AtomicLong();
+		qs.setTimeSupplier(() -> System.currentTimeMillis() + clockOffset.get());
+		qs.push(queueUrl, "Message A.");
+		qs.push(queueUrl, "Message B.");
+		qs.setVisibilityTimeout(queueUrl, 60);
+		assertEquals("Message A.", qs.pull(queueUrl).getBody());
+		assertEquals("Message B.", qs.pull(queueUrl, 1, 10).get(0).getBody());
+
+		clockOffset.set(1000 * 10 + 1);
+		Message msgB = qs.pull(queueUrl);
+		assertEquals("Message B.", msgB.getBody());
+		qs.delete(queueUrl, msgB.getReceiptId());
+		clockOffset.set(1000 * 30 + 1);
+		assertNull(qs.pull(queueUrl));
+		clockOffset.set(1000 * 60 + 1);
+		assertEquals("Message A.", qs.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testFullMessagesFileRefusesPushes(){
+		assumeTrue("single".equals(config.getProperty("fileStorage")));
+		// Room for three records of 1000 bytes.
+		Properties small = new Properties();
+		small.putAll(config);
+		small.setProperty("maxFileSize", "4096");
+		FileQueueService bounded = new FileQueueService(small);
+		char[] filler = new char[1000];
+		Arrays.fill(filler, 'x');
+		String body = new String(filler);
+
+		for (int i = 0; i < 3; i++) {
+			bounded.push(queueUrl, body);
+		}
+		try {
+			bounded.push(queueUrl, body);
+			fail("The messages file should be full");
+		} catch (QueueFullException e) {
+			assertEquals(3, bounded.getQueueStats(queueUrl).getMessages());
+		}
+
+		// Deleting every message clears the file.
+		for (Message msg : bounded.pull(queueUrl, 3)) {
+			bounded.delete(queueUrl, msg.getReceiptId());
+		}
+		bounded.push(queueUrl, body);
+		assertEquals(1, bounded.getQueueStats(queueUrl).getMessages());
+	}
+
+	@Test
+	public void testQueueLimitsFailFast(){
+		FileQueueService bounded = new FileQueueService(limitsConfig("fail"));
+		assertEquals(0, bounded.getQueueStats(queueUrl).getMessages());
+		bounded.push(queueUrl, "Message \u00e9.");
+		bounded.push(queueUrl, "Message B.");
+		try {
+			bounded.push(queueUrl, "Message C.");
+			fail("The queue should be full");
+		} catch (QueueFullException e) {
+			assertTrue(e.getMessage().startsWith("Failed to push message"));
+		}
+		try {
+			bounded.pushAsync(queueUrl, "Message C.").join();
+			fail("The queue should be full");
+		} catch (CompletionException e) {
+			assertTrue(e.getCause() instanceof QueueFullException);
+		}
+
+		// Another service sees the same counts; in-flight messages count until they are deleted.
+		FileQueueService other = new FileQueueService(limitsConfig("fail"));
+		Message msg = other.pull(queueUrl);
+		assertEquals(2, other.getQueueStats(queueUrl).getMessages());
+		assertEquals(21, other.getQueueStats(queueUrl).getBytes());
+		other.delete(queueUrl, msg.getReceiptId());
+		assertEquals(1, bounded.getQueueStats(queueUrl).getMessages());
+		assertEquals(10, bounded.getQueueStats(queueUrl).getBytes());
+		bounded.push(queueUrl, "Message C.");
+		assertEquals("Message B.", bounded.pull(queueUrl).getBody());
+		assertEquals("Message C.", bounded.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testQueueLimitsBlockUntilDelete() throws Exception {
+		FileQueueService bounded = new FileQueueService(limitsConfig("block"));
+		bounded.pushBatch(queueUrl, Arrays.asList("Message A.", "Message B."));
+		try {
+			bounded.push(queueUrl, "Message C.");
+			fail("The push should have timed out");
+		} catch (QueueFullException e) {
+		}
+
+		Message msg = bounded.pull(queueUrl);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			executor.submit(() -> {
+				Thread.sleep(50);
+				bounded.delete(queueUrl, msg.getReceiptId());
+				return null;
+			});
+			bounded.push(queueUrl, "Message C.");
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals("Message B.", bounded.pull(queueUrl).getBody());
+		assertEquals("Message C.", bounded.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testQueueLimitsShedOldest(){
+		FileQueueService bounded = new FileQueueService(limitsConfig("shed"));
+		bounded.push(queueUrl, "Message A.");
+		bounded.push(queueUrl, "Message B.");
+		bounded.push(queueUrl, "Message C.");
+		assertEquals(2, bounded.getQueueStats(queueUrl).getMessages());
+		assertEquals(20, bounded.getQueueStats(queueUrl).getBytes());
+		assertEquals("Message B.", bounded.pull(queueUrl).getBody());
+		assertEquals("Message C.", bounded.pull(queueUrl).getBody());
+
+		// Only in-flight messages are left to shed.
+		try {
+			bounded.push(queueUrl, "Message D.");
+			fail("The queue should be full");
+		} catch (QueueFullException e) {
+		}
+	}
+
+	@Test
+	public void testQueueLimitsShedWithoutDelivering(){
+		FileQueueService bounded = new FileQueueService(limitsConfig("shed"));
+		bounded.push(queueUrl, "Message A.");
+		bounded.pull(queueUrl);
+		bounded.push(queueUrl, "Message B.");
+
+		// The expired delivery of A is shed first, then B, neither as a delivery.
+		bounded.setTimeSupplier(() -> System.currentTimeMillis() + 1000 * 30 + 1);
+		bounded.push(queueUrl, "Message C.");
+		bounded.push(queueUrl, "Message D.");
+		bounded.push(queueUrl, "Message E.");
+		assertEquals(0, bounded.getExpirations());
+		assertEquals(2, bounded.getQueueStats(queueUrl).getMessages());
+		assertEquals(20, bounded.getQueueStats(queueUrl).getBytes());
+		assertEquals("Message D.", bounded.pull(queueUrl).getBody());
+		assertEquals("Message E.", bounded.pull(queueUrl).getBody());
+		assertEquals(0, bounded.getExpirations());
+
+		// A reopened queue reads the same state back.
+		FileQueueService reopened = new FileQueueService(limitsConfig("shed"));
+		assertEquals(2, reopened.getQueueStats(queueUrl).getMessages());
+		assertEquals(20, reopened.getQueueStats(queueUrl).getBytes());
+	}
+
+	@Test
+	public void testQueueLimitsAdmitEachGroupCommitPush() throws Exception {
+		Properties grouped = limitsConfig("fail");
+		grouped.setProperty("maxQueueMessages", "5");
+		grouped.setProperty("maxQueueBytes", "0");
+		grouped.setProperty("groupCommitWindow", "20000");
+		FileQueueService bounded = new FileQueueService(grouped);
+
+		// The pushes of a batch which fit are written; only the others fail.
+		List<Future<?>> pushes = pushConcurrently(bounded, 8);
+		int full = 0;
+		for (Future<?> push : pushes) {
+			try {
+				push.get();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof QueueFullException);
+				full++;
+			}
+		}
+		assertEquals(3, full);
+		assertEquals(5, bounded.getQueueStats(queueUrl).getMessages());
+	}
+
+	@Test
+	public void testQueueLimitsBlockGroupCommitPushes() throws Exception {
+		Properties grouped = limitsConfig("block");
+		grouped.setProperty("maxQueueMessages", "5");
+		grouped.setProperty("maxQueueBytes", "0");
+		grouped.setProperty("queueOverflowTimeout", "5000");
+		grouped.setProperty("groupCommitWindow", "20000");
+		FileQueueService bounded = new FileQueueService(grouped);
+
+		// The pushes which fit are written at once, the rest wait for deletes.
+		List<Future<?>> pushes = pushConcurrently(bounded, 8);
+		for (int i = 0; i < 50 && bounded.getQueueStats(queueUrl).getMessages() < 5; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(5, bounded.getQueueStats(queueUrl).getMessages());
+		for (int i = 0; i < 3; i++) {
+			bounded.delete(queueUrl, bounded.pull(queueUrl).getReceiptId());
+		}
+		for (Future<?> push : pushes) {
+			push.get();
+		}
+		assertEquals(5, bounded.getQueueStats(queueUrl).getMessages());
+	}
+
+	@Test
+	public void testGroupCommitWriterReturnsAfterOwnPush() throws Exception {
+		List<String> written = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch secondQueued = new CountDownLatch(1);
+		CountDownLatch secondReleased = new CountDownLatch(1);
+		GroupCommit groupCommit = new GroupCommit(batch -> {
+			written.add(batch.get(0).messageBodies.get(0));
+			try {
+				(written.size() == 1 ? secondQueued : secondReleased).await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}, 0);
+
+		// The first producer writes its own push; the second push, queued meanwhile, is not its job.
+		CompletableFuture<Void> first = CompletableFuture.runAsync(() -> groupCommit.submit("Message A.").join());
+		while (written.isEmpty()) {
+			Thread.sleep(1);
+		}
+		CompletableFuture<Void> second = groupCommit.submit("Message B.");
+		secondQueued.countDown();
+		first.get(5, TimeUnit.SECONDS);
+		assertFalse(second.isDone());
+
+		secondReleased.countDown();
+		second.get(5, TimeUnit.SECONDS);
+		assertEquals(Arrays.asList("Message A.", "Message B."), written);
+	}
+
+	// The current state log of a segmented queue.
+	private static Path stateLog(Path queueFolder) throws IOException {
+		try (Stream<Path> files = Files.list(queueFolder)) {
+			return files.filter(f -> f.getFileName().toString().matches("state-\\d+\\.log")).findFirst().get();
+		}
+	}
+
+	// Pushes count messages, each from a thread of its own.
+	private List<Future<?>> pushConcurrently(FileQueueService queueService, int count) {
+		ExecutorService executor = Executors.newFixedThreadPool(count);
+		List<Future<?>> pushes = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			String msgBody = "Message " + i + ".";
+			pushes.add(executor.submit(() -> queueService.push(queueUrl, msgBody)));
+		}
+		executor.shutdown();
+		return pushes;
+	}
+
+	// At most 2 messages of 25 bytes in all, as the policy says.
+	private Properties limitsConfig(String overflow) {
+		Properties limited = new Properties();
+		limited.putAll(config);
+		limited.setProperty("maxQueueMessages", "2");
+		limited.setProperty("maxQueueBytes", "25");
+		limited.setProperty("queueOverflow", overflow);
+		limited.setProperty("queueOverflowTimeout", "500");
+		return limited;
+	}
+
+	// Pushes a message from a process of its own: storage mode, queue URL and body.
+	static class OtherProcess {
+		public static void main(String[] args) {
+			Properties config = FileQueueService.loadConfig();
+			config.setProperty("fileStorage", args[0]);
+			new FileQueueService(config).push(args[1], args[2]);
+			System.exit(0);
+		}
+	}
 }
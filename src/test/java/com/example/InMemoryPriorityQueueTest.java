@@ -1,5 +1,14 @@
 package com.example;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -129,6 +138,22 @@ public class InMemoryPriorityQueueTest {
 				&& msgStrs[1].equals(msg2.getBody()) && msgStrs[2].equals(msg3.getBody()));
 	}
 
+	@Test
+	public void testFCFSWithinOneMillisecond() {
+		for (int i = 0; i < 100; i++) {
+			pqs.push(queueUrl, "Message " + i, 10);
+		}
+		pqs.pushBatch(queueUrl, Arrays.asList("Message 100", "Message 101"), 10);
+		pqs.push(queueUrl, "Message 0", 10);
+
+		for (int i = 0; i < 102; i++) {
+			assertEquals("Message " + i, pqs.pull(queueUrl).getBody());
+		}
+		// The same body pushed twice is kept twice.
+		assertEquals("Message 0", pqs.pull(queueUrl).getBody());
+		assertNull(pqs.pull(queueUrl));
+	}
+
 	@Test
 	public void testPriorityAndFCFS3Msgs() throws InterruptedException {
 		String [] msgStrs = {"TEst msg 1", "test msg 2",
@@ -153,6 +178,66 @@ public class InMemoryPriorityQueueTest {
 				&& msgStrs[1].equals(msg2.getBody()) && msgStrs[2].equals(msg3.getBody()));
 	}
 	
+	@Test
+	public void testPullBehindInFlightMessages(){
+		for (int i = 0; i < 1000; i++) {
+			pqs.push(queueUrl, "In flight " + i, 1);
+			assertNotNull(pqs.pull(queueUrl));
+		}
+		pqs.push(queueUrl, "Message A.", 10);
+
+		Message msg = pqs.pull(queueUrl);
+		assertEquals("Message A.", msg.getBody());
+		assertNull(pqs.pull(queueUrl));
+	}
+	
+	@Test
+	public void testDeleteAmongInFlightMessages(){
+		AtomicLong clockOffset = new AtomicLong();
+		InMemoryPriorityQueueService queueService = new InMemoryPriorityQueueService() {
+			long now() {
+				return System.currentTimeMillis() + clockOffset.get();
+			}
+		};
+
+		queueService.push(queueUrl, "Message A.", 1);
+		queueService.push(queueUrl, "Message B.", 2);
+		queueService.push(queueUrl, "Message C.", 3);
+		Message msgA = queueService.pull(queueUrl);
+		Message msgB = queueService.pull(queueUrl);
+		queueService.pull(queueUrl);
+
+		queueService.delete(queueUrl, msgB.getReceiptId());
+		queueService.delete(queueUrl, msgA.getReceiptId());
+		clockOffset.set(1000 * 30 + 1);
+
+		assertEquals("Message C.", queueService.pull(queueUrl).getBody());
+	}
+	
+	@Test
+	public void testBatchPushPullDelete(){
+		AtomicLong clockOffset = new AtomicLong();
+		InMemoryPriorityQueueService queueService = new InMemoryPriorityQueueService() {
+			long now() {
+				return System.currentTimeMillis() + clockOffset.get();
+			}
+		};
+
+		queueService.pushBatch(queueUrl, Arrays.asList("Low A.", "Low B."), 2);
+		queueService.pushBatch(queueUrl, Arrays.asList("High A.", "High B."), 1);
+		List<Message> msgs = queueService.pull(queueUrl, 3);
+		assertEquals(3, msgs.size());
+		assertTrue(msgs.get(0).getBody().startsWith("High"));
+		assertTrue(msgs.get(1).getBody().startsWith("High"));
+		assertTrue(msgs.get(2).getBody().startsWith("Low"));
+
+		queueService.deleteBatch(queueUrl, Arrays.asList(msgs.get(0).getReceiptId(), msgs.get(1).getReceiptId()));
+		assertEquals(1, queueService.pull(queueUrl, 10).size());
+
+		clockOffset.set(1000 * 30 + 1);
+		assertEquals(2, queueService.pull(queueUrl, 10).size());
+	}
+	
 	@Test
 	public void testAckTimeout(){
 		InMemoryPriorityQueueService priorityQueueService = new InMemoryPriorityQueueService() {
@@ -168,4 +253,394 @@ public class InMemoryPriorityQueueTest {
 		Message msg = priorityQueueService.pull(queueUrl);
 		assertTrue(msg != null && msgBody.equals(msg.getBody()));
 	}
+
+	@Test
+	public void testWaitingPullWokenByPush() throws InterruptedException {
+		Thread producer = new Thread(() -> {
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				return;
+			}
+			pqs.push(queueUrl, "Message A.", 10);
+		});
+		producer.start();
+
+		Message msg = pqs.pull(queueUrl, 10, TimeUnit.SECONDS);
+		producer.join();
+		assertTrue(msg != null && msg.getBody().equals("Message A."));
+	}
+
+	@Test
+	public void testWaitingPullTimesOut() {
+		long start = System.nanoTime();
+		Message msg = pqs.pull(queueUrl, 200, TimeUnit.MILLISECONDS);
+		assertNull(msg);
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+	}
+
+	@Test
+	public void testExpirationsCounted() {
+		AtomicLong clockOffset = new AtomicLong();
+		InMemoryPriorityQueueService priorityQueueService = new InMemoryPriorityQueueService() {
+			@Override
+			long now() {
+				return System.currentTimeMillis() + clockOffset.get();
+			}
+		};
+
+		priorityQueueService.push(queueUrl, "Message A.", 1);
+		priorityQueueService.push(queueUrl, "Message B.", 2);
+		priorityQueueService.pull(queueUrl);
+		Message msgB = priorityQueueService.pull(queueUrl);
+		priorityQueueService.delete(queueUrl, msgB.getReceiptId());
+		assertEquals(0, priorityQueueService.getExpirations());
+
+		clockOffset.set(1000 * 30 + 1);
+		assertEquals("Message A.", priorityQueueService.pull(queueUrl).getBody());
+		assertEquals(1, priorityQueueService.getExpirations());
+	}
+
+	@Test
+	public void testChangeVisibility(){
+		AtomicLong clockOffset = new AtomicLong();
+		InMemoryPriorityQueueService priorityQueueService = new InMemoryPriorityQueueService() {
+			@Override
+			long now() {
+				return System.currentTimeMillis() + clockOffset.get();
+			}
+		};
+		priorityQueueService.push(queueUrl, "Message A.", 10);
+		priorityQueueService.push(queueUrl, "Message B.", 10);
+		Message msgA = priorityQueueService.pull(queueUrl);
+		Message msgB = priorityQueueService.pull(queueUrl);
+		priorityQueueService.changeVisibility(queueUrl, msgA.getReceiptId(), 60);
+		priorityQueueService.changeVisibility(queueUrl, msgB.getReceiptId(), 0);
+
+		clockOffset.set(1000);
+		msgB = priorityQueueService.pull(queueUrl);
+		assertEquals("Message B.", msgB.getBody());
+		priorityQueueService.delete(queueUrl, msgB.getReceiptId());
+		clockOffset.set(1000 * 30 + 1);
+		assertNull(priorityQueueService.pull(queueUrl));
+		clockOffset.set(1000 * 60 + 1);
+		assertEquals("Message A.", priorityQueueService.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testVisibilityTimeoutPerQueueAndPull(){
+		AtomicLong clockOffset = new AtomicLong();
+		InMemoryPriorityQueueService priorityQueueService = new InMemoryPriorityQueueService() {
+			@Override
+			long now() {
+				return System.currentTimeMillis() + clockOffset.get();
+			}
+		};
+		priorityQueueService.push(queueUrl, "Message A.", 10);
+		priorityQueueService.push(queueUrl, "Message B.", 10);
+		priorityQueueService.setVisibilityTimeout(queueUrl, 60);
+		assertEquals("Message A.", priorityQueueService.pull(queueUrl).getBody());
+		assertEquals("Message B.", priorityQueueService.pull(queueUrl, 1, 10).get(0).getBody());
+
+		clockOffset.set(1000 * 10 + 1);
+		Message msgB = priorityQueueService.pull(queueUrl);
+		assertEquals("Message B.", msgB.getBody());
+		priorityQueueService.delete(queueUrl, msgB.getReceiptId());
+		clockOffset.set(1000 * 30 + 1);
+		assertNull(priorityQueueService.pull(queueUrl));
+		clockOffset.set(1000 * 60 + 1);
+		assertEquals("Message A.", priorityQueueService.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testShardedQueueKeepsPriorityOrder() throws InterruptedException {
+		PriorityQueueService sharded = new InMemoryPriorityQueueService(shardedConfig(4, false));
+		List<Thread> producers = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			int producer = t;
+			producers.add(new Thread(() -> {
+				for (int i = 0; i < 25; i++) {
+					sharded.push(queueUrl, "Message " + producer + "-" + i, (producer * 25 + i) % 10);
+				}
+			}));
+		}
+		for (Thread producer : producers) {
+			producer.start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+
+		int lastPriority = 0;
+		for (int i = 0; i < 100; i++) {
+			Message msg = sharded.pull(queueUrl);
+			assertNotNull(msg);
+			String[] ids = msg.getBody().substring("Message ".length()).split("-");
+			int priority = (Integer.parseInt(ids[0]) * 25 + Integer.parseInt(ids[1])) % 10;
+			assertTrue(priority >= lastPriority);
+			lastPriority = priority;
+		}
+		assertNull(sharded.pull(queueUrl));
+	}
+
+	@Test
+	public void testShardedQueueDeliversEachMessageOnce() throws InterruptedException {
+		PriorityQueueService sharded = new InMemoryPriorityQueueService(shardedConfig(4, true));
+		for (int i = 0; i < 200; i++) {
+			sharded.push(queueUrl, "Message " + i, i % 5);
+		}
+
+		Set<String> delivered = ConcurrentHashMap.newKeySet();
+		List<Thread> consumers = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			consumers.add(new Thread(() -> {
+				Message msg;
+				while ((msg = sharded.pull(queueUrl)) != null) {
+					assertTrue(delivered.add(msg.getBody()));
+					sharded.delete(queueUrl, msg.getReceiptId());
+				}
+			}));
+		}
+		for (Thread consumer : consumers) {
+			consumer.start();
+		}
+		for (Thread consumer : consumers) {
+			consumer.join();
+		}
+		assertEquals(200, delivered.size());
+	}
+
+	@Test
+	public void testShardedQueueRoutesReceipts() throws InterruptedException {
+		AtomicLong clockOffset = new AtomicLong();
+		InMemoryPriorityQueueService sharded = new InMemoryPriorityQueueService(shardedConfig(2, false)) {
+			@Override
+			long now() {
+				return System.currentTimeMillis() + clockOffset.get();
+			}
+		};
+		// Pushes from two threads, so the messages are likely to land in different shards.
+		Thread producer = new Thread(() -> sharded.push(queueUrl, "Message A.", 1));
+		producer.start();
+		producer.join();
+		sharded.push(queueUrl, "Message B.", 2);
+
+		Message msgA = sharded.pull(queueUrl);
+		Message msgB = sharded.pull(queueUrl);
+		assertEquals("Message A.", msgA.getBody());
+		assertEquals("Message B.", msgB.getBody());
+		sharded.delete(queueUrl, msgB.getReceiptId());
+		sharded.changeVisibility(queueUrl, msgA.getReceiptId(), 60);
+		sharded.delete(queueUrl, "not-a-receipt");
+
+		clockOffset.set(1000 * 30 + 1);
+		assertNull(sharded.pull(queueUrl));
+		clockOffset.set(1000 * 60 + 1);
+		assertEquals("Message A.", sharded.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testShardedWaitingPullWokenByPush() throws InterruptedException {
+		PriorityQueueService sharded = new InMemoryPriorityQueueService(shardedConfig(4, true));
+		Thread producer = new Thread(() -> {
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				return;
+			}
+			sharded.push(queueUrl, "Message A.", 10);
+		});
+		producer.start();
+
+		Message msg = sharded.pull(queueUrl, 10, TimeUnit.SECONDS);
+		producer.join();
+		assertTrue(msg != null && msg.getBody().equals("Message A."));
+	}
+
+	@Test
+	public void testPriorityLevelsKeepOrder() {
+		Properties config = new Properties();
+		config.setProperty("priorityLevels", "16");
+		PriorityQueueService bucketed = new InMemoryPriorityQueueService(config);
+		bucketed.push(queueUrl, "Message A.", 15);
+		bucketed.push(queueUrl, "Message B.", 3);
+		bucketed.push(queueUrl, "Message C.", 40);
+		bucketed.push(queueUrl, "Message D.", 3);
+		bucketed.push(queueUrl, "Message E.", -1);
+		bucketed.push(queueUrl, "Message F.", 0);
+
+		assertEquals("Message E.", bucketed.pull(queueUrl).getBody());
+		assertEquals("Message F.", bucketed.pull(queueUrl).getBody());
+		assertEquals("Message B.", bucketed.pull(queueUrl).getBody());
+		assertEquals("Message D.", bucketed.pull(queueUrl).getBody());
+		assertEquals("Message A.", bucketed.pull(queueUrl).getBody());
+		assertEquals("Message C.", bucketed.pull(queueUrl).getBody());
+		assertNull(bucketed.pull(queueUrl));
+	}
+
+	@Test
+	public void testPriorityLevelsRedeliverFirst() {
+		AtomicLong clockOffset = new AtomicLong();
+		Properties config = new Properties();
+		config.setProperty("priorityLevels", "16");
+		InMemoryPriorityQueueService bucketed = new InMemoryPriorityQueueService(config) {
+			@Override
+			long now() {
+				return System.currentTimeMillis() + clockOffset.get();
+			}
+		};
+		bucketed.push(queueUrl, "Message A.", 5);
+		assertEquals("Message A.", bucketed.pull(queueUrl).getBody());
+		bucketed.push(queueUrl, "Message B.", 5);
+
+		clockOffset.set(1000 * 30 + 1);
+		assertEquals("Message A.", bucketed.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testPriorityLevelsRedeliverInOrderLikeHeap() {
+		for (String priorityLevels : new String[] {"0", "16"}) {
+			AtomicLong clockOffset = new AtomicLong();
+			Properties config = new Properties();
+			config.setProperty("priorityLevels", priorityLevels);
+			InMemoryPriorityQueueService priorityQueueService = new InMemoryPriorityQueueService(config) {
+				@Override
+				long now() {
+					return System.currentTimeMillis() + clockOffset.get();
+				}
+			};
+			priorityQueueService.push(queueUrl, "Message A.", 5);
+			priorityQueueService.push(queueUrl, "Message B.", 5);
+			priorityQueueService.push(queueUrl, "Message C.", 5);
+			assertEquals("Message A.", priorityQueueService.pull(queueUrl).getBody());
+			assertEquals("Message B.", priorityQueueService.pull(queueUrl).getBody());
+			assertEquals("Message C.", priorityQueueService.pull(queueUrl).getBody());
+			priorityQueueService.push(queueUrl, "Message D.", 5);
+
+			// All three expire together, and come back in the order they were pushed.
+			clockOffset.set(1000 * 30 + 1);
+			List<String> bodies = new ArrayList<>();
+			for (Message msg : priorityQueueService.pull(queueUrl, 4)) {
+				bodies.add(msg.getBody());
+			}
+			assertEquals(Arrays.asList("Message A.", "Message B.", "Message C.", "Message D."), bodies);
+		}
+	}
+
+	private static Properties shardedConfig(int shards, boolean relaxed) {
+		Properties config = new Properties();
+		config.setProperty("priorityShards", String.valueOf(shards));
+		config.setProperty("relaxedPriority", String.valueOf(relaxed));
+		return config;
+	}
+
+	@Test
+	public void testStaleReceiptOfRecycledEntry(){
+		AtomicLong clockOffset = new AtomicLong();
+		InMemoryPriorityQueueService priorityQueueService = new InMemoryPriorityQueueService() {
+			@Override
+			long now() {
+				return System.currentTimeMillis() + clockOffset.get();
+			}
+		};
+		priorityQueueService.push(queueUrl, "Message A.", 10);
+		Message msgA = priorityQueueService.pull(queueUrl);
+		priorityQueueService.delete(queueUrl, msgA.getReceiptId());
+
+		// B gets the entry A had, under a new receipt id.
+		priorityQueueService.push(queueUrl, "Message B.", 10);
+		Message msgB = priorityQueueService.pull(queueUrl);
+		assertEquals("Message B.", msgB.getBody());
+		assertTrue(!msgA.getReceiptId().equals(msgB.getReceiptId()));
+		priorityQueueService.delete(queueUrl, msgA.getReceiptId());
+		priorityQueueService.changeVisibility(queueUrl, msgA.getReceiptId(), 60);
+		priorityQueueService.delete(queueUrl, "not a receipt");
+
+		clockOffset.set(1000 * 30 + 1);
+		assertEquals("Message B.", priorityQueueService.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testOffHeapBodies(){
+		Properties config = new Properties();
+		config.setProperty("offHeapCapacity", String.valueOf(2 << 20));
+		InMemoryPriorityQueueService offHeap = new InMemoryPriorityQueueService(config);
+		String bigBody = new String(new char[(1 << 20) + 1]).replace('\0', 'x');
+		offHeap.push(queueUrl, bigBody, 10);
+		offHeap.push(queueUrl, "Message \u00e9.", 10);
+		Message msg = offHeap.pull(queueUrl);
+		assertEquals(bigBody, msg.getBody());
+		offHeap.delete(queueUrl, msg.getReceiptId());
+		msg = offHeap.pull(queueUrl);
+		assertEquals("Message \u00e9.", msg.getBody());
+		offHeap.delete(queueUrl, msg.getReceiptId());
+
+		// The first slab held blocks of 64 bytes; emptied, it is taken back, so both slabs hold 1024
+		// blocks of 1 KiB. A deleted body frees its block.
+		String body = new String(new char[1000]).replace('\0', 'y');
+		for (int i = 0; i < 2048; i++) {
+			offHeap.push(queueUrl, body, 10);
+		}
+		try {
+			offHeap.push(queueUrl, body, 10);
+			fail("The off-heap store should be full");
+		} catch (BodyStoreFullException e) {
+			assertTrue(e.getMessage().startsWith("Failed to store message body"));
+		}
+		msg = offHeap.pull(queueUrl);
+		assertEquals(body, msg.getBody());
+		offHeap.delete(queueUrl, msg.getReceiptId());
+		offHeap.push(queueUrl, body, 10);
+	}
+
+	@Test
+	public void testQueueLimitsShedLowestPriority(){
+		for (String[] setting : new String[][] { {"priorityShards", "1"}, {"priorityLevels", "8"}, {"priorityShards", "2"} }) {
+			Properties config = new Properties();
+			config.setProperty(setting[0], setting[1]);
+			config.setProperty("maxQueueMessages", "3");
+			config.setProperty("queueOverflow", "shed");
+			InMemoryPriorityQueueService bounded = new InMemoryPriorityQueueService(config);
+			bounded.push(queueUrl, "Message A.", 5);
+			bounded.push(queueUrl, "Message B.", 7);
+			bounded.push(queueUrl, "Message C.", 7);
+
+			// C is the latest of the lowest priority; a new message of that priority goes itself.
+			bounded.push(queueUrl, "Message D.", 1);
+			bounded.push(queueUrl, "Message E.", 7);
+			assertEquals(3, bounded.getQueueStats(queueUrl).getMessages());
+			assertEquals(30, bounded.getQueueStats(queueUrl).getBytes());
+			assertEquals("Message D.", bounded.pull(queueUrl).getBody());
+			assertEquals("Message A.", bounded.pull(queueUrl).getBody());
+			assertEquals("Message B.", bounded.pull(queueUrl).getBody());
+			assertNull(bounded.pull(queueUrl));
+
+			try {
+				bounded.push(queueUrl, "Message F.", 1);
+				fail("Every message is in flight");
+			} catch (QueueFullException e) {
+				assertTrue(e.getMessage().startsWith("Failed to push message"));
+			}
+		}
+	}
+
+	@Test
+	public void testQueueLimitsFailFast(){
+		Properties config = new Properties();
+		config.setProperty("maxQueueBytes", "20");
+		InMemoryPriorityQueueService bounded = new InMemoryPriorityQueueService(config);
+		bounded.pushBatch(queueUrl, Arrays.asList("Message A.", "Message B."), 1);
+		try {
+			bounded.push(queueUrl, "C", 0);
+			fail("The queue should be full");
+		} catch (QueueFullException e) {
+		}
+		Message msg = bounded.pull(queueUrl);
+		bounded.delete(queueUrl, msg.getReceiptId());
+		bounded.delete(queueUrl, msg.getReceiptId());
+		assertEquals(1, bounded.getQueueStats(queueUrl).getMessages());
+		assertEquals(10, bounded.getQueueStats(queueUrl).getBytes());
+		bounded.push(queueUrl, "C", 0);
+		assertEquals("C", bounded.pull(queueUrl).getBody());
+	}
 }
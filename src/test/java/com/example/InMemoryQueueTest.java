@@ -4,6 +4,18 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -88,6 +100,98 @@ public class InMemoryQueueTest {
 				&& msgStrs[1] == msg2.getBody() && msgStrs[2] == msg3.getBody());
 	}
 	
+	@Test
+	public void testDeleteAmongInFlightMessages(){
+		AtomicLong clockOffset = new AtomicLong();
+		InMemoryQueueService queueService = new InMemoryQueueService() {
+			long now() {
+				return System.currentTimeMillis() + clockOffset.get();
+			}
+		};
+
+		queueService.push(queueUrl, "Message A.");
+		queueService.push(queueUrl, "Message B.");
+		queueService.push(queueUrl, "Message C.");
+		Message msgA = queueService.pull(queueUrl);
+		Message msgB = queueService.pull(queueUrl);
+		queueService.pull(queueUrl);
+
+		queueService.delete(queueUrl, msgB.getReceiptId());
+		queueService.delete(queueUrl, msgA.getReceiptId());
+		clockOffset.set(1000 * 30 + 1);
+
+		assertEquals("Message C.", queueService.pull(queueUrl).getBody());
+	}
+	
+	@Test
+	public void testBatchPushPullDelete(){
+		AtomicLong clockOffset = new AtomicLong();
+		InMemoryQueueService queueService = new InMemoryQueueService() {
+			long now() {
+				return System.currentTimeMillis() + clockOffset.get();
+			}
+		};
+
+		queueService.pushBatch(queueUrl, Arrays.asList("Message A.", "Message B.", "Message C."));
+		List<Message> msgs = queueService.pull(queueUrl, 2);
+		assertEquals(2, msgs.size());
+		assertEquals("Message A.", msgs.get(0).getBody());
+		assertEquals("Message B.", msgs.get(1).getBody());
+
+		queueService.deleteBatch(queueUrl, Arrays.asList(msgs.get(0).getReceiptId(), msgs.get(1).getReceiptId()));
+		msgs = queueService.pull(queueUrl, 10);
+		assertEquals(1, msgs.size());
+		assertEquals("Message C.", msgs.get(0).getBody());
+
+		clockOffset.set(1000 * 30 + 1);
+		msgs = queueService.pull(queueUrl, 1);
+		assertEquals(1, msgs.size());
+		assertEquals("Message C.", msgs.get(0).getBody());
+	}
+	
+	@Test
+	public void testExecutorAsyncService(){
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		AsyncQueueService async = new ExecutorAsyncQueueService(qs, executor);
+
+		async.pushBatchAsync(queueUrl, Arrays.asList("Message A.", "Message B.")).join();
+		Message msg = async.pullAsync(queueUrl).join();
+		assertEquals("Message A.", msg.getBody());
+
+		async.deleteAsync(queueUrl, msg.getReceiptId()).join();
+		assertEquals("Message B.", async.pullAsync(queueUrl).join().getBody());
+		assertNull(async.pullAsync(queueUrl).join());
+		executor.shutdown();
+	}
+	
+	@Test
+	public void testConcurrentPullDeliversOnce() throws InterruptedException {
+		int msgCount = 10000;
+		for (int i = 0; i < msgCount; i++) {
+			qs.push(queueUrl, "Message " + i);
+		}
+
+		Set<String> received = ConcurrentHashMap.newKeySet();
+		AtomicInteger deliveries = new AtomicInteger();
+		Thread[] consumers = new Thread[8];
+		for (int i = 0; i < consumers.length; i++) {
+			consumers[i] = new Thread(() -> {
+				Message msg;
+				while ((msg = qs.pull(queueUrl)) != null) {
+					received.add(msg.getBody());
+					deliveries.incrementAndGet();
+				}
+			});
+			consumers[i].start();
+		}
+		for (Thread consumer : consumers) {
+			consumer.join();
+		}
+
+		assertEquals(msgCount, received.size());
+		assertEquals(msgCount, deliveries.get());
+	}
+	
 	@Test
 	public void testAckTimeout(){
 		InMemoryQueueService queueService = new InMemoryQueueService() {
@@ -101,4 +205,268 @@ public class InMemoryQueueTest {
 		Message msg = queueService.pull(queueUrl);
 		assertTrue(msg != null && msg.getBody() == "Message A.");
 	}
+
+	@Test
+	public void testWaitingPullWokenByPush() throws InterruptedException {
+		Thread producer = new Thread(() -> {
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				return;
+			}
+			qs.push(queueUrl, "Message A.");
+		});
+		producer.start();
+
+		Message msg = qs.pull(queueUrl, 10, TimeUnit.SECONDS);
+		producer.join();
+		assertTrue(msg != null && msg.getBody().equals("Message A."));
+	}
+
+	@Test
+	public void testWaitingPullTimesOut() {
+		long start = System.nanoTime();
+		Message msg = qs.pull(queueUrl, 200, TimeUnit.MILLISECONDS);
+		assertNull(msg);
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+	}
+
+	@Test
+	public void testExpirationsCounted(){
+		AtomicLong clockOffset = new AtomicLong();
+		InMemoryQueueService queueService = new InMemoryQueueService() {
+			long now() {
+				return System.currentTimeMillis() + clockOffset.get();
+			}
+		};
+
+		queueService.push(queueUrl, "Message A.");
+		queueService.push(queueUrl, "Message B.");
+		queueService.pull(queueUrl);
+		Message msgB = queueService.pull(queueUrl);
+		queueService.delete(queueUrl, msgB.getReceiptId());
+		assertEquals(0, queueService.getExpirations());
+
+		clockOffset.set(1000 * 30 + 1);
+		assertEquals("Message A.", queueService.pull(queueUrl).getBody());
+		assertEquals(1, queueService.getExpirations());
+	}
+
+	@Test
+	public void testChangeVisibility(){
+		AtomicLong clockOffset = new AtomicLong();
+		InMemoryQueueService queueService = new InMemoryQueueService() {
+			long now() {
+				return System.currentTimeMillis() + clockOffset.get();
+			}
+		};
+		queueService.push(queueUrl, "Message A.");
+		queueService.push(queueUrl, "Message B.");
+		Message msgA = queueService.pull(queueUrl);
+		Message msgB = queueService.pull(queueUrl);
+		queueService.changeVisibility(queueUrl, msgA.getReceiptId(), 60);
+		queueService.changeVisibility(queueUrl, msgB.getReceiptId(), 0);
+
+		clockOffset.set(1000);
+		msgB = queueService.pull(queueUrl);
+		assertEquals("Message B.", msgB.getBody());
+		queueService.delete(queueUrl, msgB.getReceiptId());
+		clockOffset.set(1000 * 30 + 1);
+		assertNull(queueService.pull(queueUrl));
+		clockOffset.set(1000 * 60 + 1);
+		assertEquals("Message A.", queueService.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testVisibilityTimeoutPerQueueAndPull(){
+		AtomicLong clockOffset = new AtomicLong();
+		InMemoryQueueService queueService = new InMemoryQueueService() {
+			long now() {
+				return System.currentTimeMillis() + clockOffset.get();
+			}
+		};
+		queueService.push(queueUrl, "Message A.");
+		queueService.push(queueUrl, "Message B.");
+		queueService.setVisibilityTimeout(queueUrl, 60);
+		assertEquals("Message A.", queueService.pull(queueUrl).getBody());
+		assertEquals("Message B.", queueService.pull(queueUrl, 1, 10).get(0).getBody());
+
+		clockOffset.set(1000 * 10 + 1);
+		Message msgB = queueService.pull(queueUrl);
+		assertEquals("Message B.", msgB.getBody());
+		queueService.delete(queueUrl, msgB.getReceiptId());
+		clockOffset.set(1000 * 30 + 1);
+		assertNull(queueService.pull(queueUrl));
+		clockOffset.set(1000 * 60 + 1);
+		assertEquals("Message A.", queueService.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testStaleReceiptOfRecycledEntry(){
+		AtomicLong clockOffset = new AtomicLong();
+		InMemoryQueueService queueService = new InMemoryQueueService() {
+			@Override
+			long now() {
+				return System.currentTimeMillis() + clockOffset.get();
+			}
+		};
+		queueService.push(queueUrl, "Message A.");
+		Message msgA = queueService.pull(queueUrl);
+		queueService.delete(queueUrl, msgA.getReceiptId());
+
+		// B gets the entry A had, under a new receipt id.
+		queueService.push(queueUrl, "Message B.");
+		Message msgB = queueService.pull(queueUrl);
+		assertEquals("Message B.", msgB.getBody());
+		assertTrue(!msgA.getReceiptId().equals(msgB.getReceiptId()));
+		queueService.delete(queueUrl, msgA.getReceiptId());
+		queueService.changeVisibility(queueUrl, msgA.getReceiptId(), 60);
+		queueService.delete(queueUrl, "not a receipt");
+
+		clockOffset.set(1000 * 30 + 1);
+		assertEquals("Message B.", queueService.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testOffHeapBodies(){
+		Properties config = new Properties();
+		config.setProperty("offHeapCapacity", String.valueOf(2 << 20));
+		InMemoryQueueService offHeap = new InMemoryQueueService(config);
+		String bigBody = new String(new char[(1 << 20) + 1]).replace('\0', 'x');
+		offHeap.push(queueUrl, bigBody);
+		offHeap.push(queueUrl, "Message \u00e9.");
+		Message msg = offHeap.pull(queueUrl);
+		assertEquals(bigBody, msg.getBody());
+		offHeap.delete(queueUrl, msg.getReceiptId());
+		msg = offHeap.pull(queueUrl);
+		assertEquals("Message \u00e9.", msg.getBody());
+		offHeap.delete(queueUrl, msg.getReceiptId());
+
+		// The first slab held blocks of 64 bytes; emptied, it is taken back, so both slabs hold 1024
+		// blocks of 1 KiB. A deleted body frees its block.
+		String body = new String(new char[1000]).replace('\0', 'y');
+		for (int i = 0; i < 2048; i++) {
+			offHeap.push(queueUrl, body);
+		}
+		try {
+			offHeap.push(queueUrl, body);
+			fail("The off-heap store should be full");
+		} catch (BodyStoreFullException e) {
+			assertTrue(e.getMessage().startsWith("Failed to store message body"));
+		}
+		msg = offHeap.pull(queueUrl);
+		assertEquals(body, msg.getBody());
+		offHeap.delete(queueUrl, msg.getReceiptId());
+		offHeap.push(queueUrl, body);
+	}
+
+	@Test
+	public void testOffHeapStoreFullSheds(){
+		Properties config = new Properties();
+		config.setProperty("offHeapCapacity", String.valueOf(1 << 20));
+		config.setProperty("queueOverflow", "shed");
+		InMemoryQueueService offHeap = new InMemoryQueueService(config);
+		String body = new String(new char[1000]).replace('\0', 'y');
+		for (int i = 0; i < 1024; i++) {
+			offHeap.push(queueUrl, body + i);
+		}
+
+		// The store is full, though the queue has no limits; the oldest message makes room.
+		offHeap.push(queueUrl, body + 1024);
+		assertEquals(1024, offHeap.getQueueStats(queueUrl).getMessages());
+		assertEquals(body + 1, offHeap.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testQueueLimitsFailFast(){
+		InMemoryQueueService bounded = new InMemoryQueueService(limitsConfig("fail"));
+		assertEquals(0, bounded.getQueueStats(queueUrl).getMessages());
+		bounded.push(queueUrl, "Message \u00e9.");
+		bounded.push(queueUrl, "Message B.");
+		QueueStats stats = bounded.getQueueStats(queueUrl);
+		assertEquals(2, stats.getMessages());
+		assertEquals(21, stats.getBytes());
+		try {
+			bounded.push(queueUrl, "Message C.");
+			fail("The queue should be full");
+		} catch (QueueFullException e) {
+			assertTrue(e.getMessage().startsWith("Failed to push message"));
+		}
+		try {
+			bounded.pushBatch(queueUrl, Arrays.asList("Message C.", "Message D."));
+			fail("The queue should be full");
+		} catch (QueueFullException e) {
+		}
+
+		// In-flight messages count until they are deleted.
+		Message msg = bounded.pull(queueUrl);
+		assertEquals(2, bounded.getQueueStats(queueUrl).getMessages());
+		bounded.delete(queueUrl, msg.getReceiptId());
+		assertEquals(1, bounded.getQueueStats(queueUrl).getMessages());
+		assertEquals(10, bounded.getQueueStats(queueUrl).getBytes());
+		bounded.push(queueUrl, "Message C.");
+		assertEquals("Message B.", bounded.pull(queueUrl).getBody());
+		assertEquals("Message C.", bounded.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testQueueLimitsBlockUntilDelete() throws Exception {
+		InMemoryQueueService bounded = new InMemoryQueueService(limitsConfig("block"));
+		bounded.push(queueUrl, "Message A.");
+		bounded.push(queueUrl, "Message B.");
+		long start = System.nanoTime();
+		try {
+			bounded.push(queueUrl, "Message C.");
+			fail("The push should have timed out");
+		} catch (QueueFullException e) {
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+		}
+
+		Message msg = bounded.pull(queueUrl);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			executor.submit(() -> {
+				Thread.sleep(50);
+				bounded.delete(queueUrl, msg.getReceiptId());
+				return null;
+			});
+			bounded.push(queueUrl, "Message C.");
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals("Message B.", bounded.pull(queueUrl).getBody());
+		assertEquals("Message C.", bounded.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testQueueLimitsShedOldest(){
+		InMemoryQueueService bounded = new InMemoryQueueService(limitsConfig("shed"));
+		bounded.push(queueUrl, "Message A.");
+		bounded.push(queueUrl, "Message B.");
+		bounded.push(queueUrl, "Message C.");
+		assertEquals(2, bounded.getQueueStats(queueUrl).getMessages());
+
+		// Only in-flight messages are left to shed.
+		Message msgB = bounded.pull(queueUrl);
+		assertEquals("Message B.", msgB.getBody());
+		assertEquals("Message C.", bounded.pull(queueUrl).getBody());
+		try {
+			bounded.push(queueUrl, "Message D.");
+			fail("The queue should be full");
+		} catch (QueueFullException e) {
+		}
+		bounded.delete(queueUrl, msgB.getReceiptId());
+		bounded.push(queueUrl, "Message D.");
+		assertEquals("Message D.", bounded.pull(queueUrl).getBody());
+	}
+
+	// At most 2 messages of 25 bytes in all, as the policy says.
+	private static Properties limitsConfig(String overflow) {
+		Properties config = new Properties();
+		config.setProperty("maxQueueMessages", "2");
+		config.setProperty("maxQueueBytes", "25");
+		config.setProperty("queueOverflow", overflow);
+		config.setProperty("queueOverflowTimeout", "200");
+		return config;
+	}
 }
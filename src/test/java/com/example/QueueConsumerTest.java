@@ -0,0 +1,186 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueueConsumerTest {
+	private AtomicLong clock;
+	private QueueService qs;
+	private String queueUrl = "https://sqs.ap-1.amazonaws.com/007/MyQueue";
+	private Properties config;
+
+	@Before
+	public void setup() {
+		clock = new AtomicLong();
+		qs = new InMemoryQueueService() {
+			@Override
+			long now() {
+				return System.currentTimeMillis() + clock.get();
+			}
+		};
+
+		config = new Properties();
+		config.setProperty("consumerConcurrency", "4");
+		config.setProperty("consumerPrefetch", "4");
+		config.setProperty("consumerWaitTime", "50");
+		config.setProperty("ackBatchSize", "5");
+		config.setProperty("ackInterval", "20");
+	}
+
+	@Test
+	public void testHandlesAndDeletesEveryMessage() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			qs.push(queueUrl, "Message " + i);
+		}
+
+		Set<String> handled = ConcurrentHashMap.newKeySet();
+		CountDownLatch done = new CountDownLatch(100);
+		QueueConsumer consumer = new QueueConsumer(qs, queueUrl, msg -> {
+			handled.add(msg.getBody());
+			done.countDown();
+		}, config);
+		consumer.start();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertTrue(consumer.shutdown(10, TimeUnit.SECONDS));
+
+		assertEquals(100, handled.size());
+		// Deleted messages are not delivered again once the visibility timeout expires.
+		clock.set(TimeUnit.SECONDS.toMillis(31));
+		assertNull(qs.pull(queueUrl));
+	}
+
+	@Test
+	public void testConcurrencyLimit() throws Exception {
+		for (int i = 0; i < 40; i++) {
+			qs.push(queueUrl, "Message " + i);
+		}
+
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(40);
+		QueueConsumer consumer = new QueueConsumer(qs, queueUrl, msg -> {
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			Thread.sleep(10);
+			running.decrementAndGet();
+			done.countDown();
+		}, config);
+		consumer.start();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		consumer.close();
+
+		assertTrue(maxRunning.get() <= 4);
+		assertTrue(maxRunning.get() > 1);
+	}
+
+	@Test
+	public void testFailedMessageIsDeliveredAgain() throws Exception {
+		qs.push(queueUrl, "Message A.");
+
+		CountDownLatch attempted = new CountDownLatch(1);
+		QueueConsumer consumer = new QueueConsumer(qs, queueUrl, msg -> {
+			attempted.countDown();
+			throw new IllegalStateException("Failed on purpose");
+		}, config);
+		consumer.start();
+		assertTrue(attempted.await(10, TimeUnit.SECONDS));
+		consumer.close();
+
+		clock.set(TimeUnit.SECONDS.toMillis(31));
+		Message msg = qs.pull(queueUrl);
+		assertNotNull(msg);
+		assertEquals("Message A.", msg.getBody());
+	}
+
+	@Test
+	public void testVisibilityExtendedWhileHandling() throws Exception {
+		qs.push(queueUrl, "Message A.");
+
+		AtomicInteger extensions = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(1);
+		QueueConsumer consumer = new QueueConsumer(qs, queueUrl, msg -> {
+			Thread.sleep(300);
+			done.countDown();
+		}, config);
+		consumer.setVisibilityExtender((url, receiptId) -> extensions.incrementAndGet(), 50);
+		consumer.start();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		consumer.close();
+
+		assertTrue(extensions.get() >= 2);
+	}
+
+	@Test
+	public void testVisibilityExtendedWhilePrefetched() throws Exception {
+		qs.push(queueUrl, "Message A.");
+		qs.push(queueUrl, "Message B.");
+		config.setProperty("consumerConcurrency", "1");
+		config.setProperty("consumerPrefetch", "1");
+
+		// B waits for the handler of A, and is kept invisible meanwhile.
+		Set<String> extended = ConcurrentHashMap.newKeySet();
+		Set<String> extendedBeforeHandling = ConcurrentHashMap.newKeySet();
+		CountDownLatch done = new CountDownLatch(2);
+		QueueConsumer consumer = new QueueConsumer(qs, queueUrl, msg -> {
+			if (extended.contains(msg.getReceiptId())) {
+				extendedBeforeHandling.add(msg.getBody());
+			}
+			Thread.sleep(300);
+			done.countDown();
+		}, config);
+		consumer.setVisibilityExtender((url, receiptId) -> extended.add(receiptId), 50);
+		consumer.start();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		consumer.close();
+
+		assertTrue(extendedBeforeHandling.contains("Message B."));
+	}
+
+	@Test
+	public void testPriorityQueueService() throws Exception {
+		PriorityQueueService pqs = new InMemoryPriorityQueueService();
+		for (int i = 0; i < 20; i++) {
+			pqs.push(queueUrl, "Message " + i, i % 3);
+		}
+
+		CountDownLatch done = new CountDownLatch(20);
+		QueueConsumer consumer = new QueueConsumer(pqs, queueUrl, msg -> done.countDown(), config);
+		consumer.start();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		consumer.close();
+
+		assertNull(pqs.pull(queueUrl));
+	}
+
+	@Test
+	public void testVisibilityExtendedByDefault() throws Exception {
+		qs.setVisibilityTimeout(queueUrl, 1);
+		qs.push(queueUrl, "Message A.");
+		config.setProperty("consumerVisibilityTimeout", "1");
+
+		AtomicInteger deliveries = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(1);
+		QueueConsumer consumer = new QueueConsumer(qs, queueUrl, msg -> {
+			deliveries.incrementAndGet();
+			Thread.sleep(2500);
+			done.countDown();
+		}, config);
+		consumer.start();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		consumer.close();
+
+		assertEquals(1, deliveries.get());
+	}
+}
@@ -0,0 +1,156 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletionException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+public class SqsQueueServiceTest {
+	private StubClient client;
+	private SqsQueueService qs;
+	private SqsAsyncQueueService asyncQs;
+	private String queueUrl = "https://sqs.ap-1.amazonaws.com/007/MyQueue";
+
+	@Before
+	public void setup() {
+		client = new StubClient();
+		qs = new SqsQueueService((AmazonSQS) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] {AmazonSQS.class}, client));
+		asyncQs = new SqsAsyncQueueService((AmazonSQSAsync) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] {AmazonSQSAsync.class}, client));
+	}
+
+	@Test
+	public void testPushBatchRetriesFailedEntries() {
+		client.failures.add(Arrays.asList(failure("1", false), failure("3", false)));
+		qs.pushBatch(queueUrl, bodies(12));
+
+		assertEquals(12, client.taken.size());
+		assertEquals(new HashSet<>(bodies(12)), new HashSet<>(client.taken));
+	}
+
+	@Test
+	public void testPushBatchNamesRejectedMessages() {
+		client.failures.add(Collections.singletonList(failure("2", true)));
+		try {
+			qs.pushBatch(queueUrl, bodies(5));
+			fail("The push should have failed");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().startsWith("Failed to push messages"));
+			assertTrue(e.getMessage().endsWith(": 2 (InvalidParameterValue)"));
+		}
+		assertEquals(4, client.taken.size());
+	}
+
+	@Test
+	public void testDeleteBatchGivesUpAfterRetries() {
+		for (int i = 0; i <= SqsBatches.MAX_RETRIES; i++) {
+			client.failures.add(Collections.singletonList(failure("0", false)));
+		}
+		try {
+			qs.deleteBatch(queueUrl, Arrays.asList("receipt-a", "receipt-b"));
+			fail("The delete should have failed");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().endsWith(": receipt-a (InternalError)"));
+		}
+		assertEquals(Collections.singletonList("receipt-b"), client.taken);
+	}
+
+	@Test
+	public void testAsyncBatchesCheckFailedEntries() {
+		client.failures.add(Collections.singletonList(failure("5", false)));
+		asyncQs.pushBatchAsync(queueUrl, bodies(12)).join();
+		assertEquals(new HashSet<>(bodies(12)), new HashSet<>(client.taken));
+
+		client.taken.clear();
+		client.failures.add(Collections.singletonList(failure("1", true)));
+		try {
+			asyncQs.deleteBatchAsync(queueUrl, Arrays.asList("receipt-a", "receipt-b")).join();
+			fail("The delete should have failed");
+		} catch (CompletionException e) {
+			assertTrue(e.getCause().getMessage().endsWith(": receipt-b (InvalidParameterValue)"));
+		}
+		assertEquals(Collections.singletonList("receipt-a"), client.taken);
+	}
+
+	private static List<String> bodies(int count) {
+		List<String> bodies = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			bodies.add("Message " + i + ".");
+		}
+		return bodies;
+	}
+
+	private static BatchResultErrorEntry failure(String id, boolean senderFault) {
+		return new BatchResultErrorEntry().withId(id).withSenderFault(senderFault)
+				.withCode(senderFault ? "InvalidParameterValue" : "InternalError");
+	}
+
+	// A client whose batch requests fail the entries of the next list of failures, and take the rest.
+	private static class StubClient implements InvocationHandler {
+		final Queue<List<BatchResultErrorEntry>> failures = new ArrayDeque<>();
+		final List<String> taken = new ArrayList<>();
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			List<BatchResultErrorEntry> failed = failures.isEmpty() ? Collections.emptyList() : failures.poll();
+			HashSet<String> failedIds = new HashSet<>();
+			for (BatchResultErrorEntry error : failed) {
+				failedIds.add(error.getId());
+			}
+
+			if (method.getName().startsWith("sendMessageBatch")) {
+				for (SendMessageBatchRequestEntry entry : (List<SendMessageBatchRequestEntry>) args[1]) {
+					if (!failedIds.contains(entry.getId())) {
+						taken.add(entry.getMessageBody());
+					}
+				}
+				SendMessageBatchResult result = new SendMessageBatchResult().withFailed(failed);
+				if (args.length > 2) {
+					((AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult>) args[2]).onSuccess(null, result);
+					return null;
+				}
+				return result;
+			} else if (method.getName().startsWith("deleteMessageBatch")) {
+				for (DeleteMessageBatchRequestEntry entry : (List<DeleteMessageBatchRequestEntry>) args[1]) {
+					if (!failedIds.contains(entry.getId())) {
+						taken.add(entry.getReceiptHandle());
+					}
+				}
+				DeleteMessageBatchResult result = new DeleteMessageBatchResult().withFailed(failed);
+				if (args.length > 2) {
+					((AsyncHandler<DeleteMessageBatchRequest, DeleteMessageBatchResult>) args[2]).onSuccess(null, result);
+					return null;
+				}
+				return result;
+			}
+			throw new UnsupportedOperationException(method.getName());
+		}
+	}
+}
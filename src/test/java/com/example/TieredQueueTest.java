@@ -0,0 +1,106 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TieredQueueTest {
+	private Properties config;
+	private TieredQueueService qs;
+	private String queueUrl = "https://sqs.ap-1.amazonaws.com/007/MyQueue";
+
+	@Before
+	public void setup() {
+		config = FileQueueService.loadConfig();
+		config.setProperty("tieredMemoryMessages", "4");
+		qs = new TieredQueueService(config);
+		qs.purgeQueue(queueUrl);
+	}
+
+	@Test
+	public void testSpillAndPageInKeepOrder(){
+		qs.push(queueUrl, "Message A.");
+		qs.pushBatch(queueUrl, Arrays.asList("Message B.", "Message C.", "Message D.", "Message E."));
+		qs.push(queueUrl, "Message F.");
+		assertEquals(2, qs.getSpilledMessages(queueUrl));
+
+		// Once a message is on disk, the later ones follow it there, though memory has room.
+		Message msgA = qs.pull(queueUrl);
+		assertEquals("Message A.", msgA.getBody());
+		qs.delete(queueUrl, msgA.getReceiptId());
+		qs.pushBatch(queueUrl, Arrays.asList("Message G.", "Message H."));
+		assertEquals(4, qs.getSpilledMessages(queueUrl));
+		assertEquals(7, qs.getQueueStats(queueUrl).getMessages());
+		assertEquals(70, qs.getQueueStats(queueUrl).getBytes());
+
+		List<String> bodies = new ArrayList<>();
+		Message msg;
+		while ((msg = qs.pull(queueUrl)) != null) {
+			bodies.add(msg.getBody());
+			assertTrue(!msg.getReceiptId().startsWith("f:"));
+			qs.delete(queueUrl, msg.getReceiptId());
+		}
+		assertEquals(Arrays.asList("Message B.", "Message C.", "Message D.", "Message E.", "Message F.",
+				"Message G.", "Message H."), bodies);
+		assertEquals(0, qs.getSpilledMessages(queueUrl));
+		assertEquals(0, qs.getQueueStats(queueUrl).getMessages());
+
+		// Everything fits into memory again.
+		qs.push(queueUrl, "Message I.");
+		assertEquals(0, qs.getSpilledMessages(queueUrl));
+		assertEquals("Message I.", qs.pull(queueUrl, 100, TimeUnit.MILLISECONDS).getBody());
+	}
+
+	@Test
+	public void testDeliverFromDiskWhileMemoryIsInFlight(){
+		for (int i = 0; i < 6; i++) {
+			qs.push(queueUrl, "Message " + i + ".");
+		}
+		List<Message> inMemory = qs.pull(queueUrl, 4);
+		assertEquals(4, inMemory.size());
+
+		Message fromDisk = qs.pull(queueUrl);
+		assertEquals("Message 4.", fromDisk.getBody());
+		assertTrue(fromDisk.getReceiptId().startsWith("f:"));
+		qs.changeVisibility(queueUrl, fromDisk.getReceiptId(), 60);
+		qs.delete(queueUrl, fromDisk.getReceiptId());
+
+		List<String> receiptIds = new ArrayList<>();
+		for (Message msg : inMemory) {
+			receiptIds.add(msg.getReceiptId());
+		}
+		qs.deleteBatch(queueUrl, receiptIds);
+		assertEquals(1, qs.getQueueStats(queueUrl).getMessages());
+
+		Message msg = qs.pull(queueUrl);
+		assertEquals("Message 5.", msg.getBody());
+		assertTrue(!msg.getReceiptId().startsWith("f:"));
+		qs.delete(queueUrl, msg.getReceiptId());
+		assertNull(qs.pull(queueUrl));
+		assertEquals(0, qs.getSpilledMessages(queueUrl));
+	}
+
+	@Test
+	public void testSpilledMessagesOutliveTheService(){
+		for (int i = 0; i < 6; i++) {
+			qs.push(queueUrl, "Message " + i + ".");
+		}
+
+		// The messages in memory go with the service, the spilled ones stay for the next one.
+		TieredQueueService next = new TieredQueueService(config);
+		assertEquals(2, next.getSpilledMessages(queueUrl));
+		assertEquals(2, next.getQueueStats(queueUrl).getMessages());
+		assertEquals("Message 4.", next.pull(queueUrl).getBody());
+		assertEquals("Message 5.", next.pull(queueUrl).getBody());
+		assertNull(next.pull(queueUrl));
+	}
+}
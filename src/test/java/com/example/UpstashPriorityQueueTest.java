@@ -1,17 +1,68 @@
 package com.example;
 
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import static org.junit.Assert.*;
 
+/**
+ * By default these tests run against {@link UpstashStandIn}, which emulates the Lua scripts of the
+ * service in Java, so they do not cover the scripts themselves. To run them against a real Upstash
+ * database, set its REST URL and token:
+ *
+ * mvn test -Dtest=UpstashPriorityQueueTest -DupstashTestUrl=https://... -DupstashTestToken=...
+ *
+ * Each test then uses a queue of its own, which is deleted afterwards.
+ */
 public class UpstashPriorityQueueTest {
+	private UpstashStandIn standIn;
+	private String redisUrl;
+	private String redisToken;
+	private UpstashPipeline redis;
 	private PriorityQueueService upqs;
 	private String queueUrl = "https://sqs.ap-1.amazonaws.com/007/MyQueue";
 	
 	@Before
-	public void setup() {
-		upqs = new UpstashPriorityQueueService();
+	public void setup() throws IOException {
+		redisUrl = System.getProperty("upstashTestUrl");
+		redisToken = System.getProperty("upstashTestToken");
+		if (redisUrl == null) {
+			standIn = new UpstashStandIn();
+			redisUrl = standIn.url();
+			redisToken = "token";
+		} else {
+			queueUrl += "-" + UUID.randomUUID();
+		}
+		redis = new UpstashPipeline(HttpClient.newHttpClient(), new ObjectMapper(), redisUrl, redisToken);
+		upqs = new UpstashPriorityQueueService(redisUrl, redisToken, 30);
+	}
+	
+	@After
+	public void tearDown() {
+		if (standIn != null) {
+			standIn.close();
+		} else {
+			redis.submit("DEL", queueUrl, queueUrl + ":inflight", queueUrl + ":receipts", queueUrl + ":sequence").join();
+		}
 	}
 	
 	
@@ -70,7 +121,7 @@ public class UpstashPriorityQueueTest {
 
 	@Test
 	public void testDeleteVisibleMessage(){
-		UpstashPriorityQueueService upstashPriorityQueueService = new UpstashPriorityQueueService() {
+		UpstashPriorityQueueService upstashPriorityQueueService = new UpstashPriorityQueueService(redisUrl, redisToken, 30) {
 			long now() {
 				return System.currentTimeMillis() + 1000 * 30 + 1;
 			}
@@ -89,6 +140,115 @@ public class UpstashPriorityQueueTest {
 		upqs.delete(queueUrl, msg.getReceiptId());
 	}
 
+	@Test
+	public void testBatchPushPullDelete(){
+		upqs.pushBatch(queueUrl, Arrays.asList("Low A.", "Low B."), 2);
+		upqs.pushBatch(queueUrl, Arrays.asList("High A.", "High B."), 1);
+		List<Message> msgs = upqs.pull(queueUrl, 3);
+		assertEquals(3, msgs.size());
+		assertTrue(msgs.get(0).getBody().startsWith("High"));
+		assertTrue(msgs.get(1).getBody().startsWith("High"));
+		assertTrue(msgs.get(2).getBody().startsWith("Low"));
+
+		List<String> receiptIds = new ArrayList<>();
+		for (Message msg : msgs) {
+			receiptIds.add(msg.getReceiptId());
+		}
+		upqs.deleteBatch(queueUrl, receiptIds);
+
+		msgs = upqs.pull(queueUrl, 10);
+		assertEquals(1, msgs.size());
+		assertEquals("Low", msgs.get(0).getBody().substring(0, 3));
+		upqs.delete(queueUrl, msgs.get(0).getReceiptId());
+	}
+
+	@Test
+	public void testConcurrentPullDeliversOnce() throws InterruptedException {
+		List<String> msgBodies = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			msgBodies.add("Message " + i);
+		}
+		upqs.pushBatch(queueUrl, msgBodies, 10);
+
+		Set<String> received = ConcurrentHashMap.newKeySet();
+		AtomicInteger deliveries = new AtomicInteger();
+		Thread[] consumers = new Thread[4];
+		for (int i = 0; i < consumers.length; i++) {
+			consumers[i] = new Thread(() -> {
+				Message msg;
+				while ((msg = upqs.pull(queueUrl)) != null) {
+					received.add(msg.getBody());
+					deliveries.incrementAndGet();
+				}
+			});
+			consumers[i].start();
+		}
+		for (Thread consumer : consumers) {
+			consumer.join();
+		}
+
+		assertEquals(50, received.size());
+		assertEquals(50, deliveries.get());
+	}
+
+	@Test
+	public void testConcurrentPushes() throws InterruptedException {
+		// Pushes made while another request is in flight are sent together through the pipeline.
+		Thread[] producers = new Thread[8];
+		for (int i = 0; i < producers.length; i++) {
+			String producer = "Producer " + i;
+			producers[i] = new Thread(() -> {
+				for (int j = 0; j < 25; j++) {
+					upqs.push(queueUrl, producer + " message " + j, 10);
+				}
+			});
+			producers[i].start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+
+		List<Message> msgs = upqs.pull(queueUrl, 1000);
+		Set<String> received = new HashSet<>();
+		for (Message msg : msgs) {
+			received.add(msg.getBody());
+		}
+		assertEquals(200, received.size());
+	}
+
+	@Test
+	public void testRequestThatCannotBeBuiltFailsEachCall(){
+		// A line break is not allowed in the Authorization header.
+		UpstashPriorityQueueService badToken = new UpstashPriorityQueueService(redisUrl, "bad\ntoken", 30);
+		for (int i = 0; i < 2; i++) {
+			try {
+				badToken.pushAsync(queueUrl, "Message A.", 1).get(5, TimeUnit.SECONDS);
+				fail("The push should fail");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IllegalArgumentException);
+			} catch (InterruptedException | TimeoutException e) {
+				throw new AssertionError("The push should fail at once", e);
+			}
+		}
+	}
+
+	@Test
+	public void testAsyncPushPullDelete(){
+		AsyncPriorityQueueService async = new UpstashPriorityQueueService(redisUrl, redisToken, 30);
+
+		CompletableFuture.allOf(
+				async.pushAsync(queueUrl, "Low.", 2),
+				async.pushAsync(queueUrl, "High.", 1)).join();
+		Message msg = async.pullAsync(queueUrl).join();
+		assertEquals("High.", msg.getBody());
+
+		async.deleteAsync(queueUrl, msg.getReceiptId()).join();
+		List<Message> msgs = async.pullAsync(queueUrl, 10).join();
+		assertEquals(1, msgs.size());
+		assertEquals("Low.", msgs.get(0).getBody());
+		assertNull(async.pullAsync(queueUrl).join());
+	}
+
 	@Test
 	public void testPriority3Msgs(){
 		String [] msgStrs = {"TEst msg 1", "test msg 2",
@@ -145,6 +305,22 @@ public class UpstashPriorityQueueTest {
 		upqs.delete(queueUrl, msg3.getReceiptId());
 	}
 
+	@Test
+	public void testFCFSWithinOneMillisecond() {
+		for (int i = 0; i < 100; i++) {
+			upqs.push(queueUrl, "Message " + i, 10);
+		}
+		upqs.pushBatch(queueUrl, Arrays.asList("Message 100", "Message 101"), 10);
+		upqs.push(queueUrl, "Message 0", 10);
+
+		for (int i = 0; i < 102; i++) {
+			assertEquals("Message " + i, upqs.pull(queueUrl).getBody());
+		}
+		// The same body pushed twice is kept twice.
+		assertEquals("Message 0", upqs.pull(queueUrl).getBody());
+		assertNull(upqs.pull(queueUrl));
+	}
+
 	@Test
 	public void testPriorityAndFCFS3Msgs() throws InterruptedException {
 		String [] msgStrs = {"TEst msg 1", "test msg 2",
@@ -190,4 +366,95 @@ public class UpstashPriorityQueueTest {
 
 		upqs.delete(queueUrl, msg.getReceiptId());
 	}
+
+	@Test
+	public void testWaitingPullWokenByPush() throws InterruptedException {
+		Thread producer = new Thread(() -> {
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				return;
+			}
+			upqs.push(queueUrl, "Message A.", 10);
+		});
+		producer.start();
+
+		Message msg = upqs.pull(queueUrl, 10, TimeUnit.SECONDS);
+		producer.join();
+		assertTrue(msg != null && msg.getBody().equals("Message A."));
+	}
+
+	@Test
+	public void testWaitingPullTimesOut() {
+		long start = System.nanoTime();
+		Message msg = upqs.pull(queueUrl, 200, TimeUnit.MILLISECONDS);
+		assertNull(msg);
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+	}
+
+	@Test
+	public void testChangeVisibility(){
+		AtomicLong clockOffset = new AtomicLong();
+		UpstashPriorityQueueService upstashPriorityQueueService = new UpstashPriorityQueueService(redisUrl, redisToken, 30) {
+			long now() {
+				return System.currentTimeMillis() + clockOffset.get();
+			}
+		};
+		upstashPriorityQueueService.push(queueUrl, "Message A.", 10);
+		upstashPriorityQueueService.push(queueUrl, "Message B.", 10);
+		Message msgA = upstashPriorityQueueService.pull(queueUrl);
+		Message msgB = upstashPriorityQueueService.pull(queueUrl);
+		upstashPriorityQueueService.changeVisibility(queueUrl, msgA.getReceiptId(), 60);
+		upstashPriorityQueueService.changeVisibility(queueUrl, msgB.getReceiptId(), 0);
+
+		clockOffset.set(1000);
+		msgB = upstashPriorityQueueService.pull(queueUrl);
+		assertEquals("Message B.", msgB.getBody());
+		upstashPriorityQueueService.delete(queueUrl, msgB.getReceiptId());
+		clockOffset.set(1000 * 30 + 1);
+		assertNull(upstashPriorityQueueService.pull(queueUrl));
+		clockOffset.set(1000 * 60 + 1);
+		assertEquals("Message A.", upstashPriorityQueueService.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testVisibilityTimeoutPerQueueAndPull(){
+		AtomicLong clockOffset = new AtomicLong();
+		UpstashPriorityQueueService upstashPriorityQueueService = new UpstashPriorityQueueService(redisUrl, redisToken, 30) {
+			long now() {
+				return System.currentTimeMillis() + clockOffset.get();
+			}
+		};
+		upstashPriorityQueueService.push(queueUrl, "Message A.", 10);
+		upstashPriorityQueueService.push(queueUrl, "Message B.", 10);
+		upstashPriorityQueueService.setVisibilityTimeout(queueUrl, 60);
+		assertEquals("Message A.", upstashPriorityQueueService.pull(queueUrl).getBody());
+		assertEquals("Message B.", upstashPriorityQueueService.pull(queueUrl, 1, 10).get(0).getBody());
+
+		clockOffset.set(1000 * 10 + 1);
+		Message msgB = upstashPriorityQueueService.pull(queueUrl);
+		assertEquals("Message B.", msgB.getBody());
+		upstashPriorityQueueService.delete(queueUrl, msgB.getReceiptId());
+		clockOffset.set(1000 * 30 + 1);
+		assertNull(upstashPriorityQueueService.pull(queueUrl));
+		clockOffset.set(1000 * 60 + 1);
+		assertEquals("Message A.", upstashPriorityQueueService.pull(queueUrl).getBody());
+	}
+
+	@Test
+	public void testPullMessagesPushedByEarlierVersions(){
+		// Earlier versions stored the message alone, scored by priority and then creation time.
+		long createdAt = System.currentTimeMillis() - 1000;
+		redis.submit("ZADD", queueUrl, String.valueOf(10 + createdAt / 1e13),
+				"{\"msgBody\":\"Old message.\",\"priority\":10,\"createdAt\":" + createdAt + "}").join();
+		upqs.push(queueUrl, "New message.", 10);
+		upqs.push(queueUrl, "Urgent message.", 1);
+
+		assertEquals("Urgent message.", upqs.pull(queueUrl).getBody());
+		assertEquals("New message.", upqs.pull(queueUrl).getBody());
+		Message msg = upqs.pull(queueUrl);
+		assertEquals("Old message.", msg.getBody());
+		upqs.delete(queueUrl, msg.getReceiptId());
+		assertNull(upqs.pull(queueUrl));
+	}
 }
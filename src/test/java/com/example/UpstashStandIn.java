@@ -0,0 +1,269 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for the Upstash REST API on a local port, which keeps its data in memory, so the
+ * Upstash queue service can be tested without a network connection.
+ *
+ * Only the commands the service and its tests send are supported. Lua cannot run here: each
+ * script of the service is emulated by a Java method doing the same, found by the SHA1 digest of
+ * the script. The scripts themselves are therefore not covered by tests against the stand-in, and
+ * a change to a script must be made to its emulation too; see {@link UpstashPriorityQueueTest}
+ * for running the tests against a real database.
+ */
+class UpstashStandIn implements Closeable {
+	private interface Script {
+		Object run(List<String> keys, List<String> args);
+	}
+
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private final HttpServer server;
+
+	private final Map<String, SortedSet> sortedSets = new HashMap<>();
+
+	private final Map<String, Map<String, String>> hashes = new HashMap<>();
+
+	private final Map<String, Long> counters = new HashMap<>();
+
+	private final Map<String, Script> scripts = new HashMap<>();
+
+	// Digests of the scripts sent with EVAL, which EVALSHA may use since.
+	private final Set<String> loadedScripts = new HashSet<>();
+
+	UpstashStandIn() throws IOException {
+		scripts.put(sha1(UpstashPriorityQueueService.PUSH_SCRIPT), this::push);
+		scripts.put(sha1(UpstashPriorityQueueService.PULL_SCRIPT), this::pull);
+		scripts.put(sha1(UpstashPriorityQueueService.DELETE_SCRIPT), this::delete);
+		scripts.put(sha1(UpstashPriorityQueueService.VISIBILITY_SCRIPT), this::changeVisibility);
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	String url() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		int status = 200;
+		Object response;
+		if (exchange.getRequestURI().getPath().equals("/pipeline")) {
+			String[][] commands = OBJECT_MAPPER.readValue(exchange.getRequestBody(), String[][].class);
+			List<Map<String, Object>> responses = new ArrayList<>();
+			for (String[] command : commands) {
+				responses.add(executeCommand(command));
+			}
+			response = responses;
+		} else {
+			String[] command = OBJECT_MAPPER.readValue(exchange.getRequestBody(), String[].class);
+			Map<String, Object> commandResponse = executeCommand(command);
+			status = commandResponse.containsKey("error") ? 400 : 200;
+			response = commandResponse;
+		}
+
+		byte[] body = OBJECT_MAPPER.writeValueAsBytes(response);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	// Returns {"result": ...} or {"error": ...}, as Upstash does.
+	private synchronized Map<String, Object> executeCommand(String[] command) {
+		try {
+			return Collections.singletonMap("result", execute(command));
+		} catch (IllegalArgumentException e) {
+			return Collections.singletonMap("error", e.getMessage());
+		}
+	}
+
+	private Object execute(String[] command) {
+		switch (command[0].toUpperCase()) {
+		case "EVAL": {
+			String sha = sha1(command[1]);
+			if (!scripts.containsKey(sha)) {
+				throw new IllegalArgumentException("ERR unknown script");
+			}
+			loadedScripts.add(sha);
+			return eval(sha, command);
+		}
+		case "EVALSHA":
+			if (!loadedScripts.contains(command[1])) {
+				throw new IllegalArgumentException("NOSCRIPT No matching script. Please use EVAL.");
+			}
+			return eval(command[1], command);
+		case "ZADD":
+			// Only used by the tests, to add what the service does not.
+			sortedSet(command[1]).add(Double.parseDouble(command[2]), command[3]);
+			return 1;
+		default:
+			throw new IllegalArgumentException("ERR unknown command '" + command[0] + "'");
+		}
+	}
+
+	private Object eval(String sha, String[] command) {
+		int numKeys = Integer.parseInt(command[2]);
+		List<String> keys = new ArrayList<>();
+		List<String> args = new ArrayList<>();
+		for (int i = 3; i < command.length; i++) {
+			(i < 3 + numKeys ? keys : args).add(command[i]);
+		}
+		return scripts.get(sha).run(keys, args);
+	}
+
+	// UpstashPriorityQueueService.PUSH_SCRIPT
+	private Object push(List<String> keys, List<String> args) {
+		SortedSet ready = sortedSet(keys.get(0));
+		int count = args.size() - 1;
+		long last = counters.merge(keys.get(1), (long) count, Long::sum);
+		for (int i = 1; i < args.size(); i++) {
+			ready.add(Double.parseDouble(args.get(0)), String.format("%016d", last - count + i) + args.get(i));
+		}
+		return count;
+	}
+
+	// UpstashPriorityQueueService.PULL_SCRIPT
+	private Object pull(List<String> keys, List<String> args) {
+		SortedSet ready = sortedSet(keys.get(0));
+		SortedSet inFlight = sortedSet(keys.get(1));
+		Map<String, String> receipts = hash(keys.get(2));
+
+		long now = Long.parseLong(args.get(0));
+		for (String receiptId : new ArrayList<>(inFlight.members)) {
+			if (inFlight.scores.get(receiptId) >= now) {
+				break;
+			}
+			String entry = receipts.remove(receiptId);
+			inFlight.remove(receiptId);
+			if (entry != null) {
+				int sep = entry.indexOf('|');
+				ready.add(Double.parseDouble(entry.substring(0, sep)), entry.substring(sep + 1));
+			}
+		}
+
+		List<String> result = new ArrayList<>();
+		int max = Integer.parseInt(args.get(3));
+		for (int i = 0; i < max && !ready.members.isEmpty(); i++) {
+			String member = ready.members.first();
+			double score = ready.scores.get(member);
+			ready.remove(member);
+
+			String receiptId = args.get(2) + "." + i;
+			inFlight.add(Double.parseDouble(args.get(1)), receiptId);
+			receipts.put(receiptId, score + "|" + member);
+			// Members written by earlier versions are the message alone.
+			result.add(readMessage(member.startsWith("{") ? member : member.substring(16)).getBody());
+			result.add(receiptId);
+		}
+		return result;
+	}
+
+	// UpstashPriorityQueueService.DELETE_SCRIPT
+	private Object delete(List<String> keys, List<String> args) {
+		SortedSet inFlight = sortedSet(keys.get(1));
+		Map<String, String> receipts = hash(keys.get(2));
+
+		long now = Long.parseLong(args.get(0));
+		int deleted = 0;
+		for (String receiptId : args.subList(1, args.size())) {
+			Double visibleFrom = inFlight.scores.get(receiptId);
+			if (visibleFrom != null && visibleFrom >= now) {
+				inFlight.remove(receiptId);
+				receipts.remove(receiptId);
+				deleted++;
+			}
+		}
+		return deleted;
+	}
+
+	// UpstashPriorityQueueService.VISIBILITY_SCRIPT
+	private Object changeVisibility(List<String> keys, List<String> args) {
+		SortedSet inFlight = sortedSet(keys.get(1));
+		Double visibleFrom = inFlight.scores.get(args.get(2));
+		if (visibleFrom != null && visibleFrom >= Long.parseLong(args.get(0))) {
+			inFlight.add(Double.parseDouble(args.get(1)), args.get(2));
+			return 1;
+		}
+		return 0;
+	}
+
+	private SortedSet sortedSet(String key) {
+		return sortedSets.computeIfAbsent(key, k -> new SortedSet());
+	}
+
+	private Map<String, String> hash(String key) {
+		return hashes.computeIfAbsent(key, k -> new HashMap<>());
+	}
+
+	private static PriorityMessage readMessage(String member) {
+		try {
+			return OBJECT_MAPPER.readValue(member, PriorityMessage.class);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("ERR not a message: " + member);
+		}
+	}
+
+	private static String sha1(String script) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// A Redis sorted set: members ordered by score, then lexicographically.
+	private static class SortedSet {
+		final Map<String, Double> scores = new HashMap<>();
+		final TreeSet<String> members = new TreeSet<>(
+				Comparator.comparingDouble((String member) -> scores.get(member)).thenComparing(Comparator.naturalOrder()));
+
+		boolean add(double score, String member) {
+			boolean added = !remove(member);
+			scores.put(member, score);
+			members.add(member);
+			return added;
+		}
+
+		boolean remove(String member) {
+			if (!scores.containsKey(member)) {
+				return false;
+			}
+			members.remove(member);
+			scores.remove(member);
+			return true;
+		}
+	}
+}